@@ -0,0 +1,264 @@
+package animator;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+/**
+ * Benchmarks times the model and render hot paths against synthetic data.
+ * Each case is warmed up, then timed over several iterations, and the
+ * best and median times per operation are printed.
+ * Runs headless; from the project root:
+ * 
+ *   javac -d out src/animator/*.java src/animator/tool/*.java bench/animator/*.java
+ *   java -Djava.awt.headless=true -cp out animator.Benchmarks [filter]
+ * 
+ * Only cases whose names contain the filter are run.
+ * 
+ * @author Neill Johnston
+ */
+public class Benchmarks {
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 10;
+	// Minimum time per iteration; operations are repeated until it is reached.
+	private static final long ITERATION_NANOS = 200000000L;
+	
+	// Canvas size used by the paint benchmarks.
+	private static final int WIDTH = 1920;
+	private static final int HEIGHT = 1080;
+	
+	// Results are added here so the JIT can't remove the work.
+	private static volatile long sink;
+	
+	public static void main(String[] args) {
+		String filter = args.length > 0 ? args[0] : "";
+		Manager.init();
+		
+		for(int lines : new int[] {1000, 10000, 100000}) {
+			run(filter, "canvasPaint.cached." + lines, paintCanvas(lines, false));
+			run(filter, "canvasPaint.uncached." + lines, paintCanvas(lines, true));
+			run(filter, "frameCopy." + lines, copyFrame(lines));
+		}
+		run(filter, "layerGet.playback", getLayerFrames(1000));
+		for(int points : new int[] {1000, 10000})
+			run(filter, "strokeUpdate." + points, updateStroke(points));
+		for(int depth : new int[] {1, 5})
+			run(filter, "onionSkin.depth" + depth, paintOnionSkins(depth, 10000));
+		run(filter, "layerComposite.20", paintLayers(20, 5000));
+		
+		Manager.renderEngine.shutdown();
+	}
+	
+	/**
+	 * An operation to time.
+	 */
+	private interface Operation {
+		/**
+		 * Do the operation once.
+		 * 
+		 * @return any value derived from the work
+		 */
+		long run();
+	}
+	
+	/**
+	 * Warm up and time an operation, and print the results.
+	 * 
+	 * @param filter	only run if the name contains this
+	 * @param name		name of the case
+	 * @param op		operation to time
+	 */
+	private static void run(String filter, String name, Operation op) {
+		if(!name.contains(filter))
+			return;
+		
+		for(int i = 0; i < WARMUP_ITERATIONS; i++)
+			iterate(op);
+		double[] times = new double[ITERATIONS];
+		for(int i = 0; i < ITERATIONS; i++)
+			times[i] = iterate(op);
+		java.util.Arrays.sort(times);
+		
+		System.out.println(String.format("%-32s best %12.1f ns/op   median %12.1f ns/op",
+				name, times[0], times[ITERATIONS / 2]));
+	}
+	
+	/**
+	 * Repeat an operation until the iteration time is reached.
+	 * 
+	 * @return nanoseconds per operation
+	 */
+	private static double iterate(Operation op) {
+		long ops = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			sink += op.run();
+			ops++;
+		} while((elapsed = System.nanoTime() - start) < ITERATION_NANOS);
+		return (double) elapsed / ops;
+	}
+	
+	// --- Cases. ---
+	
+	/**
+	 * Paint the canvas showing a frame of lines, zoomed out to fit it all in.
+	 * 
+	 * @param lines			lines in the frame
+	 * @param invalidate	whether to throw away the raster cache before each paint
+	 */
+	private static Operation paintCanvas(int lines, final boolean invalidate) {
+		final Frame frame = SyntheticData.frame(lines, 1);
+		final AnimatorCanvas canvas = newCanvas(frame);
+		final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		return new Operation() {
+			@Override
+			public long run() {
+				if(invalidate)
+					frame.invalidate();
+				Graphics2D g2d = image.createGraphics();
+				canvas.paint(g2d);
+				g2d.dispose();
+				return image.getRGB(0, 0);
+			}
+		};
+	}
+	
+	/**
+	 * Duplicate a frame of lines.
+	 * 
+	 * @param lines		lines in the frame
+	 */
+	private static Operation copyFrame(int lines) {
+		final Frame frame = SyntheticData.frame(lines, 2);
+		return new Operation() {
+			@Override
+			public long run() {
+				return Frame.copy(frame).size();
+			}
+		};
+	}
+	
+	/**
+	 * Step through a layer's frames in order, as playback does.
+	 * 
+	 * @param frames	frames in the layer
+	 */
+	private static Operation getLayerFrames(final int frames) {
+		final Layer layer = SyntheticData.layer(frames, 1, 3);
+		return new Operation() {
+			private int current;
+			
+			@Override
+			public long run() {
+				current = (current + 1) % frames;
+				return layer.get(current).size();
+			}
+		};
+	}
+	
+	/**
+	 * Draw a whole stroke, one sample at a time.
+	 * 
+	 * @param points	samples in the stroke
+	 */
+	private static Operation updateStroke(int points) {
+		final ArrayList<Point> path = SyntheticData.scribble(points, 4);
+		return new Operation() {
+			@Override
+			public long run() {
+				Stroke stroke = new Stroke(path.get(0)) {
+				};
+				for(int i = 1; i < path.size(); i++)
+					stroke.update(path.get(i));
+				return stroke.width;
+			}
+		};
+	}
+	
+	/**
+	 * Paint the canvas with onion skins on either side of the current frame.
+	 * 
+	 * @param depth		onion skin depth, back and forward
+	 * @param lines		lines per frame
+	 */
+	private static Operation paintOnionSkins(int depth, int lines) {
+		Layer layer = SyntheticData.layer(2 * depth + 1, lines, 5);
+		Manager.layers.set(0, layer);
+		Manager.anim.put(Manager.ANIM_LAYER, layer);
+		Manager.anim.put(Manager.ANIM_CURRENT, depth);
+		Manager.anim.put(Manager.ANIM_ONIONBACK, depth);
+		Manager.anim.put(Manager.ANIM_ONIONFORWARD, depth);
+		final AnimatorCanvas canvas = newCanvas(null);
+		final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		return new Operation() {
+			@Override
+			public long run() {
+				Graphics2D g2d = image.createGraphics();
+				canvas.paint(g2d);
+				g2d.dispose();
+				return image.getRGB(0, 0);
+			}
+		};
+	}
+	
+	/**
+	 * Draw on the top layer of a stack and repaint the canvas.
+	 * Only the top layer's frame changes, so the others should just be blitted.
+	 * 
+	 * @param count		number of layers
+	 * @param lines		lines per layer
+	 */
+	private static Operation paintLayers(int count, int lines) {
+		Manager.layers.clear();
+		for(int i = 0; i < count; i++) {
+			Layer layer = new Layer("benchmark " + i);
+			layer.put(0, SyntheticData.frame(lines, i));
+			Manager.layers.add(layer);
+		}
+		final Layer top = Manager.layers.get(count - 1);
+		Manager.anim.put(Manager.ANIM_LAYER, top);
+		Manager.anim.put(Manager.ANIM_CURRENT, 0);
+		Manager.anim.put(Manager.ANIM_ONIONBACK, 0);
+		Manager.anim.put(Manager.ANIM_ONIONFORWARD, 0);
+		final AnimatorCanvas canvas = newCanvas(null);
+		final BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+		return new Operation() {
+			@Override
+			public long run() {
+				Frame frame = top.get(0);
+				frame.add(new LineObject(new Point(0, 0), new Point(SyntheticData.AREA, SyntheticData.AREA), 2, Color.red));
+				frame.remove(frame.lastId());
+				Graphics2D g2d = image.createGraphics();
+				canvas.paint(g2d);
+				g2d.dispose();
+				return image.getRGB(0, 0);
+			}
+		};
+	}
+	
+	/**
+	 * Make a canvas, zoomed out to fit the synthetic area, optionally showing a frame.
+	 * 
+	 * @param frame		frame to show in a new layer, or null to keep the current layer
+	 * @return the canvas
+	 */
+	private static AnimatorCanvas newCanvas(Frame frame) {
+		if(frame != null) {
+			Layer layer = new Layer("benchmark");
+			layer.put(0, frame);
+			Manager.layers.set(0, layer);
+			Manager.anim.put(Manager.ANIM_LAYER, layer);
+			Manager.anim.put(Manager.ANIM_CURRENT, 0);
+			Manager.anim.put(Manager.ANIM_ONIONBACK, 0);
+			Manager.anim.put(Manager.ANIM_ONIONFORWARD, 0);
+		}
+		AnimatorCanvas canvas = new AnimatorCanvas();
+		canvas.setSize(WIDTH, HEIGHT);
+		canvas.setBackground(Color.white);
+		canvas.zoom(5 * Math.log((double) SyntheticData.AREA / HEIGHT) / Math.log(2));
+		return canvas;
+	}
+}
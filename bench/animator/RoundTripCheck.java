@@ -0,0 +1,240 @@
+package animator;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RoundTripCheck makes sure projects come back the way they were saved.
+ * It saves a synthetic project, reopens it and compares every frame, edits the lazily
+ * loaded copy (so unchanged frames are passed through as they were encoded, key or delta)
+ * and saves over the file it is mapped from, then compares again. Last it autosaves a run
+ * of edits, tears the final log record in half as a crash would, and checks that recovery
+ * gives back everything up to that record.
+ * Runs headless; from the project root:
+ * 
+ *   javac -d out src/animator/*.java src/animator/tool/*.java bench/animator/*.java
+ *   java -Djava.awt.headless=true -cp out animator.RoundTripCheck
+ * 
+ * Exits with status 1 if any check fails.
+ * 
+ * @author Neill Johnston
+ */
+public class RoundTripCheck {
+	// Frames in the animated layer, and lines in its first frame.
+	private static final int FRAMES = 24;
+	private static final int LINES = 200;
+	
+	private static int failures;
+	
+	public static void main(String[] args) throws IOException {
+		Manager.init();
+		Path directory = Files.createTempDirectory("roundtrip");
+		
+		// Save and reopen.
+		ArrayList<Layer> layers = project();
+		Path file = directory.resolve("project.anim");
+		ProjectFile.save(file, layers, 12);
+		ProjectFile opened = ProjectFile.open(file);
+		check("save.fps", opened.getFps() == 12);
+		compare("save", layers, opened.getLayers());
+		
+		// Edit a few frames of the opened project, leaving the rest undecoded, and save over it.
+		ArrayList<Layer> edited = opened.getLayers();
+		edit(edited, 1);
+		ProjectFile.save(file, edited, 12);
+		compare("resave", edited, ProjectFile.open(file).getLayers());
+		
+		// Autosave some edits, then tear the last record and recover.
+		Manager.layers.clear();
+		Manager.layers.addAll(edited);
+		Manager.anim.put(Manager.ANIM_LAYER, edited.get(1));
+		Path autosave = directory.resolve("autosave");
+		Autosave.start(autosave);
+		edit(edited, 2);
+		ArrayList<Layer> beforeLast = copy(edited);
+		Frame last = edited.get(1).valueAt(FRAMES / 2);
+		last.translate(last.lastId(), 7, -3);
+		Autosave.stop();
+		compare("recover", edited, Autosave.recover(autosave).getLayers());
+		tearLastRecord(autosave);
+		compare("recover.torn", beforeLast, Autosave.recover(autosave).getLayers());
+		Autosave.discard(autosave);
+		
+		Manager.renderEngine.shutdown();
+		System.out.println(failures == 0 ? "all round trips passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * Make a project with an animated layer, whose frames mostly differ little from the one
+	 * before so that most are saved as deltas, and a sparse, hidden, translucent layer.
+	 */
+	private static ArrayList<Layer> project() {
+		Layer animated = new Layer("animated");
+		Frame frame = SyntheticData.frame(LINES, 1);
+		frame.add(pen(SyntheticData.scribble(2000, 2)));
+		for(int i = 0; i < FRAMES; i++) {
+			// Every so often the frame is redrawn, which has to be a key frame.
+			frame = i % 10 == 9 ? SyntheticData.frame(LINES, i) : Frame.copy(frame);
+			frame.add(new LineObject(new Point(i, i), new Point(10 * i, 5 * i), 1 + i % 5, Color.blue));
+			if(i % 3 == 1)
+				frame.remove(i);
+			frame.translate(frame.lastId(), i, -i);
+			animated.put(i, frame);
+		}
+		animated.setHold(4, 3);
+		
+		Layer background = new Layer("background");
+		background.remove(0);
+		for(int key : new int[] {0, 7, 15})
+			background.put(key, SyntheticData.frame(50, 100 + key));
+		background.setHold(7, 8);
+		background.setVisible(false);
+		background.setOpacity(0.4f);
+		
+		ArrayList<Layer> layers = new ArrayList<Layer>();
+		layers.add(background);
+		layers.add(animated);
+		return layers;
+	}
+	
+	/**
+	 * Fit a freehand path with the pen, so curve rows are saved too.
+	 */
+	private static PenObject pen(List<Point> path) {
+		Rectangle dirty = new Rectangle();
+		PenStroke stroke = new PenStroke(path.get(0).x, path.get(0).y, 0.5f);
+		for(Point p : path)
+			stroke.sample(p.x, p.y, dirty);
+		stroke.finish();
+		return new PenObject(stroke);
+	}
+	
+	/**
+	 * Make a handful of edits of every kind the model logs.
+	 * 
+	 * @param layers	project to edit, the animated layer on top
+	 * @param seed		varies the edits between calls
+	 */
+	private static void edit(ArrayList<Layer> layers, int seed) {
+		Layer background = layers.get(0);
+		Layer animated = layers.get(1);
+		Frame frame = animated.valueAt(3);
+		frame.translate(frame.lastId(), seed, 2 * seed);
+		frame = animated.valueAt(10);
+		frame.transform(0, AffineTransform.getScaleInstance(1.5, 0.5));
+		frame.remove(frame.lastId());
+		frame.add(new LineObject(new Point(seed, 0), new Point(0, seed), 3, Color.green));
+		animated.put(FRAMES + seed, SyntheticData.frame(20, seed));
+		animated.setHold(FRAMES + seed, seed);
+		background.remove(7);
+		background.setOpacity(0.2f * seed);
+		Frame copy = Frame.copy(background.valueAt(0));
+		background.put(30 + seed, copy);
+		int id = copy.lastId();
+		copy.remove(id);
+		copy.remove(id - 1);
+		copy.restore(id);
+	}
+	
+	/**
+	 * Copy a project, so it can be compared with after it has been edited further.
+	 */
+	private static ArrayList<Layer> copy(List<Layer> layers) {
+		ArrayList<Layer> copies = new ArrayList<Layer>();
+		for(Layer layer : layers) {
+			Layer copy = new Layer(layer.getName());
+			copy.remove(0);
+			copy.setVisible(layer.isVisible());
+			copy.setOpacity(layer.getOpacity());
+			for(int i = 0; i < layer.size(); i++) {
+				int key = layer.keyAt(i);
+				copy.put(key, Frame.copy(layer.valueAt(i)));
+				copy.setHold(key, layer.getHold(key));
+			}
+			copies.add(copy);
+		}
+		return copies;
+	}
+	
+	/**
+	 * Cut the autosave log off halfway through its last record.
+	 */
+	private static void tearLastRecord(Path autosave) throws IOException {
+		Path log = null;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(autosave, "autosave-*.log")) {
+			for(Path file : files)
+				log = file;
+		}
+		try(RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+			long last = 0;
+			long position = 0;
+			while(position + 4 <= file.length()) {
+				file.seek(position);
+				last = position;
+				position += 4 + file.readInt();
+			}
+			file.seek(last);
+			file.setLength(last + 4 + file.readInt() / 2);
+		}
+	}
+	
+	/**
+	 * Compare two projects layer by layer and frame by frame, printing what differs.
+	 * Frames are compared by their key encoding, which holds every row, removed ones included.
+	 * 
+	 * @param name			name of the check
+	 * @param expected		project as it should be
+	 * @param actual		project as it was read back
+	 */
+	private static void compare(String name, List<Layer> expected, List<Layer> actual) {
+		int before = failures;
+		check(name + ".layerCount", expected.size() == actual.size());
+		for(int l = 0; l < Math.min(expected.size(), actual.size()); l++) {
+			Layer a = expected.get(l);
+			Layer b = actual.get(l);
+			String layer = name + ".layer" + l;
+			check(layer + ".name", a.getName().equals(b.getName()));
+			check(layer + ".visible", a.isVisible() == b.isVisible());
+			check(layer + ".opacity", a.getOpacity() == b.getOpacity());
+			check(layer + ".frameCount", a.size() == b.size());
+			for(int i = 0; i < Math.min(a.size(), b.size()); i++) {
+				int key = a.keyAt(i);
+				String frame = layer + ".frame" + key;
+				check(frame + ".key", key == b.keyAt(i));
+				check(frame + ".hold", a.getHold(key) == b.getHold(b.keyAt(i)));
+				check(frame + ".size", a.valueAt(i).size() == b.valueAt(i).size());
+				check(frame + ".rows", encode(a.valueAt(i)).equals(encode(b.valueAt(i))));
+			}
+		}
+		if(failures == before)
+			System.out.println(name + " ok");
+	}
+	
+	/**
+	 * Encode a frame on its own, as a key frame, without touching the frame itself.
+	 */
+	private static ByteBuffer encode(Frame frame) {
+		return Frame.readOnlyCopy(frame).encode();
+	}
+	
+	/**
+	 * Count and print a failed check.
+	 */
+	private static void check(String name, boolean passed) {
+		if(!passed) {
+			System.out.println(name + " FAILED");
+			failures++;
+		}
+	}
+}
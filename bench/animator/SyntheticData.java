@@ -0,0 +1,73 @@
+package animator;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * SyntheticData generates reproducible frames, layers and strokes for the benchmarks.
+ * Everything is drawn from a seeded Random, so every run measures the same data.
+ * 
+ * @author Neill Johnston
+ */
+public class SyntheticData {
+	// Size of the square area that objects are scattered over.
+	public static final int AREA = 4000;
+	// Longest line generated, in world units.
+	private static final int MAX_LENGTH = 120;
+	
+	/**
+	 * Generate a frame of randomly placed short lines.
+	 * 
+	 * @param lines		number of lines
+	 * @param seed		random seed
+	 * @return the frame
+	 */
+	public static Frame frame(int lines, long seed) {
+		Random random = new Random(seed);
+		Frame frame = new Frame();
+		for(int i = 0; i < lines; i++) {
+			Point start = new Point(random.nextInt(AREA), random.nextInt(AREA));
+			Point end = new Point(start.x + random.nextInt(2 * MAX_LENGTH) - MAX_LENGTH,
+					start.y + random.nextInt(2 * MAX_LENGTH) - MAX_LENGTH);
+			frame.add(new LineObject(start, end, 1 + random.nextInt(10), Color.black));
+		}
+		return frame;
+	}
+	
+	/**
+	 * Generate a layer where every frame has the same number of lines.
+	 * 
+	 * @param frames	number of frames
+	 * @param lines		number of lines per frame
+	 * @param seed		random seed
+	 * @return the layer
+	 */
+	public static Layer layer(int frames, int lines, long seed) {
+		Layer layer = new Layer("benchmark");
+		for(int i = 0; i < frames; i++)
+			layer.put(i, frame(lines, seed + i));
+		return layer;
+	}
+	
+	/**
+	 * Generate a wandering freehand path, like a scribble.
+	 * 
+	 * @param points	number of samples
+	 * @param seed		random seed
+	 * @return the samples in order
+	 */
+	public static ArrayList<Point> scribble(int points, long seed) {
+		Random random = new Random(seed);
+		ArrayList<Point> path = new ArrayList<Point>(points);
+		int x = AREA / 2;
+		int y = AREA / 2;
+		for(int i = 0; i < points; i++) {
+			x = Math.max(0, Math.min(AREA, x + random.nextInt(9) - 4));
+			y = Math.max(0, Math.min(AREA, y + random.nextInt(9) - 4));
+			path.add(new Point(x, y));
+		}
+		return path;
+	}
+}
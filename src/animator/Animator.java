@@ -8,6 +8,10 @@ import javax.swing.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.Path;
 
 /**
  * Animator, the entry class that contains the main method.
@@ -18,6 +22,9 @@ import java.awt.event.KeyEvent;
 public class Animator {
 	public static JFrame mainWindow;
 	
+	// Width and height of a sprite sheet page.
+	private static final int SPRITE_PAGE_SIZE = 2048;
+	
 	private static AnimatorCanvas animatorCanvas;
 	private static FramePanel framePanel;
 	
@@ -53,7 +60,87 @@ public class Animator {
 				menuBar.setPreferredSize(new Dimension(mainWindow.getWidth(), 20));
 				
 				JMenu fileMenu = new JMenu("File");
-				fileMenu.add(new JMenuItem("New", KeyEvent.VK_0));
+				JMenuItem fileMenuNew = new JMenuItem("New", KeyEvent.VK_0);
+				fileMenuNew.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						Manager.newProject();
+					}
+				});
+				fileMenu.add(fileMenuNew);
+				JMenuItem fileMenuOpen = new JMenuItem("Open...");
+				fileMenuOpen.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						JFileChooser chooser = new JFileChooser();
+						if(chooser.showOpenDialog(mainWindow) != JFileChooser.APPROVE_OPTION)
+							return;
+						try {
+							Manager.openProject(chooser.getSelectedFile().toPath());
+						}
+						catch(IOException ex) {
+							JOptionPane.showMessageDialog(mainWindow, "Couldn't open the file: " + ex.getMessage());
+						}
+					}
+				});
+				fileMenu.add(fileMenuOpen);
+				JMenuItem fileMenuSave = new JMenuItem("Save");
+				fileMenuSave.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						save(Manager.projectPath);
+					}
+				});
+				fileMenu.add(fileMenuSave);
+				JMenuItem fileMenuSaveAs = new JMenuItem("Save As...");
+				fileMenuSaveAs.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						save(null);
+					}
+				});
+				fileMenu.add(fileMenuSaveAs);
+				fileMenu.addSeparator();
+				JMenuItem fileMenuExportPng = new JMenuItem("Export PNG Sequence...");
+				fileMenuExportPng.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						export(Exporter.FORMAT_PNG);
+					}
+				});
+				fileMenu.add(fileMenuExportPng);
+				JMenuItem fileMenuExportGif = new JMenuItem("Export GIF...");
+				fileMenuExportGif.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						export(Exporter.FORMAT_GIF);
+					}
+				});
+				fileMenu.add(fileMenuExportGif);
+				JMenuItem fileMenuExportSvg = new JMenuItem("Export SVG Sequence...");
+				fileMenuExportSvg.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						export(Exporter.FORMAT_SVG);
+					}
+				});
+				fileMenu.add(fileMenuExportSvg);
+				JMenuItem fileMenuExportAnimatedSvg = new JMenuItem("Export Animated SVG...");
+				fileMenuExportAnimatedSvg.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						export(Exporter.FORMAT_SVG_ANIMATED);
+					}
+				});
+				fileMenu.add(fileMenuExportAnimatedSvg);
+				JMenuItem fileMenuExportSprites = new JMenuItem("Export Sprite Sheet...");
+				fileMenuExportSprites.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						exportSpriteSheet();
+					}
+				});
+				fileMenu.add(fileMenuExportSprites);
 				menuBar.add(fileMenu);
 				
 				JMenu editMenu = new JMenu("Edit");
@@ -63,12 +150,31 @@ public class Animator {
 					public void actionPerformed(ActionEvent e) {
 						Manager.undo();
 						animatorCanvas.repaint();
-						System.out.println("undo");
 					}
 				});
 				editMenu.add(editMenuUndo);
+				JMenuItem editMenuRedo = new JMenuItem("Redo");
+				editMenuRedo.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						Manager.redo();
+						animatorCanvas.repaint();
+					}
+				});
+				editMenu.add(editMenuRedo);
 				menuBar.add(editMenu);
 				
+				JMenu viewMenu = new JMenu("View");
+				JCheckBoxMenuItem viewMenuHud = new JCheckBoxMenuItem("Performance HUD");
+				viewMenuHud.addActionListener(new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						animatorCanvas.setHudVisible(((JCheckBoxMenuItem) e.getSource()).isSelected());
+					}
+				});
+				viewMenu.add(viewMenuHud);
+				menuBar.add(viewMenu);
+				
 				mainWindow.setJMenuBar(menuBar);
 				
 				// Create and add the canvas.
@@ -90,8 +196,165 @@ public class Animator {
 				mainWindow.setFocusable(true);
 				
 				Manager.refreshKeyBindings();
+				
+				startAutosave();
+			}
+		});
+	}
+	
+	/**
+	 * Offer to recover work left by a session that didn't close cleanly, then start autosaving.
+	 * The autosave is discarded when the window is closed normally.
+	 * If another Animator is already autosaving, this one runs without.
+	 */
+	private static void startAutosave() {
+		try {
+			if(!Autosave.lock(Autosave.DIRECTORY)) {
+				System.err.println("Autosave is off: another Animator is already running");
+				return;
+			}
+		}
+		catch(IOException e) {
+			System.err.println("Autosave is off: " + e.getMessage());
+			return;
+		}
+		
+		if(Autosave.canRecover(Autosave.DIRECTORY)) {
+			int answer = JOptionPane.showConfirmDialog(mainWindow,
+					"Animator didn't close properly last time. Recover the unsaved work?",
+					"Recover", JOptionPane.YES_NO_OPTION);
+			if(answer == JOptionPane.YES_OPTION) {
+				try {
+					Manager.recoverProject();
+				}
+				catch(IOException e) {
+					JOptionPane.showMessageDialog(mainWindow, "Couldn't recover the work: " + e.getMessage());
+				}
+			}
+		}
+		
+		try {
+			Autosave.start(Autosave.DIRECTORY);
+		}
+		catch(IOException e) {
+			System.err.println("Autosave is off: " + e.getMessage());
+			return;
+		}
+		mainWindow.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				Autosave.stop();
+				Autosave.discard(Autosave.DIRECTORY);
+			}
+		});
+	}
+	
+	/**
+	 * Save the project, asking where to if no file is given.
+	 * 
+	 * @param path		file to save to, or null to ask
+	 */
+	private static void save(Path path) {
+		if(path == null) {
+			JFileChooser chooser = new JFileChooser();
+			if(chooser.showSaveDialog(mainWindow) != JFileChooser.APPROVE_OPTION)
+				return;
+			path = chooser.getSelectedFile().toPath();
+		}
+		try {
+			Manager.saveProject(path);
+		}
+		catch(IOException e) {
+			JOptionPane.showMessageDialog(mainWindow, "Couldn't save the file: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Export the animation as it is framed on the canvas, showing progress as it goes.
+	 * 
+	 * @param format	one of the Exporter.FORMAT constants
+	 */
+	private static void export(int format) {
+		JFileChooser chooser = new JFileChooser();
+		if(format == Exporter.FORMAT_PNG || format == Exporter.FORMAT_SVG)
+			chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		if(chooser.showSaveDialog(mainWindow) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		final ProgressMonitor monitor = new ProgressMonitor(mainWindow, "Exporting", null, 0, 1);
+		final Exporter[] exporter = new Exporter[1];
+		exporter[0] = new Exporter(Manager.layers, (int) Manager.anim.get(Manager.ANIM_FPS),
+				animatorCanvas.getWidth(), animatorCanvas.getHeight(), animatorCanvas.getViewTransform(),
+				chooser.getSelectedFile().toPath(), format, new Exporter.Listener() {
+			@Override
+			public void progress(final int done, final int total) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						monitor.setMaximum(total);
+						monitor.setProgress(done);
+						if(monitor.isCanceled())
+							exporter[0].cancel();
+					}
+				});
+			}
+			
+			@Override
+			public void finished(final Exception error) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						monitor.close();
+						if(error != null && !(error instanceof InterruptedException))
+							JOptionPane.showMessageDialog(mainWindow, "Couldn't export: " + error.getMessage());
+					}
+				});
+			}
+		});
+		exporter[0].start();
+	}
+	
+	/**
+	 * Export the current layer's frames as a sprite sheet, at one pixel per world unit.
+	 */
+	private static void exportSpriteSheet() {
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showSaveDialog(mainWindow) != JFileChooser.APPROVE_OPTION)
+			return;
+		Path path = chooser.getSelectedFile().toPath();
+		if(!path.getFileName().toString().endsWith(".json"))
+			path = path.resolveSibling(path.getFileName() + ".json");
+		
+		final ProgressMonitor monitor = new ProgressMonitor(mainWindow, "Exporting sprite sheet", null, 0, 1);
+		final SpriteSheet[] sheet = new SpriteSheet[1];
+		sheet[0] = new SpriteSheet(Manager.getCurrentLayer(), (int) Manager.anim.get(Manager.ANIM_FPS), 1,
+				SPRITE_PAGE_SIZE, path, new Exporter.Listener() {
+			@Override
+			public void progress(final int done, final int total) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						monitor.setMaximum(total);
+						monitor.setProgress(done);
+						if(monitor.isCanceled())
+							sheet[0].cancel();
+					}
+				});
+			}
+			
+			@Override
+			public void finished(final Exception error) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						monitor.close();
+						if(error != null && !(error instanceof InterruptedException))
+							JOptionPane.showMessageDialog(mainWindow, "Couldn't export: " + error.getMessage());
+					}
+				});
 			}
 		});
+		sheet[0].start();
 	}
 	
 	/**
@@ -1,15 +1,31 @@
 package animator;
 
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 /**
  * AnimatorCanvas is a custom JPanel that holds all of the frame drawing.
@@ -18,14 +34,57 @@ import javax.swing.SwingUtilities;
  * @author Neill Johnston
  */
 public class AnimatorCanvas extends JPanel {
-	private static double ONION_ALPHA = 0.25;
-	
 	private double zoom;
 	private double x;
 	private double y;
 	
 	private Stroke editStroke;
 	private CanvasObject currentCO;
+	// Freehand stroke being drawn with the pen.
+	private PenStroke penStroke;
+	// Objects selected with the edit tool, or null.
+	private Selection selection;
+	// World-space box or lasso being dragged out to select with, or null.
+	private Rectangle2D.Float selectBox;
+	private Path2D.Float selectLasso;
+	
+	// Frames whose raster caches the last paint used, and those the paint in progress has used,
+	// in full color and as onion skins. Every other frame's caches are released, so only frames
+	// that can be on screen hold screen-sized images.
+	private Set<Frame> rastered;
+	private Set<Frame> shown;
+	private Set<Frame> onionRastered;
+	private Set<Frame> onionShown;
+	
+	// Pre-rendered frame shown during playback, drawn instead of the frames.
+	private BufferedImage playbackImage;
+	
+	// Onion skin composites, indexed by distance - 1.
+	private AlphaComposite[] onionComposites;
+	// Opacity and falloff the onion skin composites were made with.
+	private double onionAlpha;
+	private double onionFalloff;
+	
+	// Flattened layers below and above the current one, so only the current layer is blitted on its own.
+	private LayerCache underlay;
+	private LayerCache overlay;
+	
+	// Distance (in screen pixels) the cursor can be from an object and still select it.
+	private static final int SELECT_TOLERANCE = 4;
+	// Padding (in screen pixels) around partial repaints.
+	private static final int REPAINT_PADDING = 3;
+	
+	// World-space area the pen has drawn over since the last repaint, and the timer that repaints it.
+	// Samples only grow the area, so however fast they come, the canvas repaints at most once a tick.
+	private Rectangle inkDirty;
+	private Timer inkTimer;
+	
+	// Performance HUD, refreshed a few times a second while shown.
+	private static final Color HUD_BACKGROUND = new Color(0, 0, 0, 160);
+	private static final int HUD_WIDTH = 420;
+	private boolean hudVisible;
+	private int hudHeight;
+	private Timer hudTimer;
 	
 	/**
 	 * Main constructor for the canvas.
@@ -40,6 +99,24 @@ public class AnimatorCanvas extends JPanel {
 		y = 0;
 		setBackground(Color.white);
 		editStroke = null;
+		rastered = Collections.newSetFromMap(new IdentityHashMap<Frame, Boolean>());
+		onionRastered = Collections.newSetFromMap(new IdentityHashMap<Frame, Boolean>());
+		onionComposites = new AlphaComposite[0];
+		underlay = new LayerCache();
+		overlay = new LayerCache();
+		hudTimer = new Timer(250, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				repaint(0, 0, HUD_WIDTH, hudHeight);
+			}
+		});
+		inkDirty = new Rectangle(0, 0, -1, -1);
+		inkTimer = new Timer(16, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				flushInk();
+			}
+		});
 		
 		// Add the mouse listener.
 		AnimatorCanvasMouseAdapter mouseAdapter = new AnimatorCanvasMouseAdapter(this);
@@ -52,41 +129,301 @@ public class AnimatorCanvas extends JPanel {
 	
 	/**
 	 * Override JPanel's paint to call paint on all of the canvas objects.
+	 * Times each paint, and draws the performance HUD on top if it is shown.
 	 * 
 	 * @param g		Graphics object being used
 	 */
 	@Override
 	public void paint(Graphics g) {
+		long startNanos = System.nanoTime();
 		super.paint(g);
 		
-		// Draw all of the strokes from the Set strokes.
 		Graphics2D g2d = (Graphics2D) g;
-		g2d.translate(x, y);
-		g2d.scale(zoom, zoom);
+		AffineTransform screen = g2d.getTransform();
+		int drawn = paintScene(g2d);
+		g2d.setTransform(screen);
 		
-		// If a previous frame exists and not in play mode, onion-skin it.
-		Frame lastFrame = Manager.layers.get(0).get((int) Manager.anim.get(Manager.ANIM_CURRENT) - 1);
-		if(lastFrame != null && !(boolean) Manager.anim.get(Manager.ANIM_PLAYINGFLAG)) {
-			for(CanvasObject co : lastFrame.values())
-				co.paint(g2d, ONION_ALPHA);
-		}
+		Rectangle clip = g.getClipBounds();
+		long pixels = clip == null ? (long) getWidth() * getHeight() : (long) clip.width * clip.height;
+		Performance.getInstance().recordCanvasPaint(System.nanoTime() - startNanos, drawn, pixels);
 		
-		// Draw the current frame in full color.
-		if(Manager.getCurrentFrame() != null) {
-			for(CanvasObject co : Manager.getCurrentFrame().values())
-				co.paint(g2d);
+		if(hudVisible)
+			paintHud(g2d);
+	}
+	
+	/**
+	 * Paint the frames, onion skins, editors and in-progress object.
+	 * 
+	 * @param g2d		Graphics2D object to use, in screen space
+	 * @return the number of objects drawn as vectors
+	 */
+	private int paintScene(Graphics2D g2d) {
+		int drawn = 0;
+		AffineTransform screen = g2d.getTransform();
+		
+		// If playing, just show the pre-rendered frame (drawn at device resolution).
+		if(playbackImage != null) {
+			double scale = getGraphicsConfiguration().getDefaultTransform().getScaleX();
+			g2d.drawImage(playbackImage, AffineTransform.getScaleInstance(1 / scale, 1 / scale), null);
+			return drawn;
 		}
 		
-		// If in edit mode, draw the stroke editor.
-		if((Manager.ToolType) Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
-				editStroke != null) {
-			editStroke.paintEditor(g2d);
+		drawn += paintLayers(g2d);
+		
+		g2d.translate(x, y);
+		g2d.scale(zoom, zoom);
+		
+		// If in edit mode, draw the stroke editor, the selection's outline and the box or lasso being dragged out.
+		if((Manager.ToolType) Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT) {
+			if(editStroke != null)
+				editStroke.paintEditor(g2d);
+			if(selection != null && selection.getFrame() == Manager.getCurrentFrame())
+				selection.paintEditor(g2d, zoom);
+			if(selectBox != null || selectLasso != null) {
+				g2d.setStroke(new BasicStroke((float) (1 / zoom), BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER,
+						10, new float[] {(float) (4 / zoom)}, 0));
+				g2d.setColor(Color.green);
+				g2d.draw(getSelectArea());
+			}
 		}
 
 		// If currently editing a stroke, paint it as well.
 		if(currentCO != null) {
 			currentCO.paint(g2d);
+			drawn++;
+		}
+		if(penStroke != null) {
+			penStroke.paint(g2d);
+			drawn++;
+		}
+		
+		g2d.setTransform(screen);
+		return drawn;
+	}
+	
+	/**
+	 * Composite the visible layers, bottom first.
+	 * The layers below and above the current one are each flattened into a single cached image,
+	 * so drawing on one layer only redraws that layer's raster, however many layers there are.
+	 * The current layer's onion skins go directly underneath it.
+	 * 
+	 * @param g2d		Graphics2D object to use, in screen space
+	 * @return the number of objects that had to be redrawn into raster caches
+	 */
+	private int paintLayers(Graphics2D g2d) {
+		int drawn = 0;
+		Layer layer = Manager.getCurrentLayer();
+		int current = (int) Manager.anim.get(Manager.ANIM_CURRENT);
+		int position = Manager.layers.indexOf(layer);
+		
+		shown = Collections.newSetFromMap(new IdentityHashMap<Frame, Boolean>());
+		onionShown = Collections.newSetFromMap(new IdentityHashMap<Frame, Boolean>());
+		drawn += underlay.paint(g2d, 0, position, current);
+		if(layer.isVisible()) {
+			// If not in play mode, onion-skin the neighbouring frames, furthest first.
+			if(!(boolean) Manager.anim.get(Manager.ANIM_PLAYINGFLAG))
+				drawn += paintOnionSkins(g2d);
+			Frame frame = layer.getExposed(current);
+			if(frame != null) {
+				drawn += frame.paint(g2d, getWidth(), getHeight(), x, y, zoom, layer.getComposite());
+				shown.add(frame);
+			}
+			// A selection being edited is left out of its frame's raster, and drawn on top of it instead.
+			if(frame != null && selection != null && selection.getFrame() == frame)
+				drawn += selection.paint(g2d, getWidth(), getHeight(), x, y, zoom, layer.getComposite());
+		}
+		drawn += overlay.paint(g2d, position + 1, Manager.layers.size(), current);
+		releaseCaches();
+		return drawn;
+	}
+	
+	/**
+	 * Paint the performance HUD in the top left corner.
+	 * 
+	 * @param g2d		Graphics2D object to use, in screen space
+	 */
+	private void paintHud(Graphics2D g2d) {
+		String[] lines = Performance.getInstance().getSummary();
+		int lineHeight = g2d.getFontMetrics().getHeight();
+		g2d.setColor(HUD_BACKGROUND);
+		hudHeight = lineHeight * lines.length + 8;
+		g2d.fillRect(0, 0, HUD_WIDTH, hudHeight);
+		g2d.setColor(Color.white);
+		for(int i = 0; i < lines.length; i++)
+			g2d.drawString(lines[i], 4, 4 + lineHeight * i + g2d.getFontMetrics().getAscent());
+	}
+	
+	/**
+	 * Show or hide the performance HUD.
+	 * 
+	 * @param visible	whether to show the HUD
+	 */
+	public void setHudVisible(boolean visible) {
+		hudVisible = visible;
+		if(visible)
+			hudTimer.start();
+		else
+			hudTimer.stop();
+		repaint();
+	}
+	
+	/**
+	 * Release the raster caches of frames the last paint used and this one didn't.
+	 * A frame that has become the current one, or left the onion skin depth, loses its tinted raster.
+	 */
+	private void releaseCaches() {
+		for(Frame frame : rastered)
+			if(!shown.contains(frame))
+				frame.releaseCache();
+		for(Frame frame : onionRastered)
+			if(!onionShown.contains(frame))
+				frame.releaseOnionCache();
+		rastered = shown;
+		onionRastered = onionShown;
+	}
+	
+	/**
+	 * Paint the onion skins of the frames around the current one.
+	 * Each neighbour is blitted from its own tinted raster.
+	 * 
+	 * @param g2d		Graphics2D object to use, in screen space
+	 * @return the number of objects that had to be redrawn into the onion skin caches
+	 */
+	private int paintOnionSkins(Graphics2D g2d) {
+		int drawn = 0;
+		Layer layer = (Layer) Manager.anim.get(Manager.ANIM_LAYER);
+		int current = (int) Manager.anim.get(Manager.ANIM_CURRENT);
+		int back = (int) Manager.anim.get(Manager.ANIM_ONIONBACK);
+		int forward = (int) Manager.anim.get(Manager.ANIM_ONIONFORWARD);
+		Color tintBack = (Color) Manager.anim.get(Manager.ANIM_ONIONTINTBACK);
+		Color tintForward = (Color) Manager.anim.get(Manager.ANIM_ONIONTINTFORWARD);
+		
+		for(int d = Math.max(back, forward); d > 0; d--) {
+			AlphaComposite composite = getOnionComposite(d);
+			Frame frame;
+			if(d <= back && (frame = layer.get(current - d)) != null) {
+				drawn += frame.paintOnion(g2d, getWidth(), getHeight(), x, y, zoom, tintBack, composite);
+				onionShown.add(frame);
+			}
+			if(d <= forward && (frame = layer.get(current + d)) != null) {
+				drawn += frame.paintOnion(g2d, getWidth(), getHeight(), x, y, zoom, tintForward, composite);
+				onionShown.add(frame);
+			}
+		}
+		return drawn;
+	}
+	
+	/**
+	 * Get the composite for an onion skin, fading out with distance from the current frame.
+	 * 
+	 * @param distance	number of frames away from the current frame (at least 1)
+	 * @return the composite to blit the onion skin with
+	 */
+	private AlphaComposite getOnionComposite(int distance) {
+		// The composites are made again whenever the opacity or falloff is changed.
+		double alpha = (double) Manager.anim.get(Manager.ANIM_ONIONALPHA);
+		double falloff = (double) Manager.anim.get(Manager.ANIM_ONIONFALLOFF);
+		if(alpha != onionAlpha || falloff != onionFalloff) {
+			onionComposites = new AlphaComposite[0];
+			onionAlpha = alpha;
+			onionFalloff = falloff;
+		}
+		if(onionComposites.length < distance) {
+			AlphaComposite[] composites = new AlphaComposite[distance];
+			System.arraycopy(onionComposites, 0, composites, 0, onionComposites.length);
+			for(int d = onionComposites.length + 1; d <= distance; d++)
+				composites[d - 1] = AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
+						(float) (alpha * Math.pow(falloff, d - 1)));
+			onionComposites = composites;
+		}
+		return onionComposites[distance - 1];
+	}
+	
+	/**
+	 * Repaint only the part of the screen covered by an object before and after a change.
+	 * 
+	 * @param before	world-space bounds before the change, or null
+	 * @param after		world-space bounds after the change, or null
+	 */
+	private void repaintWorld(Rectangle before, Rectangle after) {
+		Rectangle dirty = null;
+		if(before != null)
+			dirty = toScreen(before);
+		if(after != null)
+			dirty = dirty == null ? toScreen(after) : dirty.union(toScreen(after));
+		if(dirty != null)
+			repaint(dirty);
+	}
+	
+	/**
+	 * Repaint the area the pen has drawn over since the last repaint.
+	 */
+	private void flushInk() {
+		if(inkDirty.width < 0)
+			return;
+		repaintWorld(inkDirty, null);
+		inkDirty.setBounds(0, 0, -1, -1);
+	}
+	
+	/**
+	 * Return the current layer's frame to draw into, starting one if the layer has no frame
+	 * of its own here, from a copy of whatever frame is held over it.
+	 * 
+	 * @return the frame
+	 */
+	private Frame getDrawingFrame() {
+		if(Manager.getCurrentFrame() == null) {
+			Layer layer = Manager.getCurrentLayer();
+			int current = (int) Manager.anim.get(Manager.ANIM_CURRENT);
+			Frame held = layer.getExposed(current);
+			layer.put(current, held == null ? new Frame() : Frame.copy(held));
 		}
+		return Manager.getCurrentFrame();
+	}
+	
+	/**
+	 * Return the box or lasso being dragged out to select with.
+	 * 
+	 * @return world-space area, or null if there is none
+	 */
+	private Shape getSelectArea() {
+		return selectBox != null ? selectBox : selectLasso;
+	}
+	
+	/**
+	 * Convert a world-space rectangle to the screen-space rectangle that covers it.
+	 * Pads the result so that antialiased edges and editor outlines are included.
+	 * 
+	 * @param world		world-space rectangle
+	 * @return screen-space rectangle
+	 */
+	private Rectangle toScreen(Rectangle world) {
+		int left = (int) Math.floor(world.x * zoom + x) - REPAINT_PADDING;
+		int top = (int) Math.floor(world.y * zoom + y) - REPAINT_PADDING;
+		int right = (int) Math.ceil((world.x + world.width) * zoom + x) + REPAINT_PADDING;
+		int bottom = (int) Math.ceil((world.y + world.height) * zoom + y) + REPAINT_PADDING;
+		return new Rectangle(left, top, right - left, bottom - top);
+	}
+	
+	/**
+	 * Return the transform from world space to canvas space.
+	 * 
+	 * @return a new AffineTransform for the current pan and zoom
+	 */
+	public AffineTransform getViewTransform() {
+		AffineTransform transform = AffineTransform.getTranslateInstance(x, y);
+		transform.scale(zoom, zoom);
+		return transform;
+	}
+	
+	/**
+	 * Show a pre-rendered frame instead of the frames, or go back to the frames.
+	 * 
+	 * @param image		rendered frame at device resolution, or null to stop showing one
+	 */
+	public void setPlaybackImage(BufferedImage image) {
+		playbackImage = image;
+		repaint();
 	}
 	
 	/**
@@ -99,14 +436,86 @@ public class AnimatorCanvas extends JPanel {
 		repaint();
 	}
 	
+	/**
+	 * LayerCache is a run of layers flattened into one image at device resolution.
+	 * It remembers what it was drawn from (the view, and each visible layer's frame, version and opacity),
+	 * and is only redrawn when one of those changes.
+	 */
+	private class LayerCache {
+		private BufferedImage image;
+		private ArrayList<Object> key;
+		
+		/**
+		 * Blit the flattened layers, redrawing them first if anything they show has changed.
+		 * 
+		 * @param g2d		Graphics2D object to use, in screen space
+		 * @param from		position of the first layer in Manager.layers
+		 * @param to		position after the last layer
+		 * @param current	index of the frame to show
+		 * @return the number of objects that had to be redrawn into raster caches
+		 */
+		int paint(Graphics2D g2d, int from, int to, int current) {
+			double scale = g2d.getTransform().getScaleX();
+			ArrayList<Object> key = new ArrayList<Object>();
+			key.add(getWidth());
+			key.add(getHeight());
+			key.add(x);
+			key.add(y);
+			key.add(zoom);
+			key.add(scale);
+			for(int i = from; i < to; i++) {
+				Layer layer = Manager.layers.get(i);
+				Frame frame = layer.getExposed(current);
+				if(!layer.isVisible() || frame == null || frame.isEmpty())
+					continue;
+				key.add(frame);
+				key.add(frame.getVersion());
+				key.add(layer.getOpacity());
+				shown.add(frame);
+			}
+			// Nothing to show.
+			if(key.size() == 6)
+				return 0;
+			
+			int drawn = 0;
+			if(!key.equals(this.key)) {
+				int imageWidth = (int) Math.ceil(getWidth() * scale);
+				int imageHeight = (int) Math.ceil(getHeight() * scale);
+				if(image == null || image.getWidth() != imageWidth || image.getHeight() != imageHeight)
+					image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
+				Graphics2D imageG2d = image.createGraphics();
+				imageG2d.setBackground(new Color(0, 0, 0, 0));
+				imageG2d.clearRect(0, 0, imageWidth, imageHeight);
+				imageG2d.scale(scale, scale);
+				for(int i = from; i < to; i++) {
+					Layer layer = Manager.layers.get(i);
+					Frame frame = layer.getExposed(current);
+					if(layer.isVisible() && frame != null)
+						drawn += frame.paint(imageG2d, getWidth(), getHeight(), x, y, zoom, layer.getComposite());
+				}
+				imageG2d.dispose();
+				this.key = key;
+			}
+			g2d.drawImage(image, AffineTransform.getScaleInstance(1 / scale, 1 / scale), null);
+			return drawn;
+		}
+	}
+	
 	/**
 	 * A custom MouseAdapter to handle events from AnimatorCanvas.
 	 * This will create new strokes and add them to the canvas.
+	 * Pen samples are only recorded as they arrive, and painted later by the ink timer,
+	 * so a slow repaint holds up the event queue as little as possible and no sample is skipped.
 	 */
 	private class AnimatorCanvasMouseAdapter extends MouseAdapter {
-		static final int STROKE_TOLERANCE = 2;
 		AnimatorCanvas parent;
 		Point lastPoint;
+		// World-space point an edit drag started at, and the selection's transform then.
+		Point2D.Float dragStart;
+		AffineTransform dragTransform;
+		// Corner of the selection being dragged to scale it, or -1 if it is being moved, and the corner opposite.
+		int dragCorner;
+		Point2D dragAnchor;
 		
 		/**
 		 * Constructor including the adapter's parent canvas.
@@ -135,11 +544,54 @@ public class AnimatorCanvas extends JPanel {
 						currentCO = new LineObject();
 						currentCO.init(getRelativePoint(e));
 						break;
+					case PEN:
+						// The tolerance is in screen pixels, so zoomed in, strokes are fitted more closely.
+						float tolerance = (Float) Manager.tool.get(Manager.TOOL_TOLERANCE);
+						penStroke = new PenStroke(getWorldX(e), getWorldY(e), (float) (tolerance / zoom));
+						inkTimer.start();
+						break;
+				}
+				if(currentCO != null)
+					repaintWorld(currentCO.getBounds(), null);
+			}
+			// If editing a stroke, grab whichever handle is under the cursor.
+			else if(SwingUtilities.isLeftMouseButton(e) &&
+					Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
+					editStroke != null) {
+				editStroke.startDrag(finalPoint);
+			}
+			// Otherwise in edit mode, grab a corner of the selection to scale it, or the selection or the
+			// object under the cursor to move it, or start a box (or with shift, a lasso) to select with.
+			else if(SwingUtilities.isLeftMouseButton(e) &&
+					Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
+					Manager.getCurrentFrame() != null) {
+				Frame frame = Manager.getCurrentFrame();
+				dragStart = new Point2D.Float(getWorldX(e), getWorldY(e));
+				if(selection != null && selection.getFrame() != frame)
+					selection = null;
+				dragCorner = selection == null ? -1 : selection.handleAt(dragStart, zoom);
+				if(dragCorner < 0 && (selection == null || !selection.contains(dragStart))) {
+					if(selection != null)
+						repaintWorld(selection.getPaintedBounds(zoom), null);
+					CanvasObject co = frame.objectAt(dragStart, SELECT_TOLERANCE / zoom);
+					selection = co == null ? null : new Selection(frame, new int[] {co.getId()});
+					if(selection != null)
+						repaintWorld(selection.getPaintedBounds(zoom), null);
+					else if(e.isShiftDown()) {
+						selectLasso = new Path2D.Float();
+						selectLasso.moveTo(dragStart.x, dragStart.y);
+					}
+					else
+						selectBox = new Rectangle2D.Float(dragStart.x, dragStart.y, 0, 0);
+				}
+				if(selection != null) {
+					dragTransform = selection.getTransform();
+					if(dragCorner >= 0)
+						dragAnchor = selection.getCorner((dragCorner + 2) % 4);
 				}
 			}
 			
 			lastPoint = e.getPoint();
-			parent.repaint();
 		}
 		
 		/**
@@ -149,16 +601,61 @@ public class AnimatorCanvas extends JPanel {
 		 */
 		@Override
 		public void mouseDragged(MouseEvent e) {
+			// Every pen sample is kept, without making any objects; the ink timer repaints.
+			if(penStroke != null && SwingUtilities.isLeftMouseButton(e)) {
+				penStroke.sample(getWorldX(e), getWorldY(e), inkDirty);
+				return;
+			}
 			Point finalPoint = getRelativePoint(e);
 			
-			// If within the tolerable range, make a new point.
+			// Move the end of the line being drawn.
 			if(SwingUtilities.isLeftMouseButton(e) &&
 					Manager.tool.get(Manager.TOOL_STROKE) != Manager.ToolType.EDIT &&
-					currentCO != null &&
-					e.getPoint().distance(lastPoint) > STROKE_TOLERANCE) {
+					currentCO != null) {
+				Rectangle before = currentCO.getBounds();
 				currentCO.update(finalPoint);
-
-				lastPoint = e.getPoint();
+				repaintWorld(before, currentCO.getBounds());
+			}
+			// If editing a stroke, drag the grabbed handle.
+			else if(SwingUtilities.isLeftMouseButton(e) &&
+					Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
+					editStroke != null) {
+				Rectangle before = editStroke.getBounds();
+				editStroke.drag(finalPoint);
+				repaintWorld(before, editStroke.getBounds());
+			}
+			// Drag out the box or lasso.
+			else if(SwingUtilities.isLeftMouseButton(e) &&
+					Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
+					getSelectArea() != null) {
+				Rectangle before = getSelectArea().getBounds();
+				if(selectBox != null)
+					selectBox.setFrameFromDiagonal(dragStart.x, dragStart.y, getWorldX(e), getWorldY(e));
+				else
+					selectLasso.lineTo(getWorldX(e), getWorldY(e));
+				repaintWorld(before, getSelectArea().getBounds());
+			}
+			// Move the selection, or scale it from the opposite corner.
+			// Only its pending transform changes, however many objects it has.
+			else if(SwingUtilities.isLeftMouseButton(e) &&
+					Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
+					selection != null && selection.getFrame() == Manager.getCurrentFrame()) {
+				Rectangle before = selection.getPaintedBounds(zoom);
+				AffineTransform transform;
+				if(dragCorner < 0)
+					transform = AffineTransform.getTranslateInstance(getWorldX(e) - dragStart.x, getWorldY(e) - dragStart.y);
+				else {
+					double width = dragStart.x - dragAnchor.getX();
+					double height = dragStart.y - dragAnchor.getY();
+					double sx = width == 0 ? 1 : (getWorldX(e) - dragAnchor.getX()) / width;
+					double sy = height == 0 ? 1 : (getWorldY(e) - dragAnchor.getY()) / height;
+					transform = AffineTransform.getTranslateInstance(dragAnchor.getX(), dragAnchor.getY());
+					transform.scale(sx, sy);
+					transform.translate(-dragAnchor.getX(), -dragAnchor.getY());
+				}
+				transform.concatenate(dragTransform);
+				selection.setTransform(transform);
+				repaintWorld(before, selection.getPaintedBounds(zoom));
 			}
 			// If the middle mouse button is the one dragging, change x and y.
 			else if(SwingUtilities.isMiddleMouseButton(e)) {
@@ -166,8 +663,8 @@ public class AnimatorCanvas extends JPanel {
 				parent.y += (e.getPoint().getY() - lastPoint.getY());
 				
 				lastPoint = e.getPoint();
+				parent.repaint();
 			}
-			parent.repaint();
 		}
 
 		/**
@@ -188,14 +685,55 @@ public class AnimatorCanvas extends JPanel {
 		public void mouseReleased(MouseEvent e) {
 			Point finalPoint = getRelativePoint(e);
 			
+			// If a freehand stroke has just been completed, add it as a whole.
+			if(SwingUtilities.isLeftMouseButton(e) && penStroke != null) {
+				penStroke.sample(getWorldX(e), getWorldY(e), inkDirty);
+				penStroke.finish();
+				inkTimer.stop();
+				flushInk();
+				PenObject pen = new PenObject(penStroke);
+				Frame frame = getDrawingFrame();
+				pen.fin(frame, frame.add(pen));
+				repaintWorld(pen.getBounds(), null);
+				penStroke = null;
+			}
 			// If a stroke has just been completed, end the stroke.
-			if(SwingUtilities.isLeftMouseButton(e) &&
+			else if(SwingUtilities.isLeftMouseButton(e) &&
 					Manager.tool.get(Manager.TOOL_STROKE) != Manager.ToolType.EDIT &&
 					currentCO != null) {
-				currentCO.fin();
-				Manager.getCurrentFrame().put(currentCO.hashCode(), currentCO);
+				Frame frame = getDrawingFrame();
+				currentCO.fin(frame, frame.add(currentCO));
+				repaintWorld(currentCO.getBounds(), null);
 				currentCO = null;
 			}
+			else if(SwingUtilities.isLeftMouseButton(e) &&
+					Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
+					editStroke != null) {
+				Rectangle before = editStroke.getBounds();
+				editStroke.endDrag(finalPoint);
+				repaintWorld(before, editStroke.getBounds());
+			}
+			// A finished box or lasso selects the objects wholly inside it.
+			else if(SwingUtilities.isLeftMouseButton(e) &&
+					Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
+					getSelectArea() != null) {
+				Shape area = getSelectArea();
+				Frame frame = Manager.getCurrentFrame();
+				int[] ids = frame == null ? new int[0] : frame.select(area);
+				selection = ids.length == 0 ? null : new Selection(frame, ids);
+				repaintWorld(area.getBounds(), selection == null ? null : selection.getPaintedBounds(zoom));
+				selectBox = null;
+				selectLasso = null;
+			}
+			// A finished drag bakes the selection's transform into its objects, as one step to undo.
+			else if(SwingUtilities.isLeftMouseButton(e) &&
+					Manager.tool.get(Manager.TOOL_STROKE) == Manager.ToolType.EDIT &&
+					selection != null) {
+				Rectangle before = selection.getPaintedBounds(zoom);
+				selection.commit();
+				Manager.undoManager.seal();
+				repaintWorld(before, selection.getPaintedBounds(zoom));
+			}
 		}
 		
 		/**
@@ -220,6 +758,20 @@ public class AnimatorCanvas extends JPanel {
 			double mousey = e.getPoint().getY();
 			return new Point((int)((mousex - x) / zoom), (int)((mousey - y) / zoom));
 		}
+		
+		/**
+		 * Get the world-space x of an event, unrounded and without making a Point.
+		 */
+		private float getWorldX(MouseEvent e) {
+			return (float) ((e.getX() - x) / zoom);
+		}
+		
+		/**
+		 * Get the world-space y of an event, unrounded and without making a Point.
+		 */
+		private float getWorldY(MouseEvent e) {
+			return (float) ((e.getY() - y) / zoom);
+		}
 	}
 }
 
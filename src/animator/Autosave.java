@@ -0,0 +1,769 @@
+package animator;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Autosave keeps a crash-safe copy of the project as a snapshot plus a write-ahead log.
+ * Every change to the model (objects added, changed, removed or restored, frames
+ * and layers added or changed) is queued as a record by the model itself, on the
+ * thread making the change. A background writer appends the records to the log,
+ * fsyncing on a schedule, so the EDT never waits on the disk.
+ * 
+ * Every so often the log is compacted: the EDT takes copy-on-write copies of every
+ * frame, and the writer saves them as a new snapshot (a ProjectFile) and starts a new
+ * log. Files are numbered by generation, autosave-N.anim and autosave-N.log, and
+ * the older generation is deleted once the new one is safely written.
+ * 
+ * Frames are referred to in the log by number. After a compaction they are numbered in
+ * order through the layers and their keys, which is also the order they are read back
+ * from the snapshot; frames added later are given the next number when they are logged.
+ * Changes to frames that have no number (not in any layer) aren't logged.
+ * 
+ * A directory belongs to one running Animator at a time: it is locked before anything in it
+ * is recovered, written or discarded, and the lock is held until the process exits.
+ * 
+ * @author Neill Johnston
+ */
+public class Autosave {
+	// Where autosaves are kept.
+	public static final Path DIRECTORY = Paths.get(System.getProperty("user.home"), ".animator", "autosave");
+	
+	// Record kinds.
+	private static final byte KIND_ROW = 1;
+	private static final byte KIND_REMOVE = 2;
+	private static final byte KIND_RESTORE = 3;
+	private static final byte KIND_FRAMEPUT = 4;
+	private static final byte KIND_FRAMEREMOVE = 5;
+	private static final byte KIND_HOLD = 6;
+	private static final byte KIND_LAYERNEW = 7;
+	private static final byte KIND_LAYERMOVE = 8;
+	private static final byte KIND_LAYERPROPS = 9;
+	
+	// How often the writer fsyncs the log, and how many records it takes to trigger a compaction.
+	private static final long FSYNC_MILLIS = 1000;
+	private static final int COMPACT_RECORDS = 20000;
+	// Queued by stop to wake the writer. Interrupting it instead would close the file it is writing.
+	private static final Object WAKE = new Object();
+	
+	private static Autosave instance;
+	// The directory this process has locked, and its lock.
+	private static Path lockedDirectory;
+	private static FileLock lock;
+	
+	private Path directory;
+	private int generation;
+	// Frames and their numbers in the current generation. Only touched on the model's thread.
+	private IdentityHashMap<Frame, Integer> numbers;
+	private int nextNumber;
+	private int records;
+	
+	// Records waiting for the writer, and the writer itself.
+	private LinkedBlockingQueue<Object> queue;
+	private Thread writer;
+	private volatile boolean running;
+	
+	private Autosave(Path directory, int generation) {
+		this.directory = directory;
+		this.generation = generation;
+		this.numbers = new IdentityHashMap<Frame, Integer>();
+		this.queue = new LinkedBlockingQueue<Object>();
+	}
+	
+	// --- Starting, stopping and recovering. ---
+	
+	/**
+	 * Lock a directory for this process, so that another Animator won't recover, overwrite or
+	 * discard the files this one is writing. Locking the directory this process already holds
+	 * does nothing.
+	 * 
+	 * @param directory		autosave directory
+	 * @return whether the directory is now this process's, false if another process holds it
+	 * @throws IOException if the directory or its lock file can't be created
+	 */
+	public static boolean lock(Path directory) throws IOException {
+		if(directory.equals(lockedDirectory))
+			return true;
+		Files.createDirectories(directory);
+		FileChannel channel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock acquired = channel.tryLock();
+		if(acquired == null) {
+			channel.close();
+			return false;
+		}
+		// Only one directory is held at a time.
+		if(lock != null)
+			lock.channel().close();
+		lockedDirectory = directory;
+		lock = acquired;
+		return true;
+	}
+	
+	/**
+	 * Start autosaving the current project into a directory, beginning with a fresh snapshot.
+	 * 
+	 * @param directory		directory for the snapshot and log files
+	 * @throws IOException if the directory can't be created, or another process is autosaving into it
+	 */
+	public static void start(Path directory) throws IOException {
+		stop();
+		if(!lock(directory))
+			throw new IOException(directory + " is in use by another Animator");
+		final Autosave autosave = new Autosave(directory, latestGeneration(directory));
+		autosave.running = true;
+		autosave.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				autosave.write();
+			}
+		}, "autosave");
+		autosave.writer.setDaemon(true);
+		autosave.compact();
+		autosave.writer.start();
+		instance = autosave;
+	}
+	
+	/**
+	 * Stop autosaving, after the queued records have been written.
+	 */
+	public static void stop() {
+		if(instance == null)
+			return;
+		instance.running = false;
+		instance.queue.add(WAKE);
+		try {
+			instance.writer.join();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		instance = null;
+	}
+	
+	/**
+	 * Start a new generation from the current state of the project,
+	 * such as after a different project has been opened.
+	 */
+	public static void reset() {
+		if(instance != null)
+			instance.compact();
+	}
+	
+	/**
+	 * Whether a directory holds autosaved work that can be recovered.
+	 * 
+	 * @param directory		autosave directory
+	 * @return whether there is a snapshot to recover from
+	 */
+	public static boolean canRecover(Path directory) {
+		return latestGeneration(directory) > 0;
+	}
+	
+	/**
+	 * Rebuild the autosaved project: open the latest snapshot and replay its log on top.
+	 * A record torn off by a crash at the end of the log is ignored.
+	 * 
+	 * @param directory		autosave directory
+	 * @return the recovered project
+	 * @throws IOException if the snapshot can't be read, or another process is autosaving into the directory
+	 */
+	public static ProjectFile recover(Path directory) throws IOException {
+		if(!lock(directory))
+			throw new IOException(directory + " is in use by another Animator");
+		int generation = latestGeneration(directory);
+		ProjectFile project = ProjectFile.open(snapshotPath(directory, generation));
+		List<Layer> layers = project.getLayers();
+		ArrayList<Frame> frames = new ArrayList<Frame>();
+		for(Layer layer : layers)
+			for(int i = 0; i < layer.size(); i++)
+				frames.add(layer.valueAt(i));
+		
+		Path log = logPath(directory, generation);
+		if(!Files.exists(log))
+			return project;
+		MappedByteBuffer in;
+		try(RandomAccessFile file = new RandomAccessFile(log.toFile(), "r")) {
+			in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		while(in.remaining() >= 4) {
+			int length = in.getInt();
+			if(length <= 0 || length > in.remaining())
+				break;
+			ByteBuffer record = in.slice();
+			record.limit(length);
+			in.position(in.position() + length);
+			replay(record, layers, frames);
+		}
+		return project;
+	}
+	
+	/**
+	 * Delete every autosave file in a directory, unless another process is autosaving into it.
+	 * 
+	 * @param directory		autosave directory
+	 */
+	public static void discard(Path directory) {
+		if(!Files.isDirectory(directory))
+			return;
+		try {
+			if(!lock(directory))
+				return;
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "autosave-*")) {
+			for(Path file : files)
+				delete(file);
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// --- Hooks, called by the model as it changes. ---
+	
+	/**
+	 * An object was added to a frame or changed in place.
+	 */
+	static void rowChanged(Frame frame, int id) {
+		if(instance == null)
+			return;
+		int number = instance.numberOf(frame);
+		if(number >= 0)
+			instance.add(new RowRecord(number, id, frame.snapshot(id)));
+	}
+	
+	/**
+	 * An object was removed from a frame.
+	 */
+	static void rowRemoved(Frame frame, int id) {
+		if(instance == null)
+			return;
+		int number = instance.numberOf(frame);
+		if(number >= 0)
+			instance.add(encode(KIND_REMOVE, number, id));
+	}
+	
+	/**
+	 * A removed object was restored.
+	 */
+	static void rowRestored(Frame frame, int id) {
+		if(instance == null)
+			return;
+		int number = instance.numberOf(frame);
+		if(number >= 0)
+			instance.add(encode(KIND_RESTORE, number, id));
+	}
+	
+	/**
+	 * A frame was put into a layer, new or in place of another.
+	 */
+	static void framePut(Layer layer, int key, Frame frame) {
+		if(instance == null)
+			return;
+		int position = Manager.layers.indexOf(layer);
+		if(position < 0)
+			return;
+		int number = instance.nextNumber++;
+		instance.numbers.put(frame, number);
+		instance.add(new FrameRecord(position, key, number, Frame.readOnlyCopy(frame)));
+	}
+	
+	/**
+	 * A frame was taken out of a layer.
+	 */
+	static void frameRemoved(Layer layer, int key) {
+		if(instance == null)
+			return;
+		int position = Manager.layers.indexOf(layer);
+		if(position >= 0)
+			instance.add(encode(KIND_FRAMEREMOVE, position, key));
+	}
+	
+	/**
+	 * A frame's hold was changed.
+	 */
+	static void holdChanged(Layer layer, int key, int hold) {
+		if(instance == null)
+			return;
+		int position = Manager.layers.indexOf(layer);
+		if(position >= 0)
+			instance.add(encode(KIND_HOLD, position, key, hold));
+	}
+	
+	/**
+	 * A layer's visibility or opacity was changed.
+	 */
+	static void layerChanged(Layer layer) {
+		if(instance == null)
+			return;
+		int position = Manager.layers.indexOf(layer);
+		if(position < 0)
+			return;
+		ByteBuffer out = ByteBuffer.allocate(10);
+		out.put(KIND_LAYERPROPS);
+		out.putInt(position);
+		out.put((byte) (layer.isVisible() ? 1 : 0));
+		out.putFloat(layer.getOpacity());
+		instance.add(out.array());
+	}
+	
+	/**
+	 * A layer was added to Manager.layers.
+	 * Its frames are logged along with it.
+	 */
+	static void layerAdded(Layer layer) {
+		if(instance == null)
+			return;
+		int position = Manager.layers.indexOf(layer);
+		if(position < 0)
+			return;
+		ArrayList<Frame> copies = new ArrayList<Frame>();
+		int[] numbers = new int[layer.size()];
+		for(int i = 0; i < layer.size(); i++) {
+			numbers[i] = instance.nextNumber++;
+			instance.numbers.put(layer.valueAt(i), numbers[i]);
+			copies.add(Frame.readOnlyCopy(layer.valueAt(i)));
+		}
+		instance.add(new LayerRecord(position, layer, numbers, copies));
+	}
+	
+	/**
+	 * A layer was moved within Manager.layers.
+	 */
+	static void layerMoved(int from, int to) {
+		if(instance != null)
+			instance.add(encode(KIND_LAYERMOVE, from, to));
+	}
+	
+	// --- Model side. ---
+	
+	/**
+	 * Return a frame's number, or -1 if it has none.
+	 */
+	private int numberOf(Frame frame) {
+		Integer number = numbers.get(frame);
+		return number == null ? -1 : number;
+	}
+	
+	/**
+	 * Queue a record for the writer, compacting instead if the log has grown long.
+	 * 
+	 * @param record	encoded record, or a record to encode on the writer thread
+	 */
+	private void add(Object record) {
+		queue.add(record);
+		if(++records >= COMPACT_RECORDS)
+			compact();
+	}
+	
+	/**
+	 * Copy every frame and queue a snapshot of them, starting a new generation.
+	 * Frame copies are copy-on-write, so this takes time in the number of frames,
+	 * not their contents.
+	 */
+	private void compact() {
+		numbers.clear();
+		nextNumber = 0;
+		records = 0;
+		ArrayList<Layer> copies = new ArrayList<Layer>();
+		for(Layer layer : Manager.layers) {
+			for(int i = 0; i < layer.size(); i++)
+				numbers.put(layer.valueAt(i), nextNumber++);
+			copies.add(Layer.readOnlyCopy(layer));
+		}
+		queue.add(new Snapshot(copies, (int) Manager.anim.get(Manager.ANIM_FPS)));
+	}
+	
+	// --- Writer side. ---
+	
+	/**
+	 * Write queued records until stopped, then write whatever is left.
+	 */
+	private void write() {
+		FileChannel log = null;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+		long lastForce = System.currentTimeMillis();
+		boolean unforced = false;
+		try {
+			while(running || !queue.isEmpty()) {
+				Object record;
+				try {
+					record = queue.poll(FSYNC_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException e) {
+					record = queue.poll();
+				}
+				
+				while(record != null) {
+					if(record == WAKE) {
+						record = queue.poll();
+						continue;
+					}
+					if(record instanceof Snapshot) {
+						buffer = flush(log, buffer);
+						if(log != null) {
+							log.force(false);
+							log.close();
+						}
+						log = startGeneration((Snapshot) record);
+						unforced = false;
+					}
+					else {
+						byte[] bytes = record instanceof byte[] ? (byte[]) record : ((LazyRecord) record).encode();
+						if(buffer.remaining() < bytes.length + 4)
+							buffer = flush(log, buffer);
+						if(buffer.capacity() < bytes.length + 4)
+							buffer = ByteBuffer.allocateDirect(bytes.length + 4);
+						buffer.putInt(bytes.length);
+						buffer.put(bytes);
+						unforced = true;
+					}
+					record = queue.poll();
+				}
+				
+				buffer = flush(log, buffer);
+				if(unforced && System.currentTimeMillis() - lastForce >= FSYNC_MILLIS) {
+					log.force(false);
+					lastForce = System.currentTimeMillis();
+					unforced = false;
+				}
+			}
+			if(log != null) {
+				log.force(false);
+				log.close();
+			}
+		}
+		catch(IOException e) {
+			// Autosave is best-effort; the project itself is untouched.
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Write out everything in the buffer.
+	 * 
+	 * @return the buffer, cleared
+	 */
+	private ByteBuffer flush(FileChannel log, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining() && log != null)
+			log.write(buffer);
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Save a snapshot as the next generation, start its log, and delete the old generation.
+	 * 
+	 * @return the new log
+	 */
+	private FileChannel startGeneration(Snapshot snapshot) throws IOException {
+		int next = generation + 1;
+		ProjectFile.save(snapshotPath(directory, next), snapshot.layers, snapshot.fps);
+		FileChannel log = FileChannel.open(logPath(directory, next), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		log.force(true);
+		delete(logPath(directory, generation));
+		delete(snapshotPath(directory, generation));
+		generation = next;
+		return log;
+	}
+	
+	/**
+	 * Delete an old file, leaving it if it can't be deleted yet (such as while it is still mapped).
+	 * Only the latest generation is ever recovered, so a leftover file is harmless.
+	 */
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		}
+		catch(IOException e) {
+			System.err.println("Couldn't delete old autosave " + file + ": " + e.getMessage());
+		}
+	}
+	
+	// --- Records. ---
+	
+	/**
+	 * Encode a record that is just a kind and some ints.
+	 */
+	private static byte[] encode(byte kind, int... values) {
+		ByteBuffer out = ByteBuffer.allocate(1 + 4 * values.length);
+		out.put(kind);
+		for(int value : values)
+			out.putInt(value);
+		return out.array();
+	}
+	
+	/**
+	 * A record that is encoded on the writer thread, from data copied on the model's thread.
+	 */
+	private interface LazyRecord {
+		byte[] encode();
+	}
+	
+	private static class RowRecord implements LazyRecord {
+		private int number;
+		private int id;
+		private Geometry shape;
+		
+		RowRecord(int number, int id, Geometry shape) {
+			this.number = number;
+			this.id = id;
+			this.shape = shape;
+		}
+		
+		public byte[] encode() {
+			ByteBuffer out = ByteBuffer.allocate(13 + shape.bytes());
+			out.put(KIND_ROW);
+			out.putInt(number);
+			out.putInt(id);
+			out.putInt(shape.size());
+			for(int row = 0; row < shape.size(); row++)
+				shape.writeRow(out, row);
+			return out.array();
+		}
+	}
+	
+	private static class FrameRecord implements LazyRecord {
+		private int position;
+		private int key;
+		private int number;
+		private Frame frame;
+		
+		FrameRecord(int position, int key, int number, Frame frame) {
+			this.position = position;
+			this.key = key;
+			this.number = number;
+			this.frame = frame;
+		}
+		
+		public byte[] encode() {
+			ByteBuffer encoded = frame.encode();
+			ByteBuffer out = ByteBuffer.allocate(21 + encoded.remaining());
+			out.put(KIND_FRAMEPUT);
+			out.putInt(position);
+			out.putInt(key);
+			out.putInt(number);
+			out.putInt(frame.size());
+			out.putInt(encoded.remaining());
+			out.put(encoded);
+			return out.array();
+		}
+	}
+	
+	private static class LayerRecord implements LazyRecord {
+		private int position;
+		private String name;
+		private boolean visible;
+		private float opacity;
+		private int[] keys;
+		private int[] holds;
+		private int[] numbers;
+		private List<Frame> frames;
+		
+		LayerRecord(int position, Layer layer, int[] numbers, List<Frame> frames) {
+			this.position = position;
+			this.name = layer.getName();
+			this.visible = layer.isVisible();
+			this.opacity = layer.getOpacity();
+			this.keys = new int[layer.size()];
+			this.holds = new int[layer.size()];
+			for(int i = 0; i < keys.length; i++) {
+				keys[i] = layer.keyAt(i);
+				holds[i] = layer.getHold(keys[i]);
+			}
+			this.numbers = numbers;
+			this.frames = frames;
+		}
+		
+		public byte[] encode() {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			ArrayList<ByteBuffer> encoded = new ArrayList<ByteBuffer>();
+			int length = 1 + 4 + 2 + nameBytes.length + 1 + 4 + 4;
+			for(Frame frame : frames) {
+				ByteBuffer e = frame.encode();
+				encoded.add(e);
+				length += 20 + e.remaining();
+			}
+			ByteBuffer out = ByteBuffer.allocate(length);
+			out.put(KIND_LAYERNEW);
+			out.putInt(position);
+			out.putShort((short) nameBytes.length);
+			out.put(nameBytes);
+			out.put((byte) (visible ? 1 : 0));
+			out.putFloat(opacity);
+			out.putInt(keys.length);
+			for(int i = 0; i < keys.length; i++) {
+				out.putInt(keys[i]);
+				out.putInt(holds[i]);
+				out.putInt(numbers[i]);
+				out.putInt(frames.get(i).size());
+				out.putInt(encoded.get(i).remaining());
+				out.put(encoded.get(i));
+			}
+			return out.array();
+		}
+	}
+	
+	/**
+	 * Copies of every layer, to be saved as the next generation's snapshot.
+	 */
+	private static class Snapshot {
+		private List<Layer> layers;
+		private int fps;
+		
+		Snapshot(List<Layer> layers, int fps) {
+			this.layers = layers;
+			this.fps = fps;
+		}
+	}
+	
+	// --- Replay. ---
+	
+	/**
+	 * Apply one logged record to a recovered project.
+	 * 
+	 * @param in		the record, after its length
+	 * @param layers	the project's layers
+	 * @param frames	the project's frames, by number
+	 */
+	private static void replay(ByteBuffer in, List<Layer> layers, ArrayList<Frame> frames) {
+		byte kind = in.get();
+		switch(kind) {
+			case KIND_ROW: {
+				Frame frame = frames.get(in.getInt());
+				int id = in.getInt();
+				int rows = in.getInt();
+				Geometry shape = new Geometry(rows);
+				for(int i = 0; i < rows; i++)
+					shape.readRow(in);
+				frame.put(id, shape, 0);
+				break;
+			}
+			case KIND_REMOVE:
+				frames.get(in.getInt()).remove(in.getInt());
+				break;
+			case KIND_RESTORE:
+				frames.get(in.getInt()).restore(in.getInt());
+				break;
+			case KIND_FRAMEPUT: {
+				Layer layer = layers.get(in.getInt());
+				int key = in.getInt();
+				setFrame(frames, in.getInt(), layer, key, readFrame(in));
+				break;
+			}
+			case KIND_FRAMEREMOVE:
+				layers.get(in.getInt()).remove(in.getInt());
+				break;
+			case KIND_HOLD:
+				layers.get(in.getInt()).setHold(in.getInt(), in.getInt());
+				break;
+			case KIND_LAYERNEW: {
+				int position = in.getInt();
+				byte[] name = new byte[in.getShort() & 0xFFFF];
+				in.get(name);
+				Layer layer = new Layer(new String(name, StandardCharsets.UTF_8));
+				layer.remove(0);
+				layer.setVisible(in.get() != 0);
+				layer.setOpacity(in.getFloat());
+				for(int count = in.getInt(); count > 0; count--) {
+					int key = in.getInt();
+					int hold = in.getInt();
+					setFrame(frames, in.getInt(), layer, key, readFrame(in));
+					layer.setHold(key, hold);
+				}
+				layers.add(position, layer);
+				break;
+			}
+			case KIND_LAYERMOVE: {
+				int from = in.getInt();
+				layers.add(in.getInt(), layers.remove(from));
+				break;
+			}
+			case KIND_LAYERPROPS: {
+				Layer layer = layers.get(in.getInt());
+				layer.setVisible(in.get() != 0);
+				layer.setOpacity(in.getFloat());
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Read a frame's object count and encoding, and decode it now (the log isn't kept mapped).
+	 */
+	private static Frame readFrame(ByteBuffer in) {
+		int size = in.getInt();
+		int length = in.getInt();
+		ByteBuffer encoded = ByteBuffer.allocate(length);
+		ByteBuffer slice = in.slice();
+		slice.limit(length);
+		encoded.put(slice);
+		encoded.flip();
+		in.position(in.position() + length);
+		return Frame.decodeLater(encoded, size, null);
+	}
+	
+	/**
+	 * Put a frame into a layer and give it its number.
+	 */
+	private static void setFrame(ArrayList<Frame> frames, int number, Layer layer, int key, Frame frame) {
+		while(frames.size() <= number)
+			frames.add(null);
+		frames.set(number, frame);
+		layer.put(key, frame);
+	}
+	
+	// --- Files. ---
+	
+	private static Path snapshotPath(Path directory, int generation) {
+		return directory.resolve("autosave-" + generation + ".anim");
+	}
+	
+	private static Path logPath(Path directory, int generation) {
+		return directory.resolve("autosave-" + generation + ".log");
+	}
+	
+	/**
+	 * Find the latest generation with a snapshot, or 0 if there is none.
+	 */
+	private static int latestGeneration(Path directory) {
+		int latest = 0;
+		if(!Files.isDirectory(directory))
+			return latest;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "autosave-*.anim")) {
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					latest = Math.max(latest, Integer.parseInt(name.substring(9, name.length() - 5)));
+				}
+				catch(NumberFormatException e) {
+					// Not one of ours.
+				}
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		return latest;
+	}
+}
@@ -1,18 +1,71 @@
 package animator;
 
 import java.awt.*;
+import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
 
 /**
  * CanvasObject is an abstract class that handles objects being drawn to the canvas.
+ * The object's shape lives in a row of a Geometry, or a run of rows starting with that one;
+ * the object is just a view onto it.
+ * A new object gets a Geometry of its own, and is moved into its frame's when added.
  *
  * @author Neill Johnston
  */
 public abstract class CanvasObject {
-    Point start;
-    Point end;
+    // Storage that this object is a view onto, and its row there.
+    Geometry geometry;
+    int row;
 
-    int strokeWidth;
-    Color color;
+    /**
+     * Construct a new object, with its own storage until it is added to a frame.
+     *
+     * @param type  Geometry row type of the object
+     */
+    protected CanvasObject(byte type) {
+        this.geometry = new Geometry(1);
+        this.row = geometry.add(type);
+    }
+
+    /**
+     * Construct a view onto an existing row.
+     *
+     * @param geometry  storage holding the object
+     * @param row       row of the object
+     */
+    protected CanvasObject(Geometry geometry, int row) {
+        this.geometry = geometry;
+        this.row = row;
+    }
+
+    /**
+     * Make a view of the right type onto a row.
+     *
+     * @param geometry  storage holding the object
+     * @param row       row of the object
+     * @return the view, or null if the row type is unknown
+     */
+    static CanvasObject view(Geometry geometry, int row) {
+        switch(geometry.getType(row)) {
+            case Geometry.TYPE_LINE:
+                return new LineObject(geometry, row);
+            case Geometry.TYPE_PEN:
+                return new PenObject(geometry, row);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Point this object at a different row, after its data has been copied there.
+     *
+     * @param geometry  storage now holding the object
+     * @param row       row of the object
+     */
+    void attach(Geometry geometry, int row) {
+        this.geometry = geometry;
+        this.row = row;
+    }
 
     /**
      * Paint the object.
@@ -20,7 +73,7 @@ public abstract class CanvasObject {
      * @param g2d   Graphics2D object to use
      */
     public void paint(Graphics2D g2d) {
-        // Empty method.
+        geometry.paint(g2d, row);
     }
 
     /**
@@ -30,9 +83,30 @@ public abstract class CanvasObject {
      * @param alpha		opacity (0.0-1.0)
      */
     void paint(Graphics2D g2d, double alpha) {
+        Composite oldComposite = g2d.getComposite();
         g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (float) alpha));
         paint(g2d);
-        g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1.0f));
+        g2d.setComposite(oldComposite);
+    }
+
+    /**
+     * Get the world-space bounds of the object, including its stroke width.
+     *
+     * @return a new Rectangle that covers everything the object paints
+     */
+    public Rectangle getBounds() {
+        return geometry.getBounds(row);
+    }
+
+    /**
+     * Test whether a point touches the object.
+     *
+     * @param p             world-space point
+     * @param tolerance     how far (in world units) the point may be from the object
+     * @return whether the point hits the object
+     */
+    public boolean hit(Point2D p, double tolerance) {
+        return geometry.hit(row, p.getX(), p.getY(), tolerance);
     }
 
     /**
@@ -42,25 +116,116 @@ public abstract class CanvasObject {
      */
     public void init(Point p) {
         // Begin the initial drag to create the object.
-        start = p;
-        end = p;
+        geometry.setStart(row, p.x, p.y);
+        geometry.setEnd(row, p.x, p.y);
         // Get tool settings.
-        this.strokeWidth = (int) Manager.tool.get(Manager.TOOL_WIDTH);
-        this.color = (Color) Manager.tool.get(Manager.TOOL_COLOR);
-
+        geometry.setWidth(row, (int) Manager.tool.get(Manager.TOOL_WIDTH));
+        geometry.setColor(row, (Color) Manager.tool.get(Manager.TOOL_COLOR));
     }
 
     /**
+     * Continue the drag motion to a new point.
      *
+     * @param p     Point the drag has reached
      */
     public void update(Point p) {
-        end = p;
+        geometry.setEnd(row, p.x, p.y);
     }
 
     /**
-     * Finish creating the object.
+     * Return the object's ID in the frame it was added to.
+     *
+     * @return the ID
+     */
+    public int getId() {
+        return row;
+    }
+
+    /**
+     * Finish creating the object, once it has been added to a frame.
+     *
+     * @param frame     frame the object was added to
+     * @param id        ID of the object in the frame
      */
-    public void fin() {
+    public void fin(Frame frame, int id) {
         // Empty method.
     }
+
+    // --- Commands ---
+
+    /**
+     * Changing an object's shape in place, kept as copies of the shape before and after.
+     * A run of changes to the same object merges into one, keeping the first before and the last after.
+     */
+    static class ChangeObjectCommand implements Command {
+        private Frame frame;
+        private int id;
+        private Geometry before;
+        private Geometry after;
+
+        /**
+         * @param frame     frame holding the object
+         * @param id        ID of the object
+         * @param before    shape before the change, from Frame.snapshot
+         * @param after     shape after the change, from Frame.snapshot
+         */
+        ChangeObjectCommand(Frame frame, int id, Geometry before, Geometry after) {
+            this.frame = frame;
+            this.id = id;
+            this.before = before;
+            this.after = after;
+        }
+
+        public void undo() {
+            frame.set(id, before, 0);
+        }
+
+        public void redo() {
+            frame.set(id, after, 0);
+        }
+
+        public int size() {
+            // The command and two Geometries of a few rows each.
+            return 512 + before.bytes() + after.bytes();
+        }
+
+        public boolean merge(Command next) {
+            if(!(next instanceof ChangeObjectCommand))
+                return false;
+            ChangeObjectCommand change = (ChangeObjectCommand) next;
+            if(change.frame != frame || change.id != id)
+                return false;
+            after = change.after;
+            return true;
+        }
+
+        public ByteBuffer write(ByteBuffer out, UndoJournal.Frames frames) {
+            out = UndoJournal.ensure(out, 13 + before.bytes() + after.bytes());
+            out.put(UndoJournal.KIND_CHANGEOBJECT);
+            out.putInt(frames.numberOf(frame));
+            out.putInt(id);
+            out.putInt(before.size());
+            for(int row = 0; row < before.size(); row++)
+                before.writeRow(out, row);
+            for(int row = 0; row < after.size(); row++)
+                after.writeRow(out, row);
+            return out;
+        }
+
+        /**
+         * Decode a command written by write, after its kind byte.
+         */
+        static ChangeObjectCommand read(ByteBuffer in, UndoJournal.Frames frames) {
+            Frame frame = frames.get(in.getInt());
+            int id = in.getInt();
+            int rows = in.getInt();
+            Geometry before = new Geometry(rows);
+            for(int i = 0; i < rows; i++)
+                before.readRow(in);
+            Geometry after = new Geometry(rows);
+            for(int i = 0; i < rows; i++)
+                after.readRow(in);
+            return new ChangeObjectCommand(frame, id, before, after);
+        }
+    }
 }
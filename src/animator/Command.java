@@ -1,7 +1,11 @@
 package animator;
 
+import java.nio.ByteBuffer;
+
 /**
  * Command represents an action that can be undo'd and redo'd.
+ * Commands should refer to what they changed (a frame and an object ID, say)
+ * rather than copy it, so that undo and redo take constant time.
  * 
  * @author Neill Johnston
  */
@@ -15,4 +19,30 @@ public interface Command {
      * Simple redo.
      */
     public void redo();
+
+    /**
+     * Estimate how much memory the command keeps alive, for the undo history's budget.
+     *
+     * @return approximate size in bytes
+     */
+    public int size();
+
+    /**
+     * Try to fold a command that came straight after this one into it,
+     * so that bursts of small edits (such as the steps of a drag) undo as one.
+     *
+     * @param next  the following command, already done
+     * @return whether next was folded in, and should not be kept on its own
+     */
+    public boolean merge(Command next);
+
+    /**
+     * Encode the command for an UndoJournal: a kind byte from UndoJournal, then the command's own fields.
+     * It is decoded again by UndoJournal.read.
+     *
+     * @param out       buffer to write to
+     * @param frames    table to write frames into, as numbers
+     * @return out, or a bigger copy of it if it ran out of room
+     */
+    public ByteBuffer write(ByteBuffer out, UndoJournal.Frames frames);
 }
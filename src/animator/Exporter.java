@@ -0,0 +1,635 @@
+package animator;
+
+import java.awt.Color;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Exporter writes the animation out as a PNG sequence, an animated GIF, an SVG sequence
+ * or an animated SVG. The layers are copied when the export starts, so the model can keep changing.
+ * 
+ * Exporting is a pipeline. Frames are rendered and quantized (GIF), rendered, encoded and
+ * written (PNG), or formatted as SVG, on a pool of workers, one frame per task, so every
+ * core is kept busy. An export thread keeps a bounded window of those tasks queued ahead
+ * in frame order, and takes finished frames off the front to write them to a single file
+ * in order. Only the frames in the window are ever in memory, however long the animation is.
+ * 
+ * A run of frames that show the same thing (holds) is only rendered once: a GIF or animated
+ * SVG shows it for longer, and a sequence of files copies the file.
+ * 
+ * @author Neill Johnston
+ */
+public class Exporter {
+	// Frames queued ahead, per worker.
+	private static final int WINDOW_PER_THREAD = 2;
+	
+	// Formats.
+	public static final int FORMAT_PNG = 0;
+	public static final int FORMAT_GIF = 1;
+	public static final int FORMAT_SVG = 2;
+	public static final int FORMAT_SVG_ANIMATED = 3;
+	
+	/**
+	 * Listener is told how the export is going. Both are called on the export thread.
+	 */
+	public interface Listener {
+		/**
+		 * Some more frames have been written.
+		 * 
+		 * @param done		frames written so far
+		 * @param total		frames to write
+		 */
+		public void progress(int done, int total);
+		
+		/**
+		 * The export has finished, failed or been cancelled.
+		 * 
+		 * @param error		what went wrong, or null
+		 */
+		public void finished(Exception error);
+	}
+	
+	private List<Layer> layers;
+	private int end;
+	private int fps;
+	private int width;
+	private int height;
+	private AffineTransform transform;
+	private Path path;
+	private int format;
+	private Listener listener;
+	
+	private ExecutorService pool;
+	private Thread thread;
+	private volatile boolean cancelled;
+	
+	/**
+	 * Set up an export of every frame up to the end of the last hold in any layer.
+	 * Must be called from the thread that owns the model (usually the EDT).
+	 * 
+	 * @param layers		layers to export, bottom first
+	 * @param fps			frames per second
+	 * @param width			width of the images
+	 * @param height		height of the images
+	 * @param transform		world-to-image transform
+	 * @param path			file to write to, or directory to write a sequence of files into
+	 * @param format		one of the FORMAT constants
+	 * @param listener		listener to tell about progress
+	 */
+	public Exporter(List<Layer> layers, int fps, int width, int height, AffineTransform transform,
+			Path path, int format, Listener listener) {
+		this.layers = new ArrayList<Layer>();
+		for(Layer layer : layers) {
+			this.layers.add(Layer.readOnlyCopy(layer));
+			if(layer.size() > 0) {
+				int last = layer.lastKey();
+				end = Math.max(end, last + layer.getHold(last));
+			}
+		}
+		this.fps = Math.max(1, fps);
+		this.width = width;
+		this.height = height;
+		this.transform = new AffineTransform(transform);
+		this.path = path;
+		this.format = format;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Start exporting in the background.
+	 */
+	public void start() {
+		final int threads = Runtime.getRuntime().availableProcessors();
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "export-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Exception error = null;
+				try {
+					export(threads * WINDOW_PER_THREAD);
+				}
+				catch(IOException | ExecutionException | InterruptedException e) {
+					error = e;
+				}
+				finally {
+					pool.shutdownNow();
+				}
+				listener.finished(error);
+			}
+		}, "export");
+		thread.start();
+	}
+	
+	/**
+	 * Stop exporting. Whatever has been written so far is left as it is.
+	 */
+	public void cancel() {
+		cancelled = true;
+		thread.interrupt();
+	}
+	
+	/**
+	 * Return the number of frames the export writes.
+	 * 
+	 * @return frames
+	 */
+	public int getFrameCount() {
+		return end;
+	}
+	
+	/**
+	 * Run the pipeline, on the export thread.
+	 * 
+	 * @param window	most frames to have queued at once
+	 */
+	private void export(int window) throws IOException, ExecutionException, InterruptedException {
+		Sequence sequence = null;
+		if(format == FORMAT_GIF)
+			sequence = new GifSequence(path, fps);
+		else if(format == FORMAT_SVG_ANIMATED)
+			sequence = new SvgSequence(path);
+		else
+			Files.createDirectories(path);
+		
+		ArrayDeque<Future<Object>> queued = new ArrayDeque<Future<Object>>();
+		ArrayDeque<int[]> runs = new ArrayDeque<int[]>();
+		int next = 0;
+		int done = 0;
+		try {
+			while(done < end) {
+				// Keep the window full, one task per run of identical frames.
+				while(next < end && queued.size() < window) {
+					int count = 1;
+					while(next + count < end && sameFrame(next + count - 1, next + count))
+						count++;
+					queued.add(pool.submit(task(next, count)));
+					runs.add(new int[] {next, count});
+					next += count;
+				}
+				
+				// Write the oldest frame, waiting for it if need be.
+				Object frame = queued.remove().get();
+				int[] run = runs.remove();
+				if(sequence != null)
+					sequence.write(frame, run[0], run[1]);
+				done += run[1];
+				listener.progress(done, end);
+				if(cancelled)
+					throw new InterruptedException("Export cancelled");
+			}
+		}
+		finally {
+			for(Future<Object> future : queued)
+				future.cancel(true);
+			if(sequence != null)
+				sequence.close();
+		}
+	}
+	
+	/**
+	 * Whether two frame indices show the same frame in every layer.
+	 */
+	private boolean sameFrame(int a, int b) {
+		for(Layer layer : layers)
+			if(layer.getExposed(a) != layer.getExposed(b))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Make the worker task for a run of identical frames, copying the frame out of the layers now.
+	 * 
+	 * @param index		index of the first frame of the run
+	 * @param count		number of frames in the run
+	 * @return a task returning the frame for the sequence (GIF and animated SVG), or writing the files
+	 */
+	private Callable<Object> task(final int index, final int count) {
+		if(format == FORMAT_SVG || format == FORMAT_SVG_ANIMATED) {
+			final SvgWriter.Frames frames = new SvgWriter.Frames(layers, index);
+			return new Callable<Object>() {
+				@Override
+				public Object call() throws IOException {
+					StringBuilder svg = new StringBuilder();
+					if(format == FORMAT_SVG_ANIMATED) {
+						SvgWriter.writeFrames(svg, frames, (double) index / fps, (double) (index + count) / fps,
+								(double) end / fps);
+						return svg.toString().getBytes(StandardCharsets.UTF_8);
+					}
+					SvgWriter.writeHeader(svg, width, height, transform);
+					SvgWriter.writeFrames(svg, frames);
+					SvgWriter.writeFooter(svg);
+					writeRun(svg.toString().getBytes(StandardCharsets.UTF_8), index, count, ".svg");
+					return null;
+				}
+			};
+		}
+		
+		final Callable<BufferedImage> render = RenderEngine.prepare(layers, index, width, height,
+				transform, format == FORMAT_GIF ? Color.white : null);
+		return new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				BufferedImage image = render.call();
+				if(format == FORMAT_GIF)
+					return quantize(image);
+				
+				Path first = path.resolve(fileName(index, ".png"));
+				if(!ImageIO.write(image, "png", first.toFile()))
+					throw new IOException("No PNG writer");
+				copyRun(first, index, count, ".png");
+				return null;
+			}
+		};
+	}
+	
+	/**
+	 * Write a file for every frame of a run.
+	 */
+	private void writeRun(byte[] contents, int index, int count, String extension) throws IOException {
+		Path first = path.resolve(fileName(index, extension));
+		Files.write(first, contents);
+		copyRun(first, index, count, extension);
+	}
+	
+	/**
+	 * Copy the file for the first frame of a run to the rest of it.
+	 */
+	private void copyRun(Path first, int index, int count, String extension) throws IOException {
+		for(int i = 1; i < count; i++)
+			Files.copy(first, path.resolve(fileName(index + i, extension)), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Return the file name of a frame in a sequence of files.
+	 */
+	private static String fileName(int index, String extension) {
+		return String.format("frame%05d", index) + extension;
+	}
+	
+	// --- Quantization. ---
+	
+	/**
+	 * Reduce an opaque image to a palette of at most 256 colors, by median cut over a
+	 * histogram of 15-bit colors. Images with few colors, as line art usually has, keep
+	 * their colors exactly.
+	 * 
+	 * @param image		image to quantize
+	 * @return an indexed image with its own palette
+	 */
+	static BufferedImage quantize(BufferedImage image) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int[] pixels = image.getRGB(0, 0, w, h, null, 0, w);
+		
+		// Exact palette, if there are few enough colors.
+		int[] colors = new int[256];
+		int colorCount = 0;
+		int lastColor = 0;
+		int lastIndex = -1;
+		for(int i = 0; i < pixels.length && colorCount <= 256; i++) {
+			int rgb = pixels[i] & 0xFFFFFF;
+			if(lastIndex >= 0 && rgb == lastColor)
+				continue;
+			lastColor = rgb;
+			lastIndex = indexOf(colors, colorCount, rgb);
+			if(lastIndex < 0 && colorCount < 256)
+				colors[lastIndex = colorCount++] = rgb;
+			else if(lastIndex < 0)
+				colorCount++;
+		}
+		
+		byte[] indices = new byte[pixels.length];
+		if(colorCount <= 256) {
+			Arrays.sort(colors, 0, colorCount);
+			for(int i = 0; i < pixels.length; i++)
+				indices[i] = (byte) Arrays.binarySearch(colors, 0, colorCount, pixels[i] & 0xFFFFFF);
+		}
+		else {
+			int[] histogram = new int[1 << 15];
+			for(int pixel : pixels)
+				histogram[bin(pixel)]++;
+			colors = medianCut(histogram, 256);
+			colorCount = colors.length;
+			// Map each bin to its nearest palette color, the first time the bin is seen.
+			short[] nearest = new short[1 << 15];
+			Arrays.fill(nearest, (short) -1);
+			for(int i = 0; i < pixels.length; i++) {
+				int b = bin(pixels[i]);
+				if(nearest[b] < 0)
+					nearest[b] = (short) nearest(colors, pixels[i]);
+				indices[i] = (byte) nearest[b];
+			}
+		}
+		
+		byte[] r = new byte[colorCount];
+		byte[] g = new byte[colorCount];
+		byte[] b = new byte[colorCount];
+		for(int i = 0; i < colorCount; i++) {
+			r[i] = (byte) (colors[i] >> 16);
+			g[i] = (byte) (colors[i] >> 8);
+			b[i] = (byte) colors[i];
+		}
+		int bits = 1;
+		while(1 << bits < colorCount)
+			bits++;
+		IndexColorModel model = new IndexColorModel(bits, colorCount, r, g, b);
+		BufferedImage indexed = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, model);
+		indexed.getRaster().setDataElements(0, 0, w, h, indices);
+		return indexed;
+	}
+	
+	private static int indexOf(int[] colors, int count, int rgb) {
+		for(int i = 0; i < count; i++)
+			if(colors[i] == rgb)
+				return i;
+		return -1;
+	}
+	
+	/**
+	 * Return the 15-bit histogram bin of a color.
+	 */
+	private static int bin(int rgb) {
+		return ((rgb >> 9) & 0x7C00) | ((rgb >> 6) & 0x3E0) | ((rgb >> 3) & 0x1F);
+	}
+	
+	/**
+	 * Split the histogram into boxes, each time halving the box with the most pixels
+	 * along its longest side, and return the average color of each box.
+	 * 
+	 * @param histogram		pixel counts by 15-bit color
+	 * @param colors		most colors to return
+	 * @return the palette
+	 */
+	private static int[] medianCut(int[] histogram, int colors) {
+		ArrayList<int[]> boxes = new ArrayList<int[]>();
+		// Boxes are {r0, r1, g0, g1, b0, b1, pixels}, inclusive.
+		boxes.add(shrink(histogram, new int[] {0, 31, 0, 31, 0, 31, 0}));
+		while(boxes.size() < colors) {
+			int[] box = null;
+			for(int[] candidate : boxes)
+				if(splittable(candidate) && (box == null || candidate[6] > box[6]))
+					box = candidate;
+			if(box == null)
+				break;
+			
+			// Split along the longest side, at the median pixel.
+			int side = 0;
+			for(int s = 2; s < 6; s += 2)
+				if(box[s + 1] - box[s] > box[side + 1] - box[side])
+					side = s;
+			int[] counts = new int[32];
+			for(int bin = 0; bin < histogram.length; bin++)
+				if(histogram[bin] > 0 && inside(box, bin))
+					counts[channel(bin, side)] += histogram[bin];
+			int split = box[side];
+			int sum = counts[split];
+			while(split < box[side + 1] - 1 && sum + counts[split + 1] <= box[6] / 2)
+				sum += counts[++split];
+			
+			int[] low = box.clone();
+			int[] high = box.clone();
+			low[side + 1] = split;
+			high[side] = split + 1;
+			boxes.remove(box);
+			boxes.add(shrink(histogram, low));
+			boxes.add(shrink(histogram, high));
+		}
+		
+		int[] palette = new int[boxes.size()];
+		for(int i = 0; i < palette.length; i++)
+			palette[i] = average(histogram, boxes.get(i));
+		return palette;
+	}
+	
+	private static boolean splittable(int[] box) {
+		return box[6] > 0 && (box[1] > box[0] || box[3] > box[2] || box[5] > box[4]);
+	}
+	
+	private static boolean inside(int[] box, int bin) {
+		int r = bin >> 10;
+		int g = (bin >> 5) & 0x1F;
+		int b = bin & 0x1F;
+		return r >= box[0] && r <= box[1] && g >= box[2] && g <= box[3] && b >= box[4] && b <= box[5];
+	}
+	
+	private static int channel(int bin, int side) {
+		return (bin >> (10 - side / 2 * 5)) & 0x1F;
+	}
+	
+	/**
+	 * Shrink a box to the bins in it that have pixels, and count them.
+	 */
+	private static int[] shrink(int[] histogram, int[] box) {
+		int[] shrunk = {31, 0, 31, 0, 31, 0, 0};
+		for(int bin = 0; bin < histogram.length; bin++) {
+			if(histogram[bin] == 0 || !inside(box, bin))
+				continue;
+			for(int side = 0; side < 6; side += 2) {
+				int c = channel(bin, side);
+				shrunk[side] = Math.min(shrunk[side], c);
+				shrunk[side + 1] = Math.max(shrunk[side + 1], c);
+			}
+			shrunk[6] += histogram[bin];
+		}
+		return shrunk[6] > 0 ? shrunk : box;
+	}
+	
+	/**
+	 * Return the average color of the pixels in a box.
+	 */
+	private static int average(int[] histogram, int[] box) {
+		long r = 0, g = 0, b = 0, n = 0;
+		for(int bin = 0; bin < histogram.length; bin++) {
+			if(histogram[bin] == 0 || !inside(box, bin))
+				continue;
+			int count = histogram[bin];
+			r += ((bin >> 10) * 255 / 31) * (long) count;
+			g += (((bin >> 5) & 0x1F) * 255 / 31) * (long) count;
+			b += ((bin & 0x1F) * 255 / 31) * (long) count;
+			n += count;
+		}
+		if(n == 0)
+			return 0;
+		return (int) (r / n) << 16 | (int) (g / n) << 8 | (int) (b / n);
+	}
+	
+	/**
+	 * Return the index of the palette color nearest a color.
+	 */
+	private static int nearest(int[] palette, int rgb) {
+		int best = 0;
+		int bestDistance = Integer.MAX_VALUE;
+		for(int i = 0; i < palette.length; i++) {
+			int dr = ((palette[i] >> 16) & 0xFF) - ((rgb >> 16) & 0xFF);
+			int dg = ((palette[i] >> 8) & 0xFF) - ((rgb >> 8) & 0xFF);
+			int db = (palette[i] & 0xFF) - (rgb & 0xFF);
+			int distance = dr * dr + dg * dg + db * db;
+			if(distance < bestDistance) {
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+	
+	// --- Single-file formats. ---
+	
+	/**
+	 * A file that frames are written to one at a time, in order.
+	 */
+	private interface Sequence {
+		/**
+		 * Write a frame, shown for a run of frame indices.
+		 * 
+		 * @param frame		frame as returned by its task
+		 * @param index		index of the first frame of the run
+		 * @param count		number of frames in the run
+		 */
+		void write(Object frame, int index, int count) throws IOException;
+		
+		void close() throws IOException;
+	}
+	
+	/**
+	 * An animated GIF being written a frame at a time, looping forever.
+	 */
+	private static class GifSequence implements Sequence {
+		private ImageWriter writer;
+		private ImageOutputStream out;
+		private int fps;
+		private boolean first;
+		
+		GifSequence(Path path, int fps) throws IOException {
+			this.writer = ImageIO.getImageWritersByFormatName("gif").next();
+			// The stream writes over an existing file without truncating it.
+			Files.deleteIfExists(path);
+			this.out = ImageIO.createImageOutputStream(path.toFile());
+			this.fps = fps;
+			this.first = true;
+			writer.setOutput(out);
+			writer.prepareWriteSequence(null);
+		}
+		
+		@Override
+		public void write(Object frame, int index, int count) throws IOException {
+			BufferedImage image = (BufferedImage) frame;
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+			String format = metadata.getNativeMetadataFormatName();
+			IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+			
+			// Delays are in hundredths of a second; round the run's end time so delays don't drift.
+			int delay = (int) (Math.round((index + count) * 100.0 / fps) - Math.round(index * 100.0 / fps));
+			IIOMetadataNode control = child(root, "GraphicControlExtension");
+			control.setAttribute("disposalMethod", "none");
+			control.setAttribute("userInputFlag", "FALSE");
+			control.setAttribute("transparentColorFlag", "FALSE");
+			control.setAttribute("delayTime", Integer.toString(Math.max(1, delay)));
+			control.setAttribute("transparentColorIndex", "0");
+			
+			if(first) {
+				IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+				loop.setAttribute("applicationID", "NETSCAPE");
+				loop.setAttribute("authenticationCode", "2.0");
+				loop.setUserObject(new byte[] {1, 0, 0});
+				child(root, "ApplicationExtensions").appendChild(loop);
+				first = false;
+			}
+			
+			metadata.setFromTree(format, root);
+			writer.writeToSequence(new IIOImage(image, null, metadata), param);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				if(!first)
+					writer.endWriteSequence();
+			}
+			finally {
+				out.close();
+				writer.dispose();
+			}
+		}
+		
+		/**
+		 * Return a metadata node's child, adding it if there is none.
+		 */
+		private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+			for(int i = 0; i < parent.getLength(); i++)
+				if(parent.item(i).getNodeName().equals(name))
+					return (IIOMetadataNode) parent.item(i);
+			IIOMetadataNode node = new IIOMetadataNode(name);
+			parent.appendChild(node);
+			return node;
+		}
+	}
+	
+	/**
+	 * An animated SVG document, each frame written as a group with its own animation.
+	 */
+	private class SvgSequence implements Sequence {
+		private OutputStream out;
+		
+		SvgSequence(Path path) throws IOException {
+			this.out = new BufferedOutputStream(Files.newOutputStream(path));
+			StringBuilder header = new StringBuilder();
+			SvgWriter.writeHeader(header, width, height, transform);
+			out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		
+		@Override
+		public void write(Object frame, int index, int count) throws IOException {
+			out.write((byte[]) frame);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				StringBuilder footer = new StringBuilder();
+				SvgWriter.writeFooter(footer);
+				out.write(footer.toString().getBytes(StandardCharsets.UTF_8));
+			}
+			finally {
+				out.close();
+			}
+		}
+	}
+}
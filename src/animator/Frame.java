@@ -1,12 +1,23 @@
 package animator;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
+import java.awt.Composite;
 import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import javax.swing.BorderFactory;
 import javax.swing.JComponent;
@@ -14,28 +25,829 @@ import javax.swing.JComponent;
 /**
  * Frame is the basic form of an animation frame.
  * Includes whatever strokes exist to display on the canvas.
- * It is a HashMap of CanvasObjects.
+ * Objects are stored as rows of a Geometry in the order they were added, each
+ * under an ID that is its first row, so IDs are stable and painting order is fixed.
+ * Removing an object leaves a gap rather than shifting the ones after it,
+ * and a removed object can be restored under its old ID.
+ * Keeps a raster cache of its objects so the canvas does not have to redraw
+ * every committed object on every repaint, and a spatial index of their bounds
+ * so that painting and hit-testing only look at objects in the area of interest.
  * 
  * @author Neill Johnston
  */
-public class Frame extends HashMap<Integer, CanvasObject> {
+public class Frame implements Iterable<CanvasObject> {
+	// Shapes of all the objects, by ID, or null until they are decoded from source.
+	private Geometry geometry;
+	// Encoded shapes from a project file, still to be decoded.
+	private transient Source source;
+	// Number of objects that haven't been removed.
+	private int size;
+	
+	// Raster caches of all committed objects: one in full color, one tinted for onion skins.
+	private transient Raster cache;
+	private transient Raster onionCache;
+	// Spatial index over object bounds, built on first use.
+	private transient QuadTree index;
+	// Whether the index is shared with a copy, and so must not be changed.
+	private transient boolean indexShared;
+	// Bumped on every change, so caches built from this frame can tell when they are stale.
+	private transient int version;
+	// Objects left out of the raster caches, in ascending order, or null.
+	private transient int[] hidden;
+	
 	public Frame() {
+		geometry = new Geometry();
 	}
 	
 	/**
-	 * Deep-copy an original frame.
-	 * TODO: un-break this.
-	 * TODO: because it really doesn't work now.
-	 * TODO: at all.
+	 * Copy an original frame, keeping the same IDs.
+	 * Takes constant time: the copies share geometry and spatial index until one of them is edited,
+	 * and editing either one never changes the other.
 	 * 
 	 * @param original	frame to be copied
-	 * @return a deep copy of Frame original
+	 * @return a copy of Frame original
 	 */
 	public static Frame copy(Frame original) {
-		// TODO: un-break this.
-		Frame clone = (Frame) original.clone();
+		Frame clone = readOnlyCopy(original);
+		if(original.index != null) {
+			clone.index = original.index;
+			clone.indexShared = true;
+			original.indexShared = true;
+		}
 		return clone;
 	}
+	
+	/**
+	 * Copy a frame to be painted, encoded or written out, such as by a render or an autosave.
+	 * Shares only the geometry, so the original keeps its spatial index to itself, and editing it
+	 * afterwards doesn't have to build the index again. The copy builds its own if it is ever searched.
+	 * 
+	 * @param original	frame to be copied
+	 * @return a copy of Frame original
+	 */
+	public static Frame readOnlyCopy(Frame original) {
+		Frame clone = new Frame();
+		// A frame that hasn't been decoded yet just shares its source.
+		if(original.geometry == null) {
+			clone.geometry = null;
+			clone.source = original.source;
+		}
+		else
+			clone.geometry = original.geometry.copy();
+		clone.size = original.size;
+		return clone;
+	}
+	
+	// Kinds of frame encoding: every row, or only the rows that differ from the frame before.
+	private static final byte KIND_KEY = 0;
+	private static final byte KIND_DELTA = 1;
+	
+	/**
+	 * Make a frame whose objects are decoded the first time they are needed.
+	 * 
+	 * @param encoding	the frame's encoding, as written by encode
+	 * @param size		number of objects, so size and isEmpty don't need to decode
+	 * @param previous	the frame encoded just before, which a delta is applied to, or null
+	 * @return the frame
+	 */
+	static Frame decodeLater(ByteBuffer encoding, int size, Frame previous) {
+		Frame frame = new Frame();
+		frame.geometry = null;
+		frame.source = new Source(encoding, isDelta(encoding) ? previous.source : null);
+		frame.size = size;
+		return frame;
+	}
+	
+	/**
+	 * Whether an encoding is a delta, and so can only be decoded on top of the frame before it.
+	 * 
+	 * @param encoding	the encoding, from its position
+	 * @return whether it is a delta
+	 */
+	static boolean isDelta(ByteBuffer encoding) {
+		return encoding.get(encoding.position()) == KIND_DELTA;
+	}
+	
+	/**
+	 * Encode all of the frame's objects: a kind, a row count, then each row, removed ones
+	 * included so that IDs survive.
+	 * 
+	 * @return a buffer holding the encoding, from its position to its limit
+	 */
+	ByteBuffer encode() {
+		return encode(null);
+	}
+	
+	/**
+	 * Encode the frame's objects as a delta from another frame if that is smaller:
+	 * a kind, a row count, a count of changed rows, then each of those rows and its ID.
+	 * Added, removed and changed objects are all changed rows. A frame that hasn't been
+	 * decoded is passed through as is when its encoding would be the same.
+	 * 
+	 * @param base		frame to encode the difference from, usually the one before, or null
+	 * @return a buffer holding the encoding, from its position to its limit
+	 */
+	ByteBuffer encode(Frame base) {
+		if(geometry == null && (source.base == null
+				|| (base != null && base.geometry == null && source.base == base.source)))
+			return source.bytes.duplicate();
+		
+		Geometry shape = geometry();
+		int[] rows = null;
+		if(base != null && base.geometry().size() <= shape.size()) {
+			rows = shape.diff(base.geometry());
+			int deltaBytes = 9;
+			for(int row : rows)
+				deltaBytes += 4 + shape.rowBytes(row);
+			if(deltaBytes >= 5 + shape.bytes())
+				rows = null;
+		}
+		
+		ByteBuffer out;
+		if(rows == null) {
+			out = ByteBuffer.allocate(5 + shape.bytes());
+			out.put(KIND_KEY);
+			out.putInt(shape.size());
+			for(int row = 0; row < shape.size(); row++)
+				shape.writeRow(out, row);
+		}
+		else {
+			int bytes = 9;
+			for(int row : rows)
+				bytes += 4 + shape.rowBytes(row);
+			out = ByteBuffer.allocate(bytes);
+			out.put(KIND_DELTA);
+			out.putInt(shape.size());
+			out.putInt(rows.length);
+			for(int row : rows) {
+				out.putInt(row);
+				shape.writeRow(out, row);
+			}
+		}
+		out.flip();
+		return out;
+	}
+	
+	/**
+	 * Decode the frame now if it is still read from a project file, so that the file can be replaced.
+	 */
+	void detach() {
+		geometry();
+	}
+	
+	/**
+	 * Return the frame's geometry, decoding it first if this frame was loaded from a project file.
+	 * Like the rest of the model, this is only safe to call from one thread at a time.
+	 * 
+	 * @return the geometry
+	 */
+	private Geometry geometry() {
+		if(geometry == null) {
+			geometry = source.copy();
+			source = null;
+		}
+		return geometry;
+	}
+	
+	/**
+	 * An encoded frame, decoded at most once however many frames are loaded from it.
+	 * A delta is decoded onto a copy of the frame before it, so the two share every chunk
+	 * of rows the delta doesn't touch, and frames that were duplicated share memory once
+	 * loaded just as they did before they were saved.
+	 */
+	private static class Source {
+		private ByteBuffer bytes;
+		// Source the delta applies to, or null for a key frame.
+		private Source base;
+		// Decoded shapes, only ever copied, never written.
+		private Geometry decoded;
+		
+		Source(ByteBuffer bytes, Source base) {
+			this.bytes = bytes;
+			this.base = base;
+		}
+		
+		/**
+		 * Return a copy of the decoded frame, decoding it first if no frame has yet.
+		 * Frames copied for rendering may decode on other threads, so this is synchronized.
+		 * 
+		 * @return a Geometry of its own, sharing chunks with every other copy
+		 */
+		synchronized Geometry copy() {
+			return decode().copy();
+		}
+		
+		/**
+		 * Decode the frame, unless it already has been.
+		 */
+		private Geometry decode() {
+			if(decoded != null)
+				return decoded;
+			ByteBuffer in = bytes.duplicate();
+			byte kind = in.get();
+			int rows = in.getInt();
+			if(kind == KIND_KEY) {
+				decoded = new Geometry(rows);
+				for(int i = 0; i < rows; i++)
+					decoded.readRow(in);
+			}
+			else {
+				decoded = base.copy();
+				int changes = in.getInt();
+				Geometry changed = new Geometry(changes);
+				for(int i = 0; i < changes; i++) {
+					int row = in.getInt();
+					changed.readRow(in);
+					if(row < decoded.size())
+						decoded.set(row, changed, i);
+					else
+						decoded.add(changed, i);
+				}
+			}
+			return decoded;
+		}
+	}
+	
+	/**
+	 * Add an object on top of all the others.
+	 * The object's shape is moved into this frame, and the object becomes a view onto it.
+	 * 
+	 * @param co	object to add
+	 * @return the object's new ID
+	 */
+	public int add(CanvasObject co) {
+		int id = geometry().add(co.geometry, co.row);
+		int end = co.geometry.next(co.row);
+		for(int part = co.row + 1; part < end; part++)
+			geometry().add(co.geometry, part);
+		co.attach(geometry(), id);
+		size++;
+		
+		invalidate();
+		QuadTree owned = writableIndex();
+		if(owned != null)
+			owned.insert(id, geometry().getBounds(id));
+		Autosave.rowChanged(this, id);
+		return id;
+	}
+	
+	/**
+	 * Return a view of an object.
+	 * 
+	 * @param id	ID of the object
+	 * @return a view onto the object, or null if there is none with that ID
+	 */
+	public CanvasObject get(int id) {
+		return geometry().isObject(id) ? CanvasObject.view(geometry(), id) : null;
+	}
+	
+	/**
+	 * Remove an object.
+	 * 
+	 * @param id	ID of the object
+	 * @return whether there was an object with that ID
+	 */
+	public boolean remove(int id) {
+		if(!geometry().isObject(id))
+			return false;
+		int end = geometry().next(id);
+		for(int row = id; row < end; row++)
+			geometry().remove(row);
+		size--;
+		
+		invalidate();
+		QuadTree owned = writableIndex();
+		if(owned != null)
+			owned.remove(id);
+		Autosave.rowRemoved(this, id);
+		return true;
+	}
+	
+	/**
+	 * Bring back a removed object under its old ID.
+	 * 
+	 * @param id	ID of the removed object
+	 * @return whether there was a removed object with that ID
+	 */
+	public boolean restore(int id) {
+		if(geometry().isPart(id) || !geometry().restore(id))
+			return false;
+		int end = geometry().next(id);
+		for(int row = id + 1; row < end; row++)
+			geometry().restore(row);
+		size++;
+		
+		invalidate();
+		QuadTree owned = writableIndex();
+		if(owned != null)
+			owned.insert(id, geometry().getBounds(id));
+		Autosave.rowRestored(this, id);
+		return true;
+	}
+	
+	/**
+	 * Copy an object's shape out of the frame, so it can be put back later with set.
+	 * 
+	 * @param id	ID of the object
+	 * @return a Geometry holding the shape, from its first row
+	 */
+	public Geometry snapshot(int id) {
+		Geometry copy = new Geometry(geometry().next(id) - id);
+		snapshot(id, copy);
+		return copy;
+	}
+	
+	/**
+	 * Copy an object's shape onto the end of a Geometry, so that several can be kept together.
+	 * 
+	 * @param id		ID of the object
+	 * @param copy		Geometry to add the shape's rows to
+	 */
+	public void snapshot(int id, Geometry copy) {
+		int end = geometry().next(id);
+		for(int row = id; row < end; row++)
+			copy.add(geometry(), row);
+	}
+	
+	/**
+	 * Replace an object's shape with a copy of one taken by snapshot.
+	 * 
+	 * @param id		ID of the object
+	 * @param shape		Geometry holding the new shape
+	 * @param row		row of the new shape
+	 */
+	public void set(int id, Geometry shape, int row) {
+		int end = shape.next(row);
+		for(int part = 0; row + part < end; part++)
+			geometry().set(id + part, shape, row + part);
+		reindex(id);
+		Autosave.rowChanged(this, id);
+	}
+	
+	/**
+	 * Set an object's shape, adding it if the ID is the next one to be used.
+	 * Used to replay an autosave log, which records added and changed objects alike.
+	 * 
+	 * @param id		ID of the object
+	 * @param shape		Geometry holding the shape
+	 * @param row		row of the shape
+	 */
+	void put(int id, Geometry shape, int row) {
+		if(id < geometry().size()) {
+			set(id, shape, row);
+			return;
+		}
+		int end = shape.next(row);
+		for(; row < end; row++)
+			geometry().add(shape, row);
+		size++;
+		invalidate();
+		QuadTree owned = writableIndex();
+		if(owned != null)
+			owned.insert(id, geometry().getBounds(id));
+	}
+	
+	/**
+	 * Move an object.
+	 * 
+	 * @param id	ID of the object
+	 * @param dx	distance to move along x
+	 * @param dy	distance to move along y
+	 */
+	public void translate(int id, float dx, float dy) {
+		int end = geometry().next(id);
+		for(int row = id; row < end; row++)
+			geometry().translate(row, dx, dy);
+		reindex(id);
+		Autosave.rowChanged(this, id);
+	}
+	
+	/**
+	 * Transform an object, such as to move or scale it.
+	 * 
+	 * @param id			ID of the object
+	 * @param transform		transform to apply to the object's points
+	 */
+	public void transform(int id, AffineTransform transform) {
+		if(!geometry().isObject(id))
+			return;
+		int end = geometry().next(id);
+		for(int row = id; row < end; row++)
+			geometry().transform(row, transform);
+		if(geometry().getType(id) == Geometry.TYPE_PEN)
+			geometry().fitBounds(id);
+		reindex(id);
+		Autosave.rowChanged(this, id);
+	}
+	
+	/**
+	 * Return the ID of the topmost object.
+	 * 
+	 * @return the last ID still in use, or -1 if the frame is empty
+	 */
+	public int lastId() {
+		int id = geometry().size() - 1;
+		while(id >= 0 && !geometry().isObject(id))
+			id--;
+		return id;
+	}
+	
+	/**
+	 * Return the number of objects.
+	 * 
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Iterate over views of the objects, from bottom to top.
+	 * Painting should use paint(Graphics2D), which doesn't make views.
+	 */
+	@Override
+	public Iterator<CanvasObject> iterator() {
+		return new Iterator<CanvasObject>() {
+			private int next = skip(0);
+			
+			@Override
+			public boolean hasNext() {
+				return next < geometry().size();
+			}
+			
+			@Override
+			public CanvasObject next() {
+				if(next >= geometry().size())
+					throw new NoSuchElementException();
+				CanvasObject co = CanvasObject.view(geometry(), next);
+				next = skip(next + 1);
+				return co;
+			}
+			
+			/**
+			 * Return the first ID at or after id that is still in use.
+			 */
+			private int skip(int id) {
+				while(id < geometry().size() && !geometry().isObject(id))
+					id++;
+				return id;
+			}
+		};
+	}
+	
+	/**
+	 * Paint every object in world space, from bottom to top.
+	 * 
+	 * @param g2d		Graphics2D object to use, already transformed to world space
+	 */
+	public void paint(Graphics2D g2d) {
+		geometry().paint(g2d);
+	}
+	
+	/**
+	 * Write the frame's objects as SVG.
+	 * 
+	 * @param out		builder to append the elements to
+	 */
+	public void writeSvg(StringBuilder out) {
+		geometry().writeSvg(out);
+	}
+	
+	/**
+	 * Mark the raster cache as stale.
+	 * Call this whenever an object already in the frame is changed in place.
+	 */
+	public void invalidate() {
+		version++;
+		if(cache != null)
+			cache.dirty = true;
+		if(onionCache != null)
+			onionCache.dirty = true;
+	}
+	
+	/**
+	 * Throw away the raster cache, such as when the frame goes off screen.
+	 * It is drawn again the next time the frame is painted.
+	 */
+	public void releaseCache() {
+		cache = null;
+	}
+	
+	/**
+	 * Throw away the onion skin raster, such as when the frame leaves the onion skin depth.
+	 */
+	public void releaseOnionCache() {
+		onionCache = null;
+	}
+	
+	/**
+	 * Return a number that changes whenever the frame does.
+	 * 
+	 * @return the version
+	 */
+	public int getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Update the spatial index after an object already in the frame has moved or changed shape.
+	 * 
+	 * @param id	ID of the object
+	 */
+	public void reindex(int id) {
+		invalidate();
+		QuadTree owned = writableIndex();
+		if(owned != null && geometry().isObject(id))
+			owned.insert(id, geometry().getBounds(id));
+	}
+	
+	/**
+	 * Return the bounds of all the objects, including their stroke widths.
+	 * 
+	 * @return a new Rectangle covering everything the frame paints, or null if it is empty
+	 */
+	public Rectangle getBounds() {
+		Geometry shape = geometry();
+		Rectangle bounds = null;
+		for(int id = 0; id < shape.size(); id++) {
+			if(!shape.isObject(id))
+				continue;
+			if(bounds == null)
+				bounds = shape.getBounds(id);
+			else
+				bounds.add(shape.getBounds(id));
+		}
+		return bounds;
+	}
+	
+	/**
+	 * Find all the objects whose bounds intersect an area.
+	 * 
+	 * @param area		world-space area to search
+	 * @return views of the objects found, from bottom to top
+	 */
+	public ArrayList<CanvasObject> query(Rectangle area) {
+		int[] ids = queryIds(area);
+		ArrayList<CanvasObject> found = new ArrayList<CanvasObject>(ids.length);
+		for(int id : ids)
+			found.add(CanvasObject.view(geometry(), id));
+		return found;
+	}
+	
+	/**
+	 * Find all the objects that lie wholly inside an area, such as a selection box or lasso.
+	 * 
+	 * @param area		world-space area
+	 * @return the IDs found, in ascending order
+	 */
+	public int[] select(Shape area) {
+		int[] ids = queryIds(area.getBounds());
+		int count = 0;
+		for(int id : ids)
+			if(geometry().within(id, area))
+				ids[count++] = id;
+		return Arrays.copyOf(ids, count);
+	}
+	
+	/**
+	 * Leave some objects out of the raster caches, while something else draws them.
+	 * 
+	 * @param ids		IDs of the objects in ascending order, or null to draw every object again
+	 */
+	void setHidden(int[] ids) {
+		hidden = ids;
+		invalidate();
+	}
+	
+	/**
+	 * Paint some of the frame's objects in world space, from bottom to top.
+	 * 
+	 * @param g2d		Graphics2D object to use, already transformed to world space
+	 * @param ids		IDs of the objects in ascending order
+	 */
+	public void paint(Graphics2D g2d, int[] ids) {
+		geometry().paint(g2d, ids, ids.length);
+	}
+	
+	/**
+	 * Find the topmost object under a point.
+	 * 
+	 * @param p			world-space point
+	 * @param tolerance	how far (in world units) the point may be from the object
+	 * @return a view of the object hit, or null if there is none
+	 */
+	public CanvasObject objectAt(Point2D p, double tolerance) {
+		int reach = (int) Math.ceil(tolerance);
+		Rectangle area = new Rectangle((int) Math.floor(p.getX()) - reach, (int) Math.floor(p.getY()) - reach,
+				2 * reach + 1, 2 * reach + 1);
+		int[] ids = queryIds(area);
+		for(int i = ids.length - 1; i >= 0; i--)
+			if(geometry().hit(ids[i], p.getX(), p.getY(), tolerance))
+				return CanvasObject.view(geometry(), ids[i]);
+		return null;
+	}
+	
+	/**
+	 * Find the IDs of all the objects whose bounds intersect an area.
+	 * 
+	 * @param area		world-space area to search
+	 * @return the IDs found, in ascending order
+	 */
+	private int[] queryIds(Rectangle area) {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		getIndex().query(area, found);
+		int[] ids = new int[found.size()];
+		for(int i = 0; i < ids.length; i++)
+			ids[i] = found.get(i);
+		Arrays.sort(ids);
+		return ids;
+	}
+	
+	/**
+	 * Return the spatial index if it can be updated in place.
+	 * A shared index is dropped instead, to be rebuilt from this frame's geometry when next needed.
+	 * 
+	 * @return the spatial index, or null if there is none to update
+	 */
+	private QuadTree writableIndex() {
+		if(indexShared) {
+			index = null;
+			indexShared = false;
+		}
+		return index;
+	}
+	
+	/**
+	 * Return the spatial index, building it if this is the first time it is needed.
+	 * 
+	 * @return the spatial index over this frame's objects
+	 */
+	private QuadTree getIndex() {
+		if(index == null) {
+			index = new QuadTree();
+			for(int id = 0; id < geometry().size(); id++)
+				if(geometry().isObject(id))
+					index.insert(id, geometry().getBounds(id));
+		}
+		return index;
+	}
+	
+	/**
+	 * Paint all of the frame's objects by blitting the raster cache.
+	 * The cache is only redrawn if the frame has changed or the view has moved.
+	 * 
+	 * @param g2d		Graphics2D object to use, in screen space
+	 * @param width		width of the view (in screen pixels)
+	 * @param height	height of the view (in screen pixels)
+	 * @param x			horizontal pan of the view
+	 * @param y			vertical pan of the view
+	 * @param zoom		zoom level of the view
+	 * @return the number of objects that had to be redrawn into the cache
+	 */
+	public int paint(Graphics2D g2d, int width, int height, double x, double y, double zoom) {
+		return paint(g2d, width, height, x, y, zoom, null);
+	}
+	
+	/**
+	 * Paint all of the frame's objects by blitting the raster cache with a composite,
+	 * such as a layer's opacity. The cache itself is always drawn fully opaque.
+	 * 
+	 * @param g2d		Graphics2D object to use, in screen space
+	 * @param width		width of the view (in screen pixels)
+	 * @param height	height of the view (in screen pixels)
+	 * @param x			horizontal pan of the view
+	 * @param y			vertical pan of the view
+	 * @param zoom		zoom level of the view
+	 * @param composite	composite to blit with, or null to keep the current one
+	 * @return the number of objects that had to be redrawn into the cache
+	 */
+	public int paint(Graphics2D g2d, int width, int height, double x, double y, double zoom,
+			Composite composite) {
+		if(isEmpty())
+			return 0;
+		if(cache == null)
+			cache = new Raster();
+		return cache.paint(g2d, width, height, x, y, zoom, null, composite);
+	}
+	
+	/**
+	 * Paint the frame as an onion skin: a single-color silhouette at lower opacity.
+	 * The tinted raster is kept separately, so it survives changes in opacity.
+	 * 
+	 * @param g2d		Graphics2D object to use, in screen space
+	 * @param width		width of the view (in screen pixels)
+	 * @param height	height of the view (in screen pixels)
+	 * @param x			horizontal pan of the view
+	 * @param y			vertical pan of the view
+	 * @param zoom		zoom level of the view
+	 * @param tint		color of the silhouette
+	 * @param composite	composite used to blend the silhouette in
+	 * @return the number of objects that had to be redrawn into the cache
+	 */
+	public int paintOnion(Graphics2D g2d, int width, int height, double x, double y, double zoom,
+			Color tint, Composite composite) {
+		if(isEmpty())
+			return 0;
+		if(onionCache == null)
+			onionCache = new Raster();
+		return onionCache.paint(g2d, width, height, x, y, zoom, tint, composite);
+	}
+	
+	/**
+	 * Raster is a cached image of the frame's objects, along with the view it was drawn with.
+	 */
+	private class Raster {
+		private BufferedImage image;
+		private boolean dirty;
+		private double x;
+		private double y;
+		private double zoom;
+		private double scale;
+		private Color tint;
+		
+		Raster() {
+			dirty = true;
+		}
+		
+		/**
+		 * Blit the raster, redrawing it first if it is stale.
+		 * 
+		 * @param g2d		Graphics2D object to use, in screen space
+		 * @param width		width of the view (in screen pixels)
+		 * @param height	height of the view (in screen pixels)
+		 * @param x			horizontal pan of the view
+		 * @param y			vertical pan of the view
+		 * @param zoom		zoom level of the view
+		 * @param tint		color to flatten the objects to, or null for full color
+		 * @param composite	composite to blit with, or null to keep the current one
+		 * @return the number of objects redrawn into the raster
+		 */
+		int paint(Graphics2D g2d, int width, int height, double x, double y, double zoom,
+				Color tint, Composite composite) {
+			if(width <= 0 || height <= 0)
+				return 0;
+			int drawn = 0;
+			
+			// Draw the raster at device resolution, so it stays sharp on scaled screens.
+			double scale = g2d.getTransform().getScaleX();
+			int imageWidth = (int) Math.ceil(width * scale);
+			int imageHeight = (int) Math.ceil(height * scale);
+			if(image == null || image.getWidth() != imageWidth || image.getHeight() != imageHeight) {
+				image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
+				dirty = true;
+			}
+			if(dirty || this.x != x || this.y != y || this.zoom != zoom || this.scale != scale ||
+					(tint == null ? this.tint != null : !tint.equals(this.tint))) {
+				Graphics2D imageG2d = image.createGraphics();
+				imageG2d.setBackground(new Color(0, 0, 0, 0));
+				imageG2d.clearRect(0, 0, imageWidth, imageHeight);
+				imageG2d.scale(scale, scale);
+				imageG2d.translate(x, y);
+				imageG2d.scale(zoom, zoom);
+				
+				// Only draw the objects that can be seen.
+				Rectangle visible = new Rectangle((int) Math.floor(-x / zoom), (int) Math.floor(-y / zoom),
+						(int) Math.ceil(width / zoom) + 1, (int) Math.ceil(height / zoom) + 1);
+				int[] ids = queryIds(visible);
+				int count = ids.length;
+				if(hidden != null) {
+					count = 0;
+					for(int id : ids)
+						if(Arrays.binarySearch(hidden, id) < 0)
+							ids[count++] = id;
+				}
+				geometry().paint(imageG2d, ids, count);
+				drawn = count;
+				
+				// Flatten everything that was drawn to the tint color.
+				if(tint != null) {
+					imageG2d.setTransform(new AffineTransform());
+					imageG2d.setComposite(AlphaComposite.SrcIn);
+					imageG2d.setColor(tint);
+					imageG2d.fillRect(0, 0, imageWidth, imageHeight);
+				}
+				imageG2d.dispose();
+				
+				this.x = x;
+				this.y = y;
+				this.zoom = zoom;
+				this.scale = scale;
+				this.tint = tint;
+				dirty = false;
+			}
+			
+			Composite oldComposite = g2d.getComposite();
+			if(composite != null)
+				g2d.setComposite(composite);
+			g2d.drawImage(image, AffineTransform.getScaleInstance(1 / scale, 1 / scale), null);
+			g2d.setComposite(oldComposite);
+			return drawn;
+		}
+	}
 
 	private class FrameComponent extends JComponent {
 		private Frame parent;
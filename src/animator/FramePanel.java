@@ -4,6 +4,8 @@ import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.GridLayout;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
@@ -15,7 +17,10 @@ import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JColorChooser;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSpinner;
@@ -33,6 +38,13 @@ import javax.swing.event.ChangeListener;
 public class FramePanel extends JPanel {
 	private TimelineComponent timeline;
 	
+	// Layer controls, kept in step with the current layer.
+	private JComboBox<Layer> layerList;
+	private JCheckBox layerVisible;
+	private JSpinner layerOpacity;
+	// Set while the layer controls are being refreshed, so their listeners ignore the changes.
+	private boolean refreshing;
+	
 	public FramePanel() {
 		super();
 		
@@ -53,7 +65,117 @@ public class FramePanel extends JPanel {
 			JButton frameSettingsDuplicate = new JButton("Duplicate Frame");
 			frameSettingsDuplicate.addActionListener(Manager.actions.get(Manager.ACTION_DUPLICATEFRAME));
 			frameSettings.add(frameSettingsDuplicate);
+			
+			// Create and add the onion skin depth spinners.
+			JSpinner frameSettingsOnionBack = new JSpinner(new SpinnerNumberModel(1, 0, 10, 1));
+			frameSettingsOnionBack.addChangeListener(new ChangeListener() {
+				@Override
+				public void stateChanged(ChangeEvent e) {
+					Manager.anim.put(Manager.ANIM_ONIONBACK, ((JSpinner) e.getSource()).getValue());
+					Animator.getGuiAnimatorCanvas().repaint();
+				}
+			});
+			frameSettings.add(new JLabel("Onion back"));
+			frameSettings.add(frameSettingsOnionBack);
+			
+			JSpinner frameSettingsOnionForward = new JSpinner(new SpinnerNumberModel(0, 0, 10, 1));
+			frameSettingsOnionForward.addChangeListener(new ChangeListener() {
+				@Override
+				public void stateChanged(ChangeEvent e) {
+					Manager.anim.put(Manager.ANIM_ONIONFORWARD, ((JSpinner) e.getSource()).getValue());
+					Animator.getGuiAnimatorCanvas().repaint();
+				}
+			});
+			frameSettings.add(new JLabel("Onion forward"));
+			frameSettings.add(frameSettingsOnionForward);
+			
+			// Create and add the onion skin opacity and falloff spinners, in percent.
+			JSpinner frameSettingsOnionAlpha = new JSpinner(new SpinnerNumberModel(
+					(int) Math.round((double) Manager.anim.get(Manager.ANIM_ONIONALPHA) * 100), 0, 100, 5));
+			frameSettingsOnionAlpha.addChangeListener(new ChangeListener() {
+				@Override
+				public void stateChanged(ChangeEvent e) {
+					Manager.anim.put(Manager.ANIM_ONIONALPHA, (int) ((JSpinner) e.getSource()).getValue() / 100.0);
+					Animator.getGuiAnimatorCanvas().repaint();
+				}
+			});
+			frameSettings.add(new JLabel("Onion opacity"));
+			frameSettings.add(frameSettingsOnionAlpha);
+			
+			JSpinner frameSettingsOnionFalloff = new JSpinner(new SpinnerNumberModel(
+					(int) Math.round((double) Manager.anim.get(Manager.ANIM_ONIONFALLOFF) * 100), 0, 100, 5));
+			frameSettingsOnionFalloff.addChangeListener(new ChangeListener() {
+				@Override
+				public void stateChanged(ChangeEvent e) {
+					Manager.anim.put(Manager.ANIM_ONIONFALLOFF, (int) ((JSpinner) e.getSource()).getValue() / 100.0);
+					Animator.getGuiAnimatorCanvas().repaint();
+				}
+			});
+			frameSettings.add(new JLabel("Onion falloff"));
+			frameSettings.add(frameSettingsOnionFalloff);
+			
+			// Create and add the onion skin tint buttons.
+			frameSettings.add(createOnionTintButton("Back tint", Manager.ANIM_ONIONTINTBACK));
+			frameSettings.add(createOnionTintButton("Forward tint", Manager.ANIM_ONIONTINTFORWARD));
 
+		// Create the layer settings panel.
+		JPanel layerSettings = new JPanel();
+		layerSettings.setPreferredSize(new Dimension(200, 200));
+		layerSettings.setBorder(BorderFactory.createTitledBorder("Layers"));
+		
+			// Create and add the current layer list, top layer first.
+			layerList = new JComboBox<Layer>();
+			layerList.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					if(refreshing || layerList.getSelectedItem() == null)
+						return;
+					Manager.anim.put(Manager.ANIM_LAYER, layerList.getSelectedItem());
+					refreshLayers();
+					Animator.getGuiAnimatorCanvas().repaint();
+				}
+			});
+			layerSettings.add(layerList);
+			
+			// Create and add the new layer and reordering buttons.
+			JButton layerSettingsNew = new JButton("New Layer");
+			layerSettingsNew.addActionListener(Manager.actions.get(Manager.ACTION_NEWLAYER));
+			layerSettings.add(layerSettingsNew);
+			
+			JButton layerSettingsUp = new JButton("Up");
+			layerSettingsUp.addActionListener(Manager.actions.get(Manager.ACTION_LAYERUP));
+			layerSettings.add(layerSettingsUp);
+			
+			JButton layerSettingsDown = new JButton("Down");
+			layerSettingsDown.addActionListener(Manager.actions.get(Manager.ACTION_LAYERDOWN));
+			layerSettings.add(layerSettingsDown);
+			
+			// Create and add the visibility checkbox and opacity spinner.
+			layerVisible = new JCheckBox("Visible");
+			layerVisible.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					if(refreshing)
+						return;
+					Manager.getCurrentLayer().setVisible(layerVisible.isSelected());
+					Animator.getGuiAnimatorCanvas().repaint();
+				}
+			});
+			layerSettings.add(layerVisible);
+			
+			layerOpacity = new JSpinner(new SpinnerNumberModel(100, 0, 100, 5));
+			layerOpacity.addChangeListener(new ChangeListener() {
+				@Override
+				public void stateChanged(ChangeEvent e) {
+					if(refreshing)
+						return;
+					Manager.getCurrentLayer().setOpacity((Integer) layerOpacity.getValue() / 100f);
+					Animator.getGuiAnimatorCanvas().repaint();
+				}
+			});
+			layerSettings.add(new JLabel("Opacity"));
+			layerSettings.add(layerOpacity);
+			
 		// Create the layer/frame view panel.
 		JPanel frameView = new JPanel();
 		frameView.setLayout(new BoxLayout(frameView, BoxLayout.Y_AXIS));
@@ -100,9 +222,55 @@ public class FramePanel extends JPanel {
 			});
 			playPanel.add(playPanelFps);
 			
-		add(frameSettings, BorderLayout.WEST);
+		JPanel settings = new JPanel(new GridLayout(1, 2));
+		settings.add(frameSettings);
+		settings.add(layerSettings);
+		
+		add(settings, BorderLayout.WEST);
 		add(frameViewWrapper, BorderLayout.CENTER);
 		add(playPanel, BorderLayout.EAST);
+		
+		refreshLayers();
+	}
+	
+	/**
+	 * Bring the layer controls up to date with Manager.layers and the current layer.
+	 */
+	public void refreshLayers() {
+		refreshing = true;
+		layerList.removeAllItems();
+		for(int i = Manager.layers.size() - 1; i >= 0; i--)
+			layerList.addItem(Manager.layers.get(i));
+		Layer layer = Manager.getCurrentLayer();
+		layerList.setSelectedItem(layer);
+		layerVisible.setSelected(layer.isVisible());
+		layerOpacity.setValue(Math.round(layer.getOpacity() * 100));
+		refreshing = false;
+		timeline.repaint();
+	}
+	
+	/**
+	 * Create a button that shows an onion skin tint, and lets the user pick another.
+	 * 
+	 * @param label		button text
+	 * @param key		Manager.anim key of the tint
+	 * @return the button
+	 */
+	private JButton createOnionTintButton(final String label, final String key) {
+		final JButton button = new JButton(label);
+		button.setBackground((Color) Manager.anim.get(key));
+		button.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				Color tint = JColorChooser.showDialog(FramePanel.this, label, (Color) Manager.anim.get(key));
+				if(tint == null)
+					return;
+				Manager.anim.put(key, tint);
+				button.setBackground(tint);
+				Animator.getGuiAnimatorCanvas().repaint();
+			}
+		});
+		return button;
 	}
 	
 	/**
@@ -146,18 +314,32 @@ public class FramePanel extends JPanel {
 		}
 		
 		/**
-		 * Paint a filled rectangle where the current frame is, and lines to indicate frames.
+		 * Paint a filled rectangle where the current frame is, lines to indicate frames,
+		 * and a mark on each visible frame of the current layer, stretched over its hold.
 		 * 
 		 * @param g		Graphics object to use
 		 */
 		public void paintComponent(Graphics g) {
+			long startNanos = System.nanoTime();
 			super.paintComponent(g);
 			
 			g.setColor(Color.lightGray);
 			g.fillRect((int) Manager.anim.get(Manager.ANIM_CURRENT) * FRAME_WIDTH, 0, FRAME_WIDTH, getHeight());
+			
+			Layer layer = (Layer) Manager.anim.get(Manager.ANIM_LAYER);
+			Rectangle clip = g.getClipBounds();
+			if(clip == null)
+				clip = new Rectangle(0, 0, getWidth(), getHeight());
+			int from = layer.previousKey(clip.x / FRAME_WIDTH + 1);
+			g.setColor(Color.gray);
+			for(int index : layer.keys(Math.max(0, from), (clip.x + clip.width) / FRAME_WIDTH + 1))
+				g.fillRect(index * FRAME_WIDTH + 3, getHeight() / 2 - 2,
+						layer.getHold(index) * FRAME_WIDTH - 6, 4);
 			g.setColor(Color.black);
 			for(int x = 0; x < getWidth(); x += FRAME_WIDTH)
 				g.drawLine(x, 0, x, getHeight());
+			
+			Performance.getInstance().recordTimelinePaint(System.nanoTime() - startNanos);
 		}
 	}
 }
@@ -0,0 +1,941 @@
+package animator;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.CubicCurve2D;
+import java.awt.geom.FlatteningPathIterator;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Geometry is a column store for the shapes of a frame's objects.
+ * Each object is a row, and each property is a primitive array indexed by row,
+ * so painting and hit-testing are straight scans over a few arrays.
+ * CanvasObjects are views onto a row.
+ * Removed rows have their type negated and keep their data, so rows never move
+ * and a removed row can be restored in place.
+ * Colors are stored as indices into a palette shared by every Geometry.
+ * An object may span several rows: a freehand stroke is a head row holding its bounds,
+ * followed by one row per segment. Curved segments also have two control points, kept in
+ * a column that a chunk only allocates once it holds a curve.
+ * 
+ * Rows are kept in fixed-size chunks that are shared between copies, so copying
+ * is constant-time. A chunk is only copied the first time one of its rows is
+ * written through a Geometry that doesn't own it.
+ * 
+ * @author Neill Johnston
+ */
+public class Geometry {
+	// Row types.
+	public static final byte TYPE_NONE = 0;
+	public static final byte TYPE_LINE = 1;
+	// Head of a freehand stroke, holding its bounds in place of end points.
+	public static final byte TYPE_PEN = 2;
+	// Straight segment of the freehand stroke above it.
+	public static final byte TYPE_SEGMENT = 3;
+	// Cubic Bezier segment of the freehand stroke above it.
+	public static final byte TYPE_CURVE = 4;
+	
+	// Rows per chunk, as a power of two.
+	private static final int CHUNK_SHIFT = 8;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	// Rows a new chunk has room for before it grows.
+	private static final int INITIAL_CAPACITY = 16;
+	
+	// Palette of every color used, and each color's index in it.
+	private static volatile Color[] palette = new Color[0];
+	private static final HashMap<Color, Integer> paletteIndex = new HashMap<Color, Integer>();
+	
+	private Chunk[] chunks;
+	private int size;
+	// Chunks whose owner is this token can be written in place.
+	private Object owner;
+	// Whether the chunks array itself is shared with a copy.
+	private boolean chunksShared;
+	
+	// Rows the first chunk starts with room for.
+	private int capacity;
+	
+	public Geometry() {
+		this(INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * Construct an empty Geometry with room for a number of rows in its first chunk.
+	 * 
+	 * @param capacity	number of rows to allocate up front
+	 */
+	public Geometry(int capacity) {
+		this.chunks = new Chunk[1];
+		this.owner = new Object();
+		this.capacity = Math.max(1, Math.min(capacity, CHUNK_SIZE));
+	}
+	
+	/**
+	 * Copy this Geometry, including removed rows.
+	 * Takes constant time: both Geometries share every chunk until they write to it.
+	 * 
+	 * @return a new Geometry with the same rows
+	 */
+	public Geometry copy() {
+		Geometry copy = new Geometry(capacity);
+		copy.chunks = chunks;
+		copy.size = size;
+		copy.chunksShared = true;
+		// Give up ownership, so neither side writes into chunks the other can see.
+		owner = new Object();
+		chunksShared = true;
+		return copy;
+	}
+	
+	// --- Rows. ---
+	
+	/**
+	 * Add an empty row.
+	 * 
+	 * @param type		type of the row
+	 * @return the new row
+	 */
+	public int add(byte type) {
+		int row = size;
+		int c = row >>> CHUNK_SHIFT;
+		if(c == chunks.length) {
+			chunks = Arrays.copyOf(chunks, c * 2);
+			chunksShared = false;
+		}
+		if(chunks[c] == null)
+			writableChunks()[c] = new Chunk(owner, c == 0 ? capacity : INITIAL_CAPACITY);
+		Chunk chunk = writable(row);
+		if((row & CHUNK_MASK) == chunk.types.length) {
+			chunk = new Chunk(chunk, owner, Math.min(chunk.types.length * 2, CHUNK_SIZE));
+			writableChunks()[c] = chunk;
+		}
+		chunk.types[row & CHUNK_MASK] = type;
+		size++;
+		return row;
+	}
+	
+	/**
+	 * Add a copy of a row from another Geometry.
+	 * 
+	 * @param source	Geometry to copy from
+	 * @param row		row to copy
+	 * @return the new row
+	 */
+	public int add(Geometry source, int row) {
+		int copy = add(source.getType(row));
+		Chunk from = source.chunks[row >>> CHUNK_SHIFT];
+		Chunk to = chunks[copy >>> CHUNK_SHIFT];
+		int i = row & CHUNK_MASK;
+		int j = copy & CHUNK_MASK;
+		to.x0[j] = from.x0[i];
+		to.y0[j] = from.y0[i];
+		to.x1[j] = from.x1[i];
+		to.y1[j] = from.y1[i];
+		to.widths[j] = from.widths[i];
+		to.styles[j] = from.styles[i];
+		if(from.controls != null)
+			System.arraycopy(from.controls, i * 4, to.controls(), j * 4, 4);
+		return copy;
+	}
+	
+	/**
+	 * Mark a row as removed. Its data is kept.
+	 * 
+	 * @param row		row to remove
+	 * @return whether the row was live
+	 */
+	public boolean remove(int row) {
+		if(!isLive(row))
+			return false;
+		Chunk chunk = writable(row);
+		chunk.types[row & CHUNK_MASK] = (byte) -chunk.types[row & CHUNK_MASK];
+		return true;
+	}
+	
+	/**
+	 * Bring back a removed row, as it was when it was removed.
+	 * 
+	 * @param row		row to restore
+	 * @return whether the row had been removed
+	 */
+	public boolean restore(int row) {
+		if(row < 0 || row >= size || getType(row) >= TYPE_NONE)
+			return false;
+		Chunk chunk = writable(row);
+		chunk.types[row & CHUNK_MASK] = (byte) -chunk.types[row & CHUNK_MASK];
+		return true;
+	}
+	
+	/**
+	 * Overwrite a row with a copy of a row from another Geometry.
+	 * 
+	 * @param row		row to overwrite
+	 * @param source	Geometry to copy from
+	 * @param from		row to copy
+	 */
+	public void set(int row, Geometry source, int from) {
+		Chunk to = writable(row);
+		Chunk chunk = source.chunks[from >>> CHUNK_SHIFT];
+		int i = from & CHUNK_MASK;
+		int j = row & CHUNK_MASK;
+		to.types[j] = chunk.types[i];
+		to.x0[j] = chunk.x0[i];
+		to.y0[j] = chunk.y0[i];
+		to.x1[j] = chunk.x1[i];
+		to.y1[j] = chunk.y1[i];
+		to.widths[j] = chunk.widths[i];
+		to.styles[j] = chunk.styles[i];
+		if(chunk.controls != null)
+			System.arraycopy(chunk.controls, i * 4, to.controls(), j * 4, 4);
+	}
+	
+	/**
+	 * Move a row.
+	 * 
+	 * @param row		row to move
+	 * @param dx		distance to move along x
+	 * @param dy		distance to move along y
+	 */
+	public void translate(int row, float dx, float dy) {
+		Chunk chunk = writable(row);
+		int i = row & CHUNK_MASK;
+		chunk.x0[i] += dx;
+		chunk.y0[i] += dy;
+		chunk.x1[i] += dx;
+		chunk.y1[i] += dy;
+		if(chunk.controls != null) {
+			chunk.controls[i * 4] += dx;
+			chunk.controls[i * 4 + 1] += dy;
+			chunk.controls[i * 4 + 2] += dx;
+			chunk.controls[i * 4 + 3] += dy;
+		}
+	}
+	
+	/**
+	 * Transform the points and width of a row. A freehand stroke's head holds its bounds, which are
+	 * not points, so they have to be set again from its parts with fitBounds.
+	 * 
+	 * @param row			row to transform
+	 * @param transform		transform to apply
+	 */
+	public void transform(int row, AffineTransform transform) {
+		Chunk chunk = writable(row);
+		int i = row & CHUNK_MASK;
+		float[] points = {chunk.x0[i], chunk.y0[i], chunk.x1[i], chunk.y1[i]};
+		transform.transform(points, 0, points, 0, 2);
+		chunk.x0[i] = points[0];
+		chunk.y0[i] = points[1];
+		chunk.x1[i] = points[2];
+		chunk.y1[i] = points[3];
+		if(Math.abs(chunk.types[i]) == TYPE_CURVE)
+			transform.transform(chunk.controls(), i * 4, chunk.controls(), i * 4, 2);
+		// Widths scale with the area, as they do when the row is drawn through the transform.
+		chunk.widths[i] *= (float) Math.sqrt(Math.abs(transform.getDeterminant()));
+	}
+	
+	/**
+	 * Set a freehand stroke's head to the bounds of its parts' end and control points.
+	 * 
+	 * @param row		head row of the stroke
+	 */
+	public void fitBounds(int row) {
+		int end = next(row);
+		float minX = Float.POSITIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY;
+		float maxY = Float.NEGATIVE_INFINITY;
+		for(int part = row + 1; part < end; part++) {
+			Chunk chunk = chunks[part >>> CHUNK_SHIFT];
+			int i = part & CHUNK_MASK;
+			minX = Math.min(minX, Math.min(chunk.x0[i], chunk.x1[i]));
+			minY = Math.min(minY, Math.min(chunk.y0[i], chunk.y1[i]));
+			maxX = Math.max(maxX, Math.max(chunk.x0[i], chunk.x1[i]));
+			maxY = Math.max(maxY, Math.max(chunk.y0[i], chunk.y1[i]));
+			if(Math.abs(chunk.types[i]) == TYPE_CURVE) {
+				for(int c = i * 4; c < i * 4 + 4; c += 2) {
+					minX = Math.min(minX, chunk.controls[c]);
+					minY = Math.min(minY, chunk.controls[c + 1]);
+					maxX = Math.max(maxX, chunk.controls[c]);
+					maxY = Math.max(maxY, chunk.controls[c + 1]);
+				}
+			}
+		}
+		if(end > row + 1) {
+			setStart(row, minX, minY);
+			setEnd(row, maxX, maxY);
+		}
+	}
+	
+	/**
+	 * Test whether every end point of an object is inside an area.
+	 * A freehand stroke is tested by its parts, not by the bounds in its head.
+	 * 
+	 * @param row		first row of the object
+	 * @param area		world-space area
+	 * @return whether the object lies within the area
+	 */
+	public boolean within(int row, Shape area) {
+		int end = next(row);
+		int first = end > row + 1 ? row + 1 : row;
+		for(int part = first; part < end; part++) {
+			Chunk chunk = chunks[part >>> CHUNK_SHIFT];
+			int i = part & CHUNK_MASK;
+			if(!area.contains(chunk.x0[i], chunk.y0[i]) || !area.contains(chunk.x1[i], chunk.y1[i]))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Return the number of rows, removed ones included.
+	 * 
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Whether a row exists and hasn't been removed.
+	 */
+	public boolean isLive(int row) {
+		return row >= 0 && row < size && getType(row) > TYPE_NONE;
+	}
+	
+	public byte getType(int row) {
+		return chunks[row >>> CHUNK_SHIFT].types[row & CHUNK_MASK];
+	}
+	
+	/**
+	 * Whether a row is the first row of a live object, rather than a later part of one.
+	 */
+	public boolean isObject(int row) {
+		return isLive(row) && !isPart(row);
+	}
+	
+	/**
+	 * Whether a row, live or removed, is a later part of the object above it.
+	 */
+	public boolean isPart(int row) {
+		if(row < 0 || row >= size)
+			return false;
+		int type = Math.abs(getType(row));
+		return type == TYPE_SEGMENT || type == TYPE_CURVE;
+	}
+	
+	/**
+	 * Return the row after the last row of an object.
+	 * 
+	 * @param row		first row of the object, live or removed
+	 * @return the row the next object starts at, or size if it is the last
+	 */
+	public int next(int row) {
+		row++;
+		while(isPart(row))
+			row++;
+		return row;
+	}
+	
+	/**
+	 * Return the chunk holding a row, copying it first if it is shared.
+	 * 
+	 * @param row		row about to be written
+	 * @return a chunk this Geometry owns
+	 */
+	private Chunk writable(int row) {
+		int c = row >>> CHUNK_SHIFT;
+		Chunk chunk = chunks[c];
+		if(chunk.owner != owner) {
+			chunk = new Chunk(chunk, owner, chunk.types.length);
+			writableChunks()[c] = chunk;
+		}
+		return chunk;
+	}
+	
+	/**
+	 * Return the chunks array, copying it first if it is shared.
+	 * 
+	 * @return a chunks array this Geometry owns
+	 */
+	private Chunk[] writableChunks() {
+		if(chunksShared) {
+			chunks = chunks.clone();
+			chunksShared = false;
+		}
+		return chunks;
+	}
+	
+	// --- Properties. ---
+	
+	public float getX0(int row) {
+		return chunks[row >>> CHUNK_SHIFT].x0[row & CHUNK_MASK];
+	}
+	
+	public float getY0(int row) {
+		return chunks[row >>> CHUNK_SHIFT].y0[row & CHUNK_MASK];
+	}
+	
+	public float getX1(int row) {
+		return chunks[row >>> CHUNK_SHIFT].x1[row & CHUNK_MASK];
+	}
+	
+	public float getY1(int row) {
+		return chunks[row >>> CHUNK_SHIFT].y1[row & CHUNK_MASK];
+	}
+	
+	public float getWidth(int row) {
+		return chunks[row >>> CHUNK_SHIFT].widths[row & CHUNK_MASK];
+	}
+	
+	public Color getColor(int row) {
+		return palette[chunks[row >>> CHUNK_SHIFT].styles[row & CHUNK_MASK]];
+	}
+	
+	/**
+	 * Return one of a curve row's control point coordinates.
+	 * 
+	 * @param row		row of the curve
+	 * @param i			0 and 1 for the first control point's x and y, 2 and 3 for the second's
+	 * @return the coordinate, or 0 if the row has no control points
+	 */
+	public float getControl(int row, int i) {
+		float[] controls = chunks[row >>> CHUNK_SHIFT].controls;
+		return controls == null ? 0 : controls[(row & CHUNK_MASK) * 4 + i];
+	}
+	
+	/**
+	 * Set the control points of a curve row.
+	 */
+	public void setControls(int row, float cx0, float cy0, float cx1, float cy1) {
+		float[] controls = writable(row).controls();
+		int i = (row & CHUNK_MASK) * 4;
+		controls[i] = cx0;
+		controls[i + 1] = cy0;
+		controls[i + 2] = cx1;
+		controls[i + 3] = cy1;
+	}
+	
+	/**
+	 * Set the start point of a row.
+	 */
+	public void setStart(int row, float x, float y) {
+		Chunk chunk = writable(row);
+		chunk.x0[row & CHUNK_MASK] = x;
+		chunk.y0[row & CHUNK_MASK] = y;
+	}
+	
+	/**
+	 * Set the end point of a row.
+	 */
+	public void setEnd(int row, float x, float y) {
+		Chunk chunk = writable(row);
+		chunk.x1[row & CHUNK_MASK] = x;
+		chunk.y1[row & CHUNK_MASK] = y;
+	}
+	
+	public void setWidth(int row, float width) {
+		writable(row).widths[row & CHUNK_MASK] = width;
+	}
+	
+	public void setColor(int row, Color color) {
+		writable(row).styles[row & CHUNK_MASK] = styleOf(color);
+	}
+	
+	// --- Encoding. ---
+	
+	/**
+	 * Number of bytes writeRow writes, plus CURVE_BYTES for a curve's control points.
+	 */
+	public static final int ROW_BYTES = 25;
+	public static final int CURVE_BYTES = 16;
+	
+	/**
+	 * Return the number of bytes writeRow writes for a row.
+	 * 
+	 * @param row		row to measure
+	 * @return ROW_BYTES, or ROW_BYTES + CURVE_BYTES for a curve
+	 */
+	public int rowBytes(int row) {
+		return Math.abs(getType(row)) == TYPE_CURVE ? ROW_BYTES + CURVE_BYTES : ROW_BYTES;
+	}
+	
+	/**
+	 * Return the number of bytes writeRow writes for every row.
+	 * 
+	 * @return the total
+	 */
+	public int bytes() {
+		int bytes = 0;
+		for(int row = 0; row < size; row++)
+			bytes += rowBytes(row);
+		return bytes;
+	}
+	
+	/**
+	 * Write a row as its type, coordinates, width and color, then a curve's control points.
+	 * 
+	 * @param out		buffer to write to, with at least rowBytes(row) remaining
+	 * @param row		row to write
+	 */
+	public void writeRow(ByteBuffer out, int row) {
+		Chunk chunk = chunks[row >>> CHUNK_SHIFT];
+		int i = row & CHUNK_MASK;
+		out.put(chunk.types[i]);
+		out.putFloat(chunk.x0[i]);
+		out.putFloat(chunk.y0[i]);
+		out.putFloat(chunk.x1[i]);
+		out.putFloat(chunk.y1[i]);
+		out.putFloat(chunk.widths[i]);
+		out.putInt(palette[chunk.styles[i]].getRGB());
+		if(Math.abs(chunk.types[i]) == TYPE_CURVE)
+			for(int c = 0; c < 4; c++)
+				out.putFloat(chunk.controls[i * 4 + c]);
+	}
+	
+	/**
+	 * Read a row written by writeRow onto the end of this Geometry.
+	 * 
+	 * @param in		buffer to read from
+	 * @return the new row
+	 */
+	public int readRow(ByteBuffer in) {
+		int row = add(in.get());
+		Chunk chunk = chunks[row >>> CHUNK_SHIFT];
+		int i = row & CHUNK_MASK;
+		chunk.x0[i] = in.getFloat();
+		chunk.y0[i] = in.getFloat();
+		chunk.x1[i] = in.getFloat();
+		chunk.y1[i] = in.getFloat();
+		chunk.widths[i] = in.getFloat();
+		chunk.styles[i] = styleOf(new Color(in.getInt(), true));
+		if(Math.abs(chunk.types[i]) == TYPE_CURVE) {
+			float[] controls = chunk.controls();
+			for(int c = 0; c < 4; c++)
+				controls[i * 4 + c] = in.getFloat();
+		}
+		return row;
+	}
+	
+	/**
+	 * Return the rows that differ from another Geometry, such as one this was copied from.
+	 * Every row past the end of the other Geometry counts as different. Chunks the two
+	 * still share can't have been written since, so they are skipped without a look.
+	 * 
+	 * @param base		Geometry to compare with, with no more rows than this one
+	 * @return the rows that differ, in order
+	 */
+	public int[] diff(Geometry base) {
+		int[] rows = new int[16];
+		int count = 0;
+		for(int row = 0; row < size; row++) {
+			int c = row >>> CHUNK_SHIFT;
+			int i = row & CHUNK_MASK;
+			if(row < base.size) {
+				if(i == 0 && chunks[c] == base.chunks[c]) {
+					row += Math.min(CHUNK_SIZE, base.size - row) - 1;
+					continue;
+				}
+				if(sameRow(chunks[c], base.chunks[c], i))
+					continue;
+			}
+			if(count == rows.length)
+				rows = Arrays.copyOf(rows, count * 2);
+			rows[count++] = row;
+		}
+		return Arrays.copyOf(rows, count);
+	}
+	
+	/**
+	 * Whether a row holds the same thing in two chunks.
+	 */
+	private static boolean sameRow(Chunk a, Chunk b, int i) {
+		if(!(a.types[i] == b.types[i] && a.x0[i] == b.x0[i] && a.y0[i] == b.y0[i]
+				&& a.x1[i] == b.x1[i] && a.y1[i] == b.y1[i]
+				&& a.widths[i] == b.widths[i] && a.styles[i] == b.styles[i]))
+			return false;
+		if(Math.abs(a.types[i]) != TYPE_CURVE)
+			return true;
+		for(int c = i * 4; c < i * 4 + 4; c++)
+			if(a.controls[c] != b.controls[c])
+				return false;
+		return true;
+	}
+	
+	// --- Shape queries. ---
+	
+	/**
+	 * Get the bounds of a row, including its stroke width.
+	 * 
+	 * @param row		row to measure
+	 * @return a new Rectangle that covers everything the row paints
+	 */
+	public Rectangle getBounds(int row) {
+		Chunk chunk = chunks[row >>> CHUNK_SHIFT];
+		int i = row & CHUNK_MASK;
+		int pad = (int) Math.ceil(chunk.widths[i] / 2) + 1;
+		float minX = Math.min(chunk.x0[i], chunk.x1[i]);
+		float minY = Math.min(chunk.y0[i], chunk.y1[i]);
+		float maxX = Math.max(chunk.x0[i], chunk.x1[i]);
+		float maxY = Math.max(chunk.y0[i], chunk.y1[i]);
+		// A curve stays inside the hull of its end and control points.
+		if(chunk.types[i] == TYPE_CURVE) {
+			for(int c = i * 4; c < i * 4 + 4; c += 2) {
+				minX = Math.min(minX, chunk.controls[c]);
+				minY = Math.min(minY, chunk.controls[c + 1]);
+				maxX = Math.max(maxX, chunk.controls[c]);
+				maxY = Math.max(maxY, chunk.controls[c + 1]);
+			}
+		}
+		int left = (int) Math.floor(minX);
+		int top = (int) Math.floor(minY);
+		int right = (int) Math.ceil(maxX);
+		int bottom = (int) Math.ceil(maxY);
+		return new Rectangle(left - pad, top - pad, right - left + 2 * pad, bottom - top + 2 * pad);
+	}
+	
+	/**
+	 * Test whether a point touches a row.
+	 * 
+	 * @param row			row to test
+	 * @param x				world-space x
+	 * @param y				world-space y
+	 * @param tolerance		how far (in world units) the point may be from the row
+	 * @return whether the point hits the row
+	 */
+	public boolean hit(int row, double x, double y, double tolerance) {
+		Chunk chunk = chunks[row >>> CHUNK_SHIFT];
+		int i = row & CHUNK_MASK;
+		switch(chunk.types[i]) {
+			case TYPE_LINE:
+			case TYPE_SEGMENT:
+				return Line2D.ptSegDist(chunk.x0[i], chunk.y0[i], chunk.x1[i], chunk.y1[i], x, y) <=
+						chunk.widths[i] / 2 + tolerance;
+			case TYPE_CURVE: {
+				double reach = chunk.widths[i] / 2 + tolerance;
+				CubicCurve2D.Float curve = new CubicCurve2D.Float(chunk.x0[i], chunk.y0[i],
+						chunk.controls[i * 4], chunk.controls[i * 4 + 1], chunk.controls[i * 4 + 2],
+						chunk.controls[i * 4 + 3], chunk.x1[i], chunk.y1[i]);
+				if(!curve.intersects(x - reach, y - reach, 2 * reach, 2 * reach))
+					return false;
+				// Measure against a flattened copy, flat to within a tenth of the tolerance.
+				PathIterator flat = new FlatteningPathIterator(curve.getPathIterator(null), tolerance / 10 + 0.01);
+				float[] coords = new float[6];
+				float lastX = 0;
+				float lastY = 0;
+				for(; !flat.isDone(); flat.next()) {
+					int segment = flat.currentSegment(coords);
+					if(segment == PathIterator.SEG_LINETO &&
+							Line2D.ptSegDist(lastX, lastY, coords[0], coords[1], x, y) <= reach)
+						return true;
+					lastX = coords[0];
+					lastY = coords[1];
+				}
+				return false;
+			}
+			case TYPE_PEN: {
+				// The head holds the stroke's bounds, so most misses never look at the segments.
+				double reach = chunk.widths[i] / 2 + tolerance;
+				if(x < chunk.x0[i] - reach || x > chunk.x1[i] + reach ||
+						y < chunk.y0[i] - reach || y > chunk.y1[i] + reach)
+					return false;
+				int end = next(row);
+				for(int part = row + 1; part < end; part++)
+					if(hit(part, x, y, tolerance))
+						return true;
+				return false;
+			}
+			default:
+				return false;
+		}
+	}
+	
+	// --- Painting. ---
+	
+	/**
+	 * Paint every live row, in order.
+	 * 
+	 * @param g2d		Graphics2D object to use, in world space
+	 */
+	public void paint(Graphics2D g2d) {
+		Painter painter = new Painter(g2d);
+		for(int start = 0; start < size; start += CHUNK_SIZE) {
+			Chunk chunk = chunks[start >>> CHUNK_SHIFT];
+			int end = Math.min(size - start, CHUNK_SIZE);
+			for(int i = 0; i < end; i++)
+				painter.paint(chunk, i);
+		}
+		painter.flush();
+	}
+	
+	/**
+	 * Paint some objects, in the order given.
+	 * 
+	 * @param g2d		Graphics2D object to use, in world space
+	 * @param rows		first rows of the objects to paint
+	 * @param count		number of objects to paint from the start of the array
+	 */
+	public void paint(Graphics2D g2d, int[] rows, int count) {
+		Painter painter = new Painter(g2d);
+		for(int i = 0; i < count; i++)
+			paintObject(painter, rows[i]);
+		painter.flush();
+	}
+	
+	/**
+	 * Paint a single object.
+	 * 
+	 * @param g2d		Graphics2D object to use, in world space
+	 * @param row		first row of the object
+	 */
+	public void paint(Graphics2D g2d, int row) {
+		Painter painter = new Painter(g2d);
+		paintObject(painter, row);
+		painter.flush();
+	}
+	
+	/**
+	 * Paint every row of an object.
+	 */
+	private void paintObject(Painter painter, int row) {
+		int end = next(row);
+		for(; row < end; row++)
+			painter.paint(chunks[row >>> CHUNK_SHIFT], row & CHUNK_MASK);
+	}
+	
+	/**
+	 * Write every live object as SVG path data, in order.
+	 * Consecutive objects with the same opaque color and width share one path element;
+	 * translucent objects get a path each, so that they blend with each other as they paint.
+	 * 
+	 * @param out		builder to append to, inside a group with round caps and joins and no fill
+	 */
+	public void writeSvg(StringBuilder out) {
+		boolean open = false;
+		int style = -1;
+		float width = -1;
+		for(int row = 0; row < size; row++) {
+			Chunk chunk = chunks[row >>> CHUNK_SHIFT];
+			int i = row & CHUNK_MASK;
+			if(chunk.types[i] == TYPE_SEGMENT || chunk.types[i] == TYPE_CURVE) {
+				// A freehand stroke's segments run on from each other, so only the first needs a move.
+				if(!isPart(row - 1) || chunk.x0[i] != getX1(row - 1) || chunk.y0[i] != getY1(row - 1)) {
+					out.append('M');
+					SvgWriter.appendNumber(out, chunk.x0[i]);
+					out.append(' ');
+					SvgWriter.appendNumber(out, chunk.y0[i]);
+				}
+				if(chunk.types[i] == TYPE_CURVE) {
+					out.append('C');
+					for(int c = i * 4; c < i * 4 + 4; c += 2) {
+						SvgWriter.appendNumber(out, chunk.controls[c]);
+						out.append(' ');
+						SvgWriter.appendNumber(out, chunk.controls[c + 1]);
+						out.append(' ');
+					}
+				}
+				else
+					out.append('L');
+				SvgWriter.appendNumber(out, chunk.x1[i]);
+				out.append(' ');
+				SvgWriter.appendNumber(out, chunk.y1[i]);
+				continue;
+			}
+			if(chunk.types[i] != TYPE_LINE && chunk.types[i] != TYPE_PEN)
+				continue;
+			Color color = palette[chunk.styles[i]];
+			if(!open || chunk.styles[i] != style || chunk.widths[i] != width || color.getAlpha() < 255) {
+				if(open)
+					out.append("\"/>\n");
+				style = chunk.styles[i];
+				width = chunk.widths[i];
+				out.append("<path stroke=\"");
+				SvgWriter.appendColor(out, color);
+				out.append('"');
+				if(color.getAlpha() < 255) {
+					out.append(" stroke-opacity=\"");
+					SvgWriter.appendNumber(out, color.getAlpha() / 255.0);
+					out.append('"');
+				}
+				out.append(" stroke-width=\"");
+				SvgWriter.appendNumber(out, width);
+				out.append("\" d=\"");
+				open = true;
+			}
+			if(chunk.types[i] == TYPE_PEN)
+				continue;
+			out.append('M');
+			SvgWriter.appendNumber(out, chunk.x0[i]);
+			out.append(' ');
+			SvgWriter.appendNumber(out, chunk.y0[i]);
+			out.append('L');
+			SvgWriter.appendNumber(out, chunk.x1[i]);
+			out.append(' ');
+			SvgWriter.appendNumber(out, chunk.y1[i]);
+		}
+		if(open)
+			out.append("\"/>\n");
+	}
+	
+	/**
+	 * Chunk holds the columns for a fixed-size run of rows.
+	 */
+	private static class Chunk {
+		// Token of the Geometry allowed to write to this chunk in place.
+		final Object owner;
+		final byte[] types;
+		final float[] x0;
+		final float[] y0;
+		final float[] x1;
+		final float[] y1;
+		final float[] widths;
+		final int[] styles;
+		// Control points of curve rows, four floats a row, or null until the chunk holds a curve.
+		float[] controls;
+		
+		Chunk(Object owner, int capacity) {
+			this.owner = owner;
+			types = new byte[capacity];
+			x0 = new float[capacity];
+			y0 = new float[capacity];
+			x1 = new float[capacity];
+			y1 = new float[capacity];
+			widths = new float[capacity];
+			styles = new int[capacity];
+		}
+		
+		/**
+		 * Copy another chunk for a new owner, possibly with more room.
+		 */
+		Chunk(Chunk original, Object owner, int capacity) {
+			this.owner = owner;
+			types = Arrays.copyOf(original.types, capacity);
+			x0 = Arrays.copyOf(original.x0, capacity);
+			y0 = Arrays.copyOf(original.y0, capacity);
+			x1 = Arrays.copyOf(original.x1, capacity);
+			y1 = Arrays.copyOf(original.y1, capacity);
+			widths = Arrays.copyOf(original.widths, capacity);
+			styles = Arrays.copyOf(original.styles, capacity);
+			if(original.controls != null)
+				controls = Arrays.copyOf(original.controls, capacity * 4);
+		}
+		
+		/**
+		 * Return the control point column, allocating it if this is the chunk's first curve.
+		 */
+		float[] controls() {
+			if(controls == null)
+				controls = new float[types.length * 4];
+			return controls;
+		}
+	}
+	
+	/**
+	 * Painter paints rows one after another, only changing the stroke and color when they differ.
+	 * A freehand stroke's segments are gathered into one path, so that its joins are round and
+	 * a translucent stroke doesn't darken where its segments overlap.
+	 */
+	private static class Painter {
+		private Graphics2D g2d;
+		private Line2D.Float line;
+		private Path2D.Float path;
+		private boolean pathOpen;
+		private float width;
+		private int style;
+		
+		Painter(Graphics2D g2d) {
+			this.g2d = g2d;
+			this.line = new Line2D.Float();
+			this.path = new Path2D.Float();
+			this.width = -1;
+			this.style = -1;
+		}
+		
+		void paint(Chunk chunk, int i) {
+			if(chunk.types[i] <= TYPE_NONE)
+				return;
+			if(chunk.types[i] == TYPE_SEGMENT || chunk.types[i] == TYPE_CURVE) {
+				if(!pathOpen) {
+					path.moveTo(chunk.x0[i], chunk.y0[i]);
+					pathOpen = true;
+				}
+				if(chunk.types[i] == TYPE_CURVE) {
+					int c = i * 4;
+					path.curveTo(chunk.controls[c], chunk.controls[c + 1], chunk.controls[c + 2],
+							chunk.controls[c + 3], chunk.x1[i], chunk.y1[i]);
+				}
+				else
+					path.lineTo(chunk.x1[i], chunk.y1[i]);
+				return;
+			}
+			flush();
+			if(chunk.widths[i] != width) {
+				width = chunk.widths[i];
+				g2d.setStroke(new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+			}
+			if(chunk.styles[i] != style) {
+				style = chunk.styles[i];
+				g2d.setColor(palette[style]);
+			}
+			switch(chunk.types[i]) {
+				case TYPE_LINE:
+					line.setLine(chunk.x0[i], chunk.y0[i], chunk.x1[i], chunk.y1[i]);
+					g2d.draw(line);
+					break;
+			}
+		}
+		
+		/**
+		 * Draw the freehand stroke gathered so far, if there is one.
+		 * Called before any other row is painted, and once all of them have been.
+		 */
+		void flush() {
+			if(!pathOpen)
+				return;
+			g2d.draw(path);
+			path.reset();
+			pathOpen = false;
+		}
+	}
+	
+	// --- Palette. ---
+	
+	/**
+	 * Return the palette index of a color, adding it to the palette if it is new.
+	 * 
+	 * @param color		color to look up
+	 * @return the palette index
+	 */
+	public static int styleOf(Color color) {
+		synchronized(paletteIndex) {
+			Integer style = paletteIndex.get(color);
+			if(style == null) {
+				style = palette.length;
+				Color[] grown = Arrays.copyOf(palette, style + 1);
+				grown[style] = color;
+				paletteIndex.put(color, style);
+				palette = grown;
+			}
+			return style;
+		}
+	}
+	
+	/**
+	 * Return the color at a palette index.
+	 * 
+	 * @param style		palette index
+	 * @return the color
+	 */
+	public static Color colorOf(int style) {
+		return palette[style];
+	}
+}
@@ -1,9 +1,9 @@
 package animator;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.util.HashMap;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -12,23 +12,136 @@ import javax.swing.JPanel;
 
 /**
  * Layer is the basic form of an animation layer.
- * Holds a bunch of frames in sequence (ArrayList frames).
- * It is an ArrayList of Frame objects.
+ * Holds a bunch of frames in sequence.
+ * It is a Timeline of Frame objects.
+ * Layers are composited in the order of Manager.layers, bottom first,
+ * skipping hidden layers and blending the rest at their own opacity.
  * 
  * @author Neill Johnston
  */
-public class Layer extends HashMap<Integer, Frame> {
+public class Layer extends Timeline<Frame> {
 	private String name;
+	private boolean visible;
+	private float opacity;
+	// Composite to blend the layer in with, or null if it is opaque.
+	private AlphaComposite composite;
 	
 	public Layer(String name) {
 		this.name = name;
+		this.visible = true;
+		this.opacity = 1;
 		put(0, new Frame());
 	}
 	
+	/**
+	 * Copy a layer and its frames, holds, visibility and opacity.
+	 * Frames are copied with Frame.copy, so this takes time in the number of frames, not their contents.
+	 * 
+	 * @param original	layer to be copied
+	 * @return a copy of Layer original
+	 */
+	public static Layer copy(Layer original) {
+		return copy(original, false);
+	}
+	
+	/**
+	 * Copy a layer to be painted, encoded or written out, with Frame.readOnlyCopy,
+	 * so that its frames keep their spatial indexes to themselves.
+	 * 
+	 * @param original	layer to be copied
+	 * @return a copy of Layer original
+	 */
+	public static Layer readOnlyCopy(Layer original) {
+		return copy(original, true);
+	}
+	
+	/**
+	 * Copy a layer, with its frames copied either way.
+	 */
+	private static Layer copy(Layer original, boolean readOnly) {
+		Layer clone = new Layer(original.name);
+		clone.remove(0);
+		clone.visible = original.visible;
+		clone.setOpacity(original.opacity);
+		for(int i = 0; i < original.size(); i++) {
+			int key = original.keyAt(i);
+			Frame frame = original.valueAt(i);
+			clone.put(key, readOnly ? Frame.readOnlyCopy(frame) : Frame.copy(frame));
+			clone.setHold(key, original.getHold(key));
+		}
+		return clone;
+	}
+	
 	public String getName() {
 		return name;
 	}
 	
+	public boolean isVisible() {
+		return visible;
+	}
+	
+	public void setVisible(boolean visible) {
+		this.visible = visible;
+		Autosave.layerChanged(this);
+	}
+	
+	public float getOpacity() {
+		return opacity;
+	}
+	
+	/**
+	 * Set how opaque the layer is when composited.
+	 * 
+	 * @param opacity	opacity (0.0-1.0)
+	 */
+	public void setOpacity(float opacity) {
+		this.opacity = Math.max(0, Math.min(1, opacity));
+		this.composite = this.opacity < 1 ?
+				AlphaComposite.getInstance(AlphaComposite.SRC_OVER, this.opacity) : null;
+		Autosave.layerChanged(this);
+	}
+	
+	/**
+	 * Return the composite to blend the layer in with.
+	 * 
+	 * @return the composite, or null if the layer is fully opaque
+	 */
+	public AlphaComposite getComposite() {
+		return composite;
+	}
+	
+	// Frames put, removed and held are logged for autosave.
+	
+	@Override
+	public Frame put(int index, Frame frame) {
+		Frame old = super.put(index, frame);
+		Autosave.framePut(this, index, frame);
+		return old;
+	}
+	
+	@Override
+	public Frame remove(int index) {
+		Frame old = super.remove(index);
+		if(old != null)
+			Autosave.frameRemoved(this, index);
+		return old;
+	}
+	
+	@Override
+	public void setHold(int index, int hold) {
+		super.setHold(index, hold);
+		if(containsKey(index))
+			Autosave.holdChanged(this, index, getHold(index));
+	}
+	
+	/**
+	 * The name, as shown in the layer list.
+	 */
+	@Override
+	public String toString() {
+		return name;
+	}
+	
 	private class LayerComponent extends JComponent {
 		private Layer parent;
 
@@ -1,11 +1,8 @@
 package animator;
 
-import javax.sound.sampled.Line;
-import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.Point;
-import java.awt.geom.Line2D;
+import java.nio.ByteBuffer;
 
 /**
  * A simple single line, two points worth of information.
@@ -17,67 +14,107 @@ public class LineObject extends CanvasObject {
 	 * Default constructor.
 	 */
 	public LineObject() {
-		System.out.println("Creating new LineObject");
+		super(Geometry.TYPE_LINE);
 	}
 
 	/**
 	 * Construct a new LineObject from specified settings.
 	 *
-	 * @param start			Corresponds to member field
-	 * @param end			"..."
-	 * @param strokeWidth	"..."
-	 * @param color			"..."
+	 * @param start			start point of the line
+	 * @param end			end point of the line
+	 * @param strokeWidth	width of the line
+	 * @param color			color of the line
 	 */
 	public LineObject(Point start, Point end, int strokeWidth, Color color) {
-		this.start = start;
-		this.end = end;
-		this.strokeWidth = strokeWidth;
-		this.color = color;
+		super(Geometry.TYPE_LINE);
+		geometry.setStart(row, start.x, start.y);
+		geometry.setEnd(row, end.x, end.y);
+		geometry.setWidth(row, strokeWidth);
+		geometry.setColor(row, color);
 	}
 
 	/**
-	 * Draw a line with the current width and color.
+	 * Construct a view onto a line already stored in a Geometry.
+	 *
+	 * @param geometry		storage holding the line
+	 * @param row			row of the line
 	 */
-	@Override
-	public void paint(Graphics2D g2d) {
-		g2d.setStroke(new BasicStroke(strokeWidth,
-				BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-		g2d.setColor(Color.black);
-		g2d.draw(new Line2D.Float(start.x, start.y, end.x, end.y));
+	LineObject(Geometry geometry, int row) {
+		super(geometry, row);
 	}
 
 	/**
 	 * Make a new command when the line is ended.
+	 *
+	 * @param frame		frame the line was added to
+	 * @param id		ID of the line in the frame
 	 */
 	@Override
-	public void fin() {
-		Manager.addCommand(new NewLineObjectCommand(this.start, this.end, this.strokeWidth, this.color, this.hashCode()));
+	public void fin(Frame frame, int id) {
+		Point start = new Point((int) geometry.getX0(row), (int) geometry.getY0(row));
+		Point end = new Point((int) geometry.getX1(row), (int) geometry.getY1(row));
+		Manager.addCommand(new NewLineObjectCommand(frame, id, start, end, (int) geometry.getWidth(row),
+				geometry.getColor(row)));
 	}
 
 	// --- Commands ---
 
-	class NewLineObjectCommand implements Command {
+	/**
+	 * Adding a line. Undo and redo just remove and restore it by ID, so they take constant time;
+	 * the line's settings are kept as a record of what was drawn.
+	 */
+	static class NewLineObjectCommand implements Command {
+		private Frame frame;
+		private int id;
 		private Point start;
 		private Point end;
 		private int strokeWidth;
 		private Color color;
-		private int coHash;
 
-		NewLineObjectCommand(Point start, Point end, int strokeWidth, Color color, int coHash) {
+		NewLineObjectCommand(Frame frame, int id, Point start, Point end, int strokeWidth, Color color) {
+			this.frame = frame;
+			this.id = id;
 			this.start = start;
 			this.end = end;
 			this.strokeWidth = strokeWidth;
 			this.color = color;
-			this.coHash = coHash;
 		}
 
 		public void undo() {
-
+			frame.remove(id);
 		}
 
 		public void redo() {
-			LineObject lo = new LineObject(this.start, this.end, this.strokeWidth, this.color);
+			frame.restore(id);
+		}
+
+		public int size() {
+			// The command, its two points; the frame and color are shared.
+			return 96;
+		}
+
+		public boolean merge(Command next) {
+			return false;
+		}
+
+		public ByteBuffer write(ByteBuffer out, UndoJournal.Frames frames) {
+			out = UndoJournal.ensure(out, 33);
+			out.put(UndoJournal.KIND_NEWLINE);
+			out.putInt(frames.numberOf(frame));
+			out.putInt(id);
+			UndoJournal.writePoint(out, start);
+			UndoJournal.writePoint(out, end);
+			out.putInt(strokeWidth);
+			out.putInt(color.getRGB());
+			return out;
+		}
 
+		/**
+		 * Decode a command written by write, after its kind byte.
+		 */
+		static NewLineObjectCommand read(ByteBuffer in, UndoJournal.Frames frames) {
+			return new NewLineObjectCommand(frames.get(in.getInt()), in.getInt(), UndoJournal.readPoint(in),
+					UndoJournal.readPoint(in), in.getInt(), new Color(in.getInt(), true));
 		}
 	}
 }
@@ -5,6 +5,8 @@ import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -18,7 +20,6 @@ import javax.swing.AbstractAction;
 import javax.swing.JComponent;
 import javax.swing.JRootPane;
 import javax.swing.KeyStroke;
-import javax.swing.Timer;
 
 /**
  * Manager is the class that holds all of the important project data.
@@ -38,14 +39,27 @@ public class Manager {
 	// List of layers.
 	public static ArrayList<Layer> layers;
 	
+	// File the project was opened from or last saved to, or null if it has never been saved.
+	public static Path projectPath;
+	
+	// Background frame renderer.
+	public static RenderEngine renderEngine;
+	
+	// Animation playback.
+	public static Playback playback;
+	
 	// Global actions.
 	public static HashMap<String, AbstractAction> actions = new HashMap<String, AbstractAction>();
 	public static final String ACTION_UNDO = "action_undo";
+	public static final String ACTION_REDO = "action_redo";
 	public static final String ACTION_NEWFRAME = "action_newFrame";
 	public static final String ACTION_NEXTFRAME = "action_nextFrame";
 	public static final String ACTION_PREVFRAME = "action_prefFrame";
 	public static final String ACTION_DUPLICATEFRAME = "action_duplicateFrame";
 	public static final String ACTION_PLAY = "action_play";
+	public static final String ACTION_NEWLAYER = "action_newLayer";
+	public static final String ACTION_LAYERUP = "action_layerUp";
+	public static final String ACTION_LAYERDOWN = "action_layerDown";
 	
 	// Current frame properties.
 	public static HashMap<String, Object> anim = new HashMap<String, Object>();
@@ -54,12 +68,21 @@ public class Manager {
 	public static final String ANIM_FPS = "anim_fps";
 	public static final String ANIM_PLAYINGFLAG = "anim_playingFlag";
 	public static final String ANIM_LOOPFLAG = "anim_loopFlag";
+	public static final String ANIM_ONIONBACK = "anim_onionBack";
+	public static final String ANIM_ONIONFORWARD = "anim_onionForward";
+	// Onion skin opacity one frame away, how much it fades with each further frame, and its tints.
+	public static final String ANIM_ONIONALPHA = "anim_onionAlpha";
+	public static final String ANIM_ONIONFALLOFF = "anim_onionFalloff";
+	public static final String ANIM_ONIONTINTBACK = "anim_onionTintBack";
+	public static final String ANIM_ONIONTINTFORWARD = "anim_onionTintForward";
 	
 	// Tool properties.
 	public static HashMap<String, Object> tool = new HashMap<String, Object>();
 	public static final String TOOL_WIDTH = "tool_width";
 	public static final String TOOL_COLOR = "tool_color";
 	public static final String TOOL_STROKE = "tool_stroke";
+	// Distance (in screen pixels) the pen's fitted curves may be from its samples.
+	public static final String TOOL_TOLERANCE = "tool_tolerance";
 	
 	// Preferences loaded from file.
 	public static HashMap<String, String> pref = new HashMap<String, String>();
@@ -67,6 +90,7 @@ public class Manager {
 	// Hotkeys loaded from file.
 	public static HashMap<String, KeyStroke> keys = new HashMap<String, KeyStroke>();
 	public static final String HOTKEY_UNDO = "hotkey_undo";
+	public static final String HOTKEY_REDO = "hotkey_redo";
 	public static final String HOTKEY_NEWFRAME = "hotkey_newFrame";
 	public static final String HOTKEY_NEXTFRAME = "hotkey_nextFrame";
 	public static final String HOTKEY_PREVFRAME = "hotkey_prevFrame";
@@ -79,9 +103,11 @@ public class Manager {
 		LINE,;
 	}
 
-	// Management list of command actions.
-	private static ArrayList<Command> commandList;
-	private static int commandIndex;
+	// Most memory (in bytes) the undo history may keep alive.
+	private static final long UNDO_BUDGET = 16L << 20;
+	
+	// Undo/redo history of commands.
+	public static UndoManager undoManager;
 	
 	public static void init() {
 		// Initialize global actions.
@@ -91,12 +117,17 @@ public class Manager {
 				 undo();
 			}
 		});
+		actions.put(ACTION_REDO, new AbstractAction() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				 redo();
+			}
+		});
 		actions.put(ACTION_NEWFRAME, new AbstractAction() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				while(Manager.getCurrentFrame() != null)
-					anim.put(ANIM_CURRENT, (int) Manager.anim.get(ANIM_CURRENT) + 1);
-				layers.get(0).put((int) Manager.anim.get(ANIM_CURRENT), new Frame());
+				anim.put(ANIM_CURRENT, getCurrentLayer().nextFree((int) anim.get(ANIM_CURRENT)));
+				getCurrentLayer().put((int) Manager.anim.get(ANIM_CURRENT), new Frame());
 				Animator.getGuiFramePanel().repaint();
 				Animator.getGuiAnimatorCanvas().repaint();
 			}
@@ -121,10 +152,12 @@ public class Manager {
 		actions.put(ACTION_DUPLICATEFRAME, new AbstractAction() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				Frame original = getCurrentFrame();
-				while(Manager.getCurrentFrame() != null)
-					anim.put(ANIM_CURRENT, (int) Manager.anim.get(ANIM_CURRENT) + 1);
-				layers.get(0).put((int) Manager.anim.get(ANIM_CURRENT), Frame.copy(original));
+				// Copy whatever is on screen, which may be a frame held from earlier.
+				Frame original = getCurrentLayer().getExposed((int) anim.get(ANIM_CURRENT));
+				if(original == null)
+					return;
+				anim.put(ANIM_CURRENT, getCurrentLayer().nextFree((int) anim.get(ANIM_CURRENT)));
+				getCurrentLayer().put((int) Manager.anim.get(ANIM_CURRENT), Frame.copy(original));
 				Animator.getGuiFramePanel().repaint();
 				Animator.getGuiAnimatorCanvas().repaint();
 			}
@@ -132,28 +165,77 @@ public class Manager {
 		actions.put(ACTION_PLAY, new AbstractAction() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
+				// Pressing play again stops playback.
+				if(playback.isPlaying()) {
+					playback.stop();
+					return;
+				}
 				if(getCurrentFrame() == null) {
 					Manager.anim.put(ANIM_CURRENT, 0);
 				}
-				Timer t = new Timer(1000 / (int) Manager.anim.get(Manager.ANIM_FPS), new ActionListener() {
-					@Override
-					public void actionPerformed(ActionEvent e) {
-						Timer t = (Timer) e.getSource();
-						Manager.actions.get(Manager.ACTION_NEXTFRAME).actionPerformed(e);
-						if(getCurrentFrame() == null && !(boolean) Manager.anim.get(ANIM_LOOPFLAG)) {
-							t.stop();
-							Manager.anim.put(ANIM_PLAYINGFLAG, false);
-						}
-						else if(getCurrentFrame() == null && (boolean) Manager.anim.get(ANIM_LOOPFLAG)) {
-							Manager.anim.put(ANIM_CURRENT, 0);
-						}
-					}
-				});
-				t.start();
-				Manager.anim.put(ANIM_PLAYINGFLAG, true);
+				AnimatorCanvas canvas = Animator.getGuiAnimatorCanvas();
+				double scale = canvas.getGraphicsConfiguration().getDefaultTransform().getScaleX();
+				AffineTransform transform = AffineTransform.getScaleInstance(scale, scale);
+				transform.concatenate(canvas.getViewTransform());
+				playback.start(layers, (int) anim.get(ANIM_CURRENT), (boolean) anim.get(ANIM_LOOPFLAG),
+						(int) anim.get(ANIM_FPS), (int) Math.ceil(canvas.getWidth() * scale),
+						(int) Math.ceil(canvas.getHeight() * scale), transform);
+				if(playback.isPlaying())
+					Manager.anim.put(ANIM_PLAYINGFLAG, true);
+			}
+		});
+
+		actions.put(ACTION_NEWLAYER, new AbstractAction() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				// New layers go directly above the current one.
+				Layer layer = new Layer("Layer " + (layers.size() + 1));
+				layers.add(layers.indexOf(getCurrentLayer()) + 1, layer);
+				Autosave.layerAdded(layer);
+				anim.put(ANIM_LAYER, layer);
+				Animator.getGuiFramePanel().refreshLayers();
+				Animator.getGuiAnimatorCanvas().repaint();
+			}
+		});
+		actions.put(ACTION_LAYERUP, new AbstractAction() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				moveCurrentLayer(1);
+			}
+		});
+		actions.put(ACTION_LAYERDOWN, new AbstractAction() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				moveCurrentLayer(-1);
 			}
 		});
 
+		// Publish performance statistics over JMX.
+		Performance.getInstance().register();
+		
+		// Start the background frame renderer.
+		if(renderEngine == null)
+			renderEngine = new RenderEngine();
+		
+		// Set up playback, showing frames on the canvas as they come in.
+		if(playback != null)
+			playback.stop();
+		playback = new Playback(renderEngine, new Playback.Listener() {
+			@Override
+			public void frameShown(int index, BufferedImage image) {
+				anim.put(ANIM_CURRENT, index);
+				Animator.getGuiAnimatorCanvas().setPlaybackImage(image);
+				Animator.getGuiFramePanel().repaint();
+			}
+			
+			@Override
+			public void stopped() {
+				anim.put(ANIM_PLAYINGFLAG, false);
+				Animator.getGuiAnimatorCanvas().setPlaybackImage(null);
+				Animator.getGuiFramePanel().repaint();
+			}
+		});
+		
 		// Initialize with a single blank layer.
 		layers = new ArrayList<Layer>();
 		layers.add(new Layer("untitled"));
@@ -163,21 +245,31 @@ public class Manager {
 		anim.put(ANIM_CURRENT, 0);
 		anim.put(ANIM_FPS, 12);
 		anim.put(ANIM_PLAYINGFLAG, false);
+		anim.put(ANIM_LOOPFLAG, false);
+		anim.put(ANIM_ONIONBACK, 1);
+		anim.put(ANIM_ONIONFORWARD, 0);
+		anim.put(ANIM_ONIONALPHA, 0.25);
+		anim.put(ANIM_ONIONFALLOFF, 0.6);
+		anim.put(ANIM_ONIONTINTBACK, new Color(200, 40, 40));
+		anim.put(ANIM_ONIONTINTFORWARD, new Color(40, 160, 40));
 		
 		// Initialize tool defaults.
 		tool.put(TOOL_WIDTH, new Integer(10));
 		tool.put(TOOL_COLOR, Color.black);
 		tool.put(TOOL_STROKE, ToolType.LINE);
+		tool.put(TOOL_TOLERANCE, 0.5f);
 		
 		// Initialize hotkey defaults.
 		keys.put("undo", KeyStroke.getKeyStroke(KeyEvent.VK_Z, KeyEvent.CTRL_DOWN_MASK));
+		keys.put("redo", KeyStroke.getKeyStroke(KeyEvent.VK_Y, KeyEvent.CTRL_DOWN_MASK));
 		keys.put("newFrame", KeyStroke.getKeyStroke(KeyEvent.VK_SPACE, 0));
 		keys.put("nextFrame", KeyStroke.getKeyStroke(KeyEvent.VK_RIGHT, 0));
 		keys.put("prevFrame", KeyStroke.getKeyStroke(KeyEvent.VK_LEFT, 0));
 
-		// Load the undo management list.
-		commandList = new ArrayList<Command>();
-		commandIndex = -1;
+		// Start a fresh undo history.
+		if(undoManager != null)
+			undoManager.close();
+		undoManager = new UndoManager(UNDO_BUDGET);
 
 		// Get the preferences file and load user preferences.
 		prefsPath = Paths.get("preferences.txt");
@@ -210,33 +302,132 @@ public class Manager {
 		// Put the correct keys into the input map.
 		JRootPane root = Animator.mainWindow.getRootPane();
 		root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(keys.get("undo"), HOTKEY_UNDO);
+		root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(keys.get("redo"), HOTKEY_REDO);
 		root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(keys.get("newFrame"), HOTKEY_NEWFRAME);
 		root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(keys.get("nextFrame"), HOTKEY_NEXTFRAME);
 		root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(keys.get("prevFrame"), HOTKEY_PREVFRAME);
 		
 		// Create the correct actions.
 		root.getActionMap().put(HOTKEY_UNDO, actions.get(ACTION_UNDO));
+		root.getActionMap().put(HOTKEY_REDO, actions.get(ACTION_REDO));
 		root.getActionMap().put(HOTKEY_NEWFRAME, actions.get(ACTION_NEWFRAME));
 		root.getActionMap().put(HOTKEY_NEXTFRAME, actions.get(ACTION_NEXTFRAME));
 		root.getActionMap().put(HOTKEY_PREVFRAME, actions.get(ACTION_PREVFRAME));
 	}
 	
 	/**
-	 * Undo the last stroke.
+	 * Undo the last command.
 	 */
 	public static void undo() {
-		Frame current = getCurrentFrame();
-		if(current.size() > 0)
-			current.remove(current.size() - 1);
+		undoManager.undo();
+		Animator.getGuiAnimatorCanvas().repaint();
+	}
+	
+	/**
+	 * Redo the last command undone.
+	 */
+	public static void redo() {
+		undoManager.redo();
 		Animator.getGuiAnimatorCanvas().repaint();
 	}
 
 	/**
 	 * Add a new action to the undo manager.
+	 * The action should already have been done.
 	 */
 	public static void addCommand(Command c) {
-		commandList.add(c);
-		commandIndex++;
+		undoManager.add(c);
+	}
+	
+	/**
+	 * Start a new, empty project with a single blank layer.
+	 */
+	public static void newProject() {
+		ArrayList<Layer> blank = new ArrayList<Layer>();
+		blank.add(new Layer("untitled"));
+		setProject(blank, 12, null);
+	}
+	
+	/**
+	 * Open a project file. Frames are only decoded as they are shown.
+	 * 
+	 * @param path		file to open
+	 * @throws IOException if the file can't be read
+	 */
+	public static void openProject(Path path) throws IOException {
+		ProjectFile project = ProjectFile.open(path);
+		setProject(project.getLayers(), project.getFps(), path);
+	}
+	
+	/**
+	 * Save the project to a file.
+	 * 
+	 * @param path		file to save to
+	 * @throws IOException if the file can't be written
+	 */
+	public static void saveProject(Path path) throws IOException {
+		ProjectFile.save(path, layers, (int) anim.get(ANIM_FPS));
+		projectPath = path;
+	}
+	
+	/**
+	 * Bring back the project autosaved by a session that didn't close cleanly.
+	 * 
+	 * @throws IOException if the autosave can't be read
+	 */
+	public static void recoverProject() throws IOException {
+		ProjectFile project = Autosave.recover(Autosave.DIRECTORY);
+		setProject(project.getLayers(), project.getFps(), null);
+	}
+	
+	/**
+	 * Replace the whole project, going back to its first frame and forgetting the undo history.
+	 * 
+	 * @param newLayers		layers of the project, bottom first
+	 * @param fps			playback rate
+	 * @param path			file the project came from, or null
+	 */
+	private static void setProject(ArrayList<Layer> newLayers, int fps, Path path) {
+		playback.stop();
+		if(newLayers.isEmpty())
+			newLayers.add(new Layer("untitled"));
+		layers = newLayers;
+		projectPath = path;
+		anim.put(ANIM_LAYER, layers.get(layers.size() - 1));
+		anim.put(ANIM_CURRENT, 0);
+		anim.put(ANIM_FPS, fps);
+		undoManager.clear();
+		Autosave.reset();
+		
+		if(Animator.getGuiFramePanel() != null)
+			Animator.getGuiFramePanel().refreshLayers();
+		if(Animator.getGuiAnimatorCanvas() != null)
+			Animator.getGuiAnimatorCanvas().repaint();
+	}
+	
+	/**
+	 * Move the current layer up or down in the compositing order.
+	 * 
+	 * @param offset	places to move; positive is towards the top
+	 */
+	public static void moveCurrentLayer(int offset) {
+		int from = layers.indexOf(getCurrentLayer());
+		int to = Math.max(0, Math.min(layers.size() - 1, from + offset));
+		if(from == to)
+			return;
+		layers.add(to, layers.remove(from));
+		Autosave.layerMoved(from, to);
+		Animator.getGuiFramePanel().refreshLayers();
+		Animator.getGuiAnimatorCanvas().repaint();
+	}
+	
+	/**
+	 * Return the current layer.
+	 * 
+	 * @return the layer being drawn on
+	 */
+	public static Layer getCurrentLayer() {
+		return (Layer) anim.get(ANIM_LAYER);
 	}
 	
 	/**
@@ -245,6 +436,6 @@ public class Manager {
 	 * @return the frame of the current layer at the current time
 	 */
 	public static Frame getCurrentFrame() {
-		return ((Layer) anim.get(ANIM_LAYER)).get((Integer) anim.get(ANIM_CURRENT));
+		return getCurrentLayer().get((int) anim.get(ANIM_CURRENT));
 	}
 }
@@ -0,0 +1,117 @@
+package animator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A freehand stroke drawn with the pen.
+ * Stored as a head row holding the stroke's bounds, width and color, followed by one
+ * curve row for each cubic Bezier curve the stroke was fitted with.
+ * 
+ * @author Neill Johnston
+ */
+public class PenObject extends CanvasObject {
+	/**
+	 * Construct a stroke from the curves of a finished PenStroke.
+	 * 
+	 * @param stroke	the stroke, with finish already called
+	 */
+	public PenObject(PenStroke stroke) {
+		super(Geometry.TYPE_PEN);
+		float x = stroke.getStartX();
+		float y = stroke.getStartY();
+		float left = x;
+		float top = y;
+		float right = x;
+		float bottom = y;
+		for(int i = 0; i < stroke.getCurveCount(); i++) {
+			int curve = geometry.add(Geometry.TYPE_CURVE);
+			geometry.setStart(curve, x, y);
+			geometry.setControls(curve, stroke.getCurve(i, 0), stroke.getCurve(i, 1),
+					stroke.getCurve(i, 2), stroke.getCurve(i, 3));
+			x = stroke.getCurve(i, 4);
+			y = stroke.getCurve(i, 5);
+			geometry.setEnd(curve, x, y);
+			geometry.setWidth(curve, stroke.getStrokeWidth());
+			geometry.setColor(curve, stroke.getColor());
+			// A curve stays inside its control points, so they bound it.
+			for(int j = 0; j < 6; j += 2) {
+				left = Math.min(left, stroke.getCurve(i, j));
+				top = Math.min(top, stroke.getCurve(i, j + 1));
+				right = Math.max(right, stroke.getCurve(i, j));
+				bottom = Math.max(bottom, stroke.getCurve(i, j + 1));
+			}
+		}
+		geometry.setStart(row, left, top);
+		geometry.setEnd(row, right, bottom);
+		geometry.setWidth(row, stroke.getStrokeWidth());
+		geometry.setColor(row, stroke.getColor());
+	}
+	
+	/**
+	 * Construct a view onto a stroke already stored in a Geometry.
+	 * 
+	 * @param geometry		storage holding the stroke
+	 * @param row			head row of the stroke
+	 */
+	PenObject(Geometry geometry, int row) {
+		super(geometry, row);
+	}
+	
+	/**
+	 * Make a new command when the stroke is ended.
+	 * 
+	 * @param frame		frame the stroke was added to
+	 * @param id		ID of the stroke in the frame
+	 */
+	@Override
+	public void fin(Frame frame, int id) {
+		Manager.addCommand(new NewPenObjectCommand(frame, id));
+	}
+	
+	// --- Commands ---
+	
+	/**
+	 * Adding a freehand stroke. Undo and redo remove and restore it by ID, like a new line.
+	 */
+	static class NewPenObjectCommand implements Command {
+		private Frame frame;
+		private int id;
+		
+		NewPenObjectCommand(Frame frame, int id) {
+			this.frame = frame;
+			this.id = id;
+		}
+		
+		public void undo() {
+			frame.remove(id);
+		}
+		
+		public void redo() {
+			frame.restore(id);
+		}
+		
+		public int size() {
+			// The command; the frame is shared.
+			return 32;
+		}
+		
+		public boolean merge(Command next) {
+			return false;
+		}
+		
+		public ByteBuffer write(ByteBuffer out, UndoJournal.Frames frames) {
+			out = UndoJournal.ensure(out, 9);
+			out.put(UndoJournal.KIND_NEWPEN);
+			out.putInt(frames.numberOf(frame));
+			out.putInt(id);
+			return out;
+		}
+		
+		/**
+		 * Decode a command written by write, after its kind byte.
+		 */
+		static NewPenObjectCommand read(ByteBuffer in, UndoJournal.Frames frames) {
+			return new NewPenObjectCommand(frames.get(in.getInt()), in.getInt());
+		}
+	}
+}
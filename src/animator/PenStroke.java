@@ -0,0 +1,402 @@
+package animator;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.CubicCurve2D;
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+
+/**
+ * A freehand stroke while it is being drawn with the pen.
+ * The stroke is fitted with cubic Bezier curves as the samples arrive, in the manner of
+ * Schneider's algorithm: the run of samples since the last knot is fitted with one curve by
+ * least squares, and the run keeps growing for as long as every sample in it is within a
+ * tolerance of the curve. When a sample breaks the fit, the curve fitted up to the sample before
+ * it is kept, and that sample becomes the knot the next run starts from, leaving in the same
+ * direction so the stroke stays smooth. A corner, which no smooth curve fits, gets a free tangent.
+ * Runs are cut off at MAX_RUN samples, so a sample costs the same however long the stroke is,
+ * and the stroke's path only ever gains whole curves.
+ * Samples the fit has moved past are dropped; only the curves are kept with the object.
+ * 
+ * @author Neill Johnston
+ */
+public class PenStroke extends Stroke {
+	// Most samples fitted with one curve.
+	private static final int MAX_RUN = 64;
+	
+	// Distance (in world units) a sample may be from the fitted curves.
+	private float tolerance;
+	// Length along the samples up to each one, parallel to the point columns.
+	private float[] lengths;
+	// Index of the sample the run being fitted starts from.
+	private int knot;
+	
+	// Start of the stroke, then each kept curve as its two control points and its end.
+	private float startX;
+	private float startY;
+	private float[] curves;
+	private int curveCount;
+	
+	// Direction the last kept curve ends in, or zero if there is none.
+	private double tangentX;
+	private double tangentY;
+	// Curve fitted to the run so far, as two control points and an end, and a scratch curve.
+	private float[] fit;
+	private float[] trial;
+	// Parameter of each sample of the run along the scratch curve.
+	private double[] params;
+	// Curve fitted to the run, painted after the path.
+	private CubicCurve2D.Float tail;
+	
+	/**
+	 * Start a stroke at a point.
+	 * 
+	 * @param x				world-space x of the first sample
+	 * @param y				world-space y of the first sample
+	 * @param tolerance		distance (in world units) a sample may be from the fitted curves
+	 */
+	public PenStroke(float x, float y, float tolerance) {
+		super(x, y);
+		this.tolerance = tolerance;
+		// The first sample was added to the path by Stroke, before there was anything to measure it in.
+		this.lengths = new float[xs.length];
+		this.startX = x;
+		this.startY = y;
+		this.curves = new float[6 * 16];
+		this.fit = new float[] {x, y, x, y, x, y};
+		this.trial = new float[6];
+		this.params = new double[MAX_RUN + 1];
+		this.tail = new CubicCurve2D.Float();
+	}
+	
+	/**
+	 * Add a sample to the end of the stroke.
+	 * 
+	 * @param x			world-space x
+	 * @param y			world-space y
+	 * @param dirty		world-space area to grow by whatever needs repainting
+	 */
+	void sample(float x, float y, Rectangle dirty) {
+		if(x == xs[count - 1] && y == ys[count - 1])
+			return;
+		// The curve fitted to the run is drawn too, and changes shape with every sample.
+		// A curve stays inside its control points, and a kept curve is the one fitted before.
+		addDirty(dirty, xs[knot], ys[knot]);
+		addDirty(dirty, fit);
+		addPoint(x, y);
+		addDirty(dirty, fit);
+	}
+	
+	/**
+	 * Finish the stroke, keeping the curve fitted to the last run.
+	 * A stroke of one sample gets a curve of no length, so it paints as a dot.
+	 */
+	void finish() {
+		if(knot != count - 1 || curveCount == 0)
+			keep(count - 1);
+	}
+	
+	/**
+	 * Return the number of curves kept so far.
+	 * 
+	 * @return curve count
+	 */
+	int getCurveCount() {
+		return curveCount;
+	}
+	
+	public float getStartX() {
+		return startX;
+	}
+	
+	public float getStartY() {
+		return startY;
+	}
+	
+	/**
+	 * Return a coordinate of a kept curve.
+	 * 
+	 * @param curve		index of the curve
+	 * @param i			0 to 5: x and y of the first control point, the second control point, then the end
+	 * @return the coordinate
+	 */
+	public float getCurve(int curve, int i) {
+		return curves[curve * 6 + i];
+	}
+	
+	public int getStrokeWidth() {
+		return strokeWidth;
+	}
+	
+	public Color getColor() {
+		return color;
+	}
+	
+	/**
+	 * Paint the kept curves, and the curve fitted to the run since the last knot.
+	 * 
+	 * @param g2d	Graphics2D object to use, in world space
+	 */
+	@Override
+	void paint(Graphics2D g2d) {
+		super.paint(g2d);
+		if(knot != count - 1) {
+			tail.setCurve(xs[knot], ys[knot], fit[0], fit[1], fit[2], fit[3], fit[4], fit[5]);
+			g2d.draw(tail);
+		}
+	}
+	
+	/**
+	 * Fit the run to a new sample, keeping the curve fitted before it if the run no longer fits.
+	 * Only kept curves are added to the path.
+	 * 
+	 * @param n		index of the new sample
+	 */
+	@Override
+	protected void extend(int n) {
+		// The first sample is added before there is a run, and just starts the path.
+		if(n == 0) {
+			super.extend(n);
+			return;
+		}
+		if(lengths.length < xs.length)
+			lengths = Arrays.copyOf(lengths, xs.length);
+		lengths[n] = lengths[n - 1] + (float) Math.hypot(xs[n] - xs[n - 1], ys[n] - ys[n - 1]);
+		
+		if(!fitRun(knot, n) && n - 1 > knot) {
+			// A run of two samples always fits, so this starts the next run.
+			keep(n - 1);
+			// Keeping may have dropped the samples before the knot.
+			n = knot + 1;
+			fitRun(knot, n);
+		}
+		if(n - knot == MAX_RUN)
+			keep(n);
+	}
+	
+	/**
+	 * Fit one curve to the samples from a to b, making it the run's fit if it is within tolerance.
+	 * The curve leaves a in the direction the last kept curve ends in if it can, and towards the
+	 * samples after a if it can't.
+	 * 
+	 * @param a		first sample of the run
+	 * @param b		last sample of the run
+	 * @return whether the run fits
+	 */
+	private boolean fitRun(int a, int b) {
+		// Direction back into the run from its end, from a sample or two before it.
+		int back = Math.max(a, b - 2);
+		double endX = xs[back] - xs[b];
+		double endY = ys[back] - ys[b];
+		if((tangentX != 0 || tangentY != 0) && fitCurve(a, b, tangentX, tangentY, endX, endY))
+			return true;
+		int ahead = Math.min(b, a + 2);
+		return fitCurve(a, b, xs[ahead] - xs[a], ys[ahead] - ys[a], endX, endY);
+	}
+	
+	/**
+	 * Fit one curve to a run of samples, ending on the first and last sample, with its control
+	 * points along the given directions, and make it the run's fit if it is within tolerance.
+	 * The samples are first placed along the curve by their length along the run; if that fit is
+	 * close, one Newton step moves each to its nearest point on the curve and the curve is fitted again.
+	 * 
+	 * @param a				first sample of the run
+	 * @param b				last sample of the run
+	 * @param startX		direction the curve leaves a in
+	 * @param startY
+	 * @param endX			direction back along the curve from b
+	 * @param endY
+	 * @return whether every sample is within tolerance of the curve
+	 */
+	private boolean fitCurve(int a, int b, double startX, double startY, double endX, double endY) {
+		double length = lengths[b] - lengths[a];
+		double start = Math.hypot(startX, startY);
+		double end = Math.hypot(endX, endY);
+		if(length == 0 || start == 0 || end == 0)
+			return false;
+		startX /= start;
+		startY /= start;
+		endX /= end;
+		endY /= end;
+		for(int i = a; i <= b; i++)
+			params[i - a] = (lengths[i] - lengths[a]) / length;
+		
+		double limit = tolerance * tolerance;
+		generate(a, b, startX, startY, endX, endY);
+		double error = error(a, b);
+		if(error > limit && error < 16 * limit) {
+			reparameterize(a, b);
+			generate(a, b, startX, startY, endX, endY);
+			error = error(a, b);
+		}
+		if(error > limit)
+			return false;
+		System.arraycopy(trial, 0, fit, 0, 6);
+		return true;
+	}
+	
+	/**
+	 * Place the scratch curve's control points along the given directions, as far along each as
+	 * fits the samples at their parameters best by least squares.
+	 */
+	private void generate(int a, int b, double t1x, double t1y, double t2x, double t2y) {
+		double x0 = xs[a];
+		double y0 = ys[a];
+		double x3 = xs[b];
+		double y3 = ys[b];
+		double c00 = 0;
+		double c01 = 0;
+		double c11 = 0;
+		double d0 = 0;
+		double d1 = 0;
+		for(int i = a; i <= b; i++) {
+			double u = params[i - a];
+			double v = 1 - u;
+			double b1 = 3 * u * v * v;
+			double b2 = 3 * u * u * v;
+			double b03 = v * v * v + b1;
+			double b33 = b2 + u * u * u;
+			double a0x = t1x * b1;
+			double a0y = t1y * b1;
+			double a1x = t2x * b2;
+			double a1y = t2y * b2;
+			c00 += a0x * a0x + a0y * a0y;
+			c01 += a0x * a1x + a0y * a1y;
+			c11 += a1x * a1x + a1y * a1y;
+			double rx = xs[i] - (x0 * b03 + x3 * b33);
+			double ry = ys[i] - (y0 * b03 + y3 * b33);
+			d0 += a0x * rx + a0y * ry;
+			d1 += a1x * rx + a1y * ry;
+		}
+		double chord = Math.hypot(x3 - x0, y3 - y0);
+		// With no samples between the ends there is nothing to bend the curve towards, so it is straight.
+		if(b - a < 2) {
+			t1x = (x3 - x0) / chord;
+			t1y = (y3 - y0) / chord;
+			t2x = -t1x;
+			t2y = -t1y;
+		}
+		double det = c00 * c11 - c01 * c01;
+		double alpha1 = det == 0 ? 0 : (d0 * c11 - d1 * c01) / det;
+		double alpha2 = det == 0 ? 0 : (c00 * d1 - c01 * d0) / det;
+		// Too few samples to solve, or a curve that would loop: fall back to a third of the chord.
+		if(alpha1 <= 1e-6 * chord || alpha2 <= 1e-6 * chord || alpha1 > 4 * chord || alpha2 > 4 * chord) {
+			alpha1 = chord / 3;
+			alpha2 = chord / 3;
+		}
+		trial[0] = (float) (x0 + t1x * alpha1);
+		trial[1] = (float) (y0 + t1y * alpha1);
+		trial[2] = (float) (x3 + t2x * alpha2);
+		trial[3] = (float) (y3 + t2y * alpha2);
+		trial[4] = (float) x3;
+		trial[5] = (float) y3;
+	}
+	
+	/**
+	 * Return the largest squared distance from a sample to its point on the scratch curve,
+	 * or from the line between two samples to the point halfway between theirs, so that the
+	 * curve can't swing wide where the samples are far apart.
+	 */
+	private double error(int a, int b) {
+		double worst = 0;
+		for(int i = a; i < b; i++) {
+			double u = params[i - a];
+			if(i > a) {
+				double dx = bezier(xs[a], trial[0], trial[2], trial[4], u) - xs[i];
+				double dy = bezier(ys[a], trial[1], trial[3], trial[5], u) - ys[i];
+				worst = Math.max(worst, dx * dx + dy * dy);
+			}
+			u = (u + params[i + 1 - a]) / 2;
+			double x = bezier(xs[a], trial[0], trial[2], trial[4], u);
+			double y = bezier(ys[a], trial[1], trial[3], trial[5], u);
+			worst = Math.max(worst, Line2D.ptSegDistSq(xs[i], ys[i], xs[i + 1], ys[i + 1], x, y));
+		}
+		return worst;
+	}
+	
+	/**
+	 * Move each sample's parameter one Newton step towards its nearest point on the scratch curve.
+	 */
+	private void reparameterize(int a, int b) {
+		double x0 = xs[a];
+		double y0 = ys[a];
+		for(int i = a + 1; i < b; i++) {
+			double u = params[i - a];
+			double v = 1 - u;
+			double dx = bezier(x0, trial[0], trial[2], trial[4], u) - xs[i];
+			double dy = bezier(y0, trial[1], trial[3], trial[5], u) - ys[i];
+			// First and second derivatives of the curve at u.
+			double d1x = 3 * (v * v * (trial[0] - x0) + 2 * u * v * (trial[2] - trial[0]) + u * u * (trial[4] - trial[2]));
+			double d1y = 3 * (v * v * (trial[1] - y0) + 2 * u * v * (trial[3] - trial[1]) + u * u * (trial[5] - trial[3]));
+			double d2x = 6 * (v * (trial[2] - 2 * trial[0] + x0) + u * (trial[4] - 2 * trial[2] + trial[0]));
+			double d2y = 6 * (v * (trial[3] - 2 * trial[1] + y0) + u * (trial[5] - 2 * trial[3] + trial[1]));
+			double denominator = d1x * d1x + d1y * d1y + dx * d2x + dy * d2y;
+			if(denominator != 0)
+				params[i - a] = Math.min(1, Math.max(0, u - (dx * d1x + dy * d1y) / denominator));
+		}
+	}
+	
+	/**
+	 * Return one coordinate of a point on a cubic Bezier curve.
+	 */
+	private static double bezier(double p0, double p1, double p2, double p3, double u) {
+		double v = 1 - u;
+		return v * v * v * p0 + 3 * u * v * v * p1 + 3 * u * u * v * p2 + u * u * u * p3;
+	}
+	
+	/**
+	 * Keep the curve fitted to the run as the stroke's next curve, ending at a sample,
+	 * extend the path with it, and start the next run from that sample.
+	 * 
+	 * @param n		index of the sample the curve ends at
+	 */
+	private void keep(int n) {
+		if(curveCount * 6 == curves.length)
+			curves = Arrays.copyOf(curves, curves.length * 2);
+		System.arraycopy(fit, 0, curves, curveCount * 6, 6);
+		curveCount++;
+		path.curveTo(fit[0], fit[1], fit[2], fit[3], fit[4], fit[5]);
+		
+		// The next curve leaves in the direction this one ends in.
+		double dx = fit[4] - fit[2];
+		double dy = fit[5] - fit[3];
+		double d = Math.hypot(dx, dy);
+		tangentX = d == 0 ? 0 : dx / d;
+		tangentY = d == 0 ? 0 : dy / d;
+		knot = n;
+		for(int i = 0; i < 6; i += 2) {
+			fit[i] = xs[n];
+			fit[i + 1] = ys[n];
+		}
+		
+		// Samples before the knot are never fitted again, so they go once they fill half the columns.
+		if(knot >= xs.length / 2) {
+			int run = count - knot;
+			float base = lengths[knot];
+			System.arraycopy(xs, knot, xs, 0, run);
+			System.arraycopy(ys, knot, ys, 0, run);
+			for(int i = 0; i < run; i++)
+				lengths[i] = lengths[knot + i] - base;
+			count = run;
+			knot = 0;
+		}
+	}
+	
+	/**
+	 * Grow a world-space area to cover the control points and end of a curve, and the stroke width around them.
+	 */
+	private void addDirty(Rectangle dirty, float[] curve) {
+		for(int i = 0; i < 6; i += 2)
+			addDirty(dirty, curve[i], curve[i + 1]);
+	}
+	
+	/**
+	 * Grow a world-space area to cover a point and the stroke width around it.
+	 */
+	private void addDirty(Rectangle dirty, float x, float y) {
+		int pad = (strokeWidth + 1) / 2 + 1;
+		dirty.add((int) Math.floor(x) - pad, (int) Math.floor(y) - pad);
+		dirty.add((int) Math.ceil(x) + pad, (int) Math.ceil(y) + pad);
+	}
+}
@@ -0,0 +1,359 @@
+package animator;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Performance collects timing statistics for the canvas, the timeline and playback.
+ * It is published over JMX as "animator:type=Performance", and the canvas
+ * can show a summary of it as an on-screen HUD.
+ * 
+ * @author Neill Johnston
+ */
+public class Performance implements PerformanceMBean {
+	private static final Performance instance = new Performance();
+	
+	// Length of the windows that per-second rates are measured over.
+	private static final long WINDOW_NANOS = 1000000000L;
+	
+	private Histogram canvasPaint;
+	private Histogram timelinePaint;
+	
+	// Objects drawn as vectors per canvas paint.
+	private long objectsDrawnLast;
+	private long objectsDrawnTotal;
+	
+	// Repainted pixels, rolled over every second.
+	private long repaintedPixels;
+	private long repaintedPixelsStart;
+	private long repaintedPixelsPerSecond;
+	
+	// Playback, for the current or last run.
+	private int playbackTargetFps;
+	private long playbackFrames;
+	private long playbackFramesStart;
+	private double playbackAchievedFps;
+	private long playbackDroppedFrames;
+	private long playbackHeldFrames;
+	private Histogram playbackJitter;
+	
+	private Performance() {
+		canvasPaint = new Histogram();
+		timelinePaint = new Histogram();
+		playbackJitter = new Histogram();
+		repaintedPixelsStart = System.nanoTime();
+	}
+	
+	/**
+	 * Return the statistics for this program.
+	 * 
+	 * @return the single Performance instance
+	 */
+	public static Performance getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Publish the statistics to the platform MBean server.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("animator:type=Performance");
+			if(!server.isRegistered(name))
+				server.registerMBean(this, name);
+		}
+		// Statistics are optional, so carry on without them.
+		catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// --- Recording methods. ---
+	
+	/**
+	 * Record a paint of the canvas.
+	 * 
+	 * @param nanos		how long the paint took
+	 * @param objects	how many objects were drawn as vectors
+	 * @param pixels	how many pixels were repainted
+	 */
+	public synchronized void recordCanvasPaint(long nanos, long objects, long pixels) {
+		canvasPaint.record(nanos);
+		objectsDrawnLast = objects;
+		objectsDrawnTotal += objects;
+		
+		repaintedPixels += pixels;
+		long now = System.nanoTime();
+		if(now - repaintedPixelsStart >= WINDOW_NANOS) {
+			repaintedPixelsPerSecond = repaintedPixels * WINDOW_NANOS / (now - repaintedPixelsStart);
+			repaintedPixels = 0;
+			repaintedPixelsStart = now;
+		}
+	}
+	
+	/**
+	 * Record a paint of the timeline.
+	 * 
+	 * @param nanos		how long the paint took
+	 */
+	public synchronized void recordTimelinePaint(long nanos) {
+		timelinePaint.record(nanos);
+	}
+	
+	/**
+	 * Record the start of playback, clearing the playback statistics.
+	 * 
+	 * @param fps		frames per second playback is aiming for
+	 */
+	public synchronized void recordPlaybackStart(int fps) {
+		playbackTargetFps = fps;
+		playbackFrames = 0;
+		playbackFramesStart = System.nanoTime();
+		playbackAchievedFps = 0;
+		playbackDroppedFrames = 0;
+		playbackHeldFrames = 0;
+		playbackJitter.reset();
+	}
+	
+	/**
+	 * Record a frame being shown during playback.
+	 * 
+	 * @param lateNanos		how long after its deadline the frame went on screen
+	 * @param dropped		how many frames were skipped to show this one
+	 */
+	public synchronized void recordPlaybackFrame(long lateNanos, long dropped) {
+		playbackJitter.record(Math.max(0, lateNanos));
+		playbackDroppedFrames += dropped;
+		
+		playbackFrames++;
+		long now = System.nanoTime();
+		if(now - playbackFramesStart >= WINDOW_NANOS) {
+			playbackAchievedFps = playbackFrames * 1e9 / (now - playbackFramesStart);
+			playbackFrames = 0;
+			playbackFramesStart = now;
+		}
+	}
+	
+	/**
+	 * Record a frame being held during playback, because the next one wasn't ready.
+	 */
+	public synchronized void recordPlaybackHold() {
+		playbackHeldFrames++;
+	}
+	
+	// --- MBean attributes. ---
+	
+	@Override
+	public synchronized long getCanvasPaintCount() {
+		return canvasPaint.getCount();
+	}
+	
+	@Override
+	public synchronized double getCanvasPaintMeanMillis() {
+		return canvasPaint.getMean() / 1e6;
+	}
+	
+	@Override
+	public synchronized double getCanvasPaintP50Millis() {
+		return canvasPaint.getPercentile(0.50) / 1e6;
+	}
+	
+	@Override
+	public synchronized double getCanvasPaintP95Millis() {
+		return canvasPaint.getPercentile(0.95) / 1e6;
+	}
+	
+	@Override
+	public synchronized double getCanvasPaintP99Millis() {
+		return canvasPaint.getPercentile(0.99) / 1e6;
+	}
+	
+	@Override
+	public synchronized double getCanvasPaintMaxMillis() {
+		return canvasPaint.getMax() / 1e6;
+	}
+	
+	@Override
+	public synchronized String getCanvasPaintHistogram() {
+		return canvasPaint.toString();
+	}
+	
+	@Override
+	public synchronized long getObjectsDrawnLast() {
+		return objectsDrawnLast;
+	}
+	
+	@Override
+	public synchronized double getObjectsDrawnMean() {
+		return canvasPaint.getCount() == 0 ? 0 : (double) objectsDrawnTotal / canvasPaint.getCount();
+	}
+	
+	@Override
+	public synchronized long getRepaintedPixelsPerSecond() {
+		return repaintedPixelsPerSecond;
+	}
+	
+	@Override
+	public synchronized long getTimelinePaintCount() {
+		return timelinePaint.getCount();
+	}
+	
+	@Override
+	public synchronized double getTimelinePaintMeanMillis() {
+		return timelinePaint.getMean() / 1e6;
+	}
+	
+	@Override
+	public synchronized double getTimelinePaintP95Millis() {
+		return timelinePaint.getPercentile(0.95) / 1e6;
+	}
+	
+	@Override
+	public synchronized int getPlaybackTargetFps() {
+		return playbackTargetFps;
+	}
+	
+	@Override
+	public synchronized double getPlaybackAchievedFps() {
+		return playbackAchievedFps;
+	}
+	
+	@Override
+	public synchronized long getPlaybackDroppedFrames() {
+		return playbackDroppedFrames;
+	}
+	
+	@Override
+	public synchronized long getPlaybackHeldFrames() {
+		return playbackHeldFrames;
+	}
+	
+	@Override
+	public synchronized double getPlaybackJitterMeanMillis() {
+		return playbackJitter.getMean() / 1e6;
+	}
+	
+	@Override
+	public synchronized double getPlaybackJitterMaxMillis() {
+		return playbackJitter.getMax() / 1e6;
+	}
+	
+	@Override
+	public synchronized void reset() {
+		canvasPaint.reset();
+		timelinePaint.reset();
+		objectsDrawnLast = 0;
+		objectsDrawnTotal = 0;
+		recordPlaybackStart(playbackTargetFps);
+	}
+	
+	/**
+	 * Summarize the statistics in a few lines, for the HUD.
+	 * 
+	 * @return lines of text
+	 */
+	public synchronized String[] getSummary() {
+		return new String[] {
+			String.format("paint %.2f ms (p95 %.2f, max %.2f)",
+					getCanvasPaintMeanMillis(), getCanvasPaintP95Millis(), getCanvasPaintMaxMillis()),
+			String.format("objects drawn %d, pixels/s %d", objectsDrawnLast, repaintedPixelsPerSecond),
+			String.format("timeline %.2f ms", getTimelinePaintMeanMillis()),
+			String.format("playback %.1f / %d fps, dropped %d, held %d, jitter %.2f ms",
+					playbackAchievedFps, playbackTargetFps, playbackDroppedFrames, playbackHeldFrames,
+					getPlaybackJitterMeanMillis()),
+		};
+	}
+	
+	/**
+	 * Histogram of durations, in power-of-two buckets from 1 microsecond up to about a minute.
+	 */
+	private static class Histogram {
+		private static final int BUCKETS = 27;
+		
+		private long[] buckets;
+		private long count;
+		private long total;
+		private long max;
+		
+		Histogram() {
+			buckets = new long[BUCKETS];
+		}
+		
+		/**
+		 * Add a duration.
+		 * 
+		 * @param nanos		duration in nanoseconds
+		 */
+		void record(long nanos) {
+			long micros = nanos / 1000;
+			int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+			buckets[Math.min(bucket, BUCKETS - 1)]++;
+			count++;
+			total += nanos;
+			max = Math.max(max, nanos);
+		}
+		
+		void reset() {
+			buckets = new long[BUCKETS];
+			count = 0;
+			total = 0;
+			max = 0;
+		}
+		
+		long getCount() {
+			return count;
+		}
+		
+		double getMean() {
+			return count == 0 ? 0 : (double) total / count;
+		}
+		
+		long getMax() {
+			return max;
+		}
+		
+		/**
+		 * Estimate a percentile, as the upper edge of the bucket it falls in.
+		 * 
+		 * @param fraction	percentile (0.0-1.0)
+		 * @return duration in nanoseconds
+		 */
+		double getPercentile(double fraction) {
+			long target = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if(seen >= target && seen > 0)
+					return Math.min(upperEdge(i), max);
+			}
+			return max;
+		}
+		
+		/**
+		 * Return the upper edge of a bucket, in nanoseconds.
+		 */
+		private static double upperEdge(int bucket) {
+			return (1L << bucket) * 1000.0;
+		}
+		
+		/**
+		 * List the non-empty buckets, as "<upper edge in ms>: count".
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < BUCKETS; i++) {
+				if(buckets[i] == 0)
+					continue;
+				if(sb.length() > 0)
+					sb.append(", ");
+				sb.append(String.format("<%.3f ms: %d", upperEdge(i) / 1e6, buckets[i]));
+			}
+			return sb.toString();
+		}
+	}
+}
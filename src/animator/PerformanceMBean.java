@@ -0,0 +1,37 @@
+package animator;
+
+/**
+ * PerformanceMBean is the JMX view of the paint and playback statistics.
+ * Times are in milliseconds.
+ * 
+ * @author Neill Johnston
+ */
+public interface PerformanceMBean {
+	public long getCanvasPaintCount();
+	public double getCanvasPaintMeanMillis();
+	public double getCanvasPaintP50Millis();
+	public double getCanvasPaintP95Millis();
+	public double getCanvasPaintP99Millis();
+	public double getCanvasPaintMaxMillis();
+	public String getCanvasPaintHistogram();
+	
+	public long getObjectsDrawnLast();
+	public double getObjectsDrawnMean();
+	public long getRepaintedPixelsPerSecond();
+	
+	public long getTimelinePaintCount();
+	public double getTimelinePaintMeanMillis();
+	public double getTimelinePaintP95Millis();
+	
+	public int getPlaybackTargetFps();
+	public double getPlaybackAchievedFps();
+	public long getPlaybackDroppedFrames();
+	public long getPlaybackHeldFrames();
+	public double getPlaybackJitterMeanMillis();
+	public double getPlaybackJitterMaxMillis();
+	
+	/**
+	 * Clear all of the statistics.
+	 */
+	public void reset();
+}
@@ -0,0 +1,327 @@
+package animator;
+
+import java.awt.Color;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Playback plays the animation from pre-rendered frames.
+ * Upcoming frames are rendered into a small ring buffer by the RenderEngine,
+ * and each frame is shown at a time measured from when playback started,
+ * so that slow frames don't push the rest of the animation back.
+ * If a frame isn't ready in time the last one is held, and if the animation
+ * falls behind, frames are dropped to catch up.
+ * All of the public methods must be called on the EDT.
+ * 
+ * @author Neill Johnston
+ */
+public class Playback {
+	// How many frames to render ahead of the one on screen.
+	private static final int BUFFER_SIZE = 8;
+	// How long to wait before checking again on a frame that isn't ready.
+	private static final long HOLD_NANOS = 2000000L;
+	
+	/**
+	 * Listener is told when frames are shown and when playback stops.
+	 * Both are called on the EDT.
+	 */
+	public interface Listener {
+		/**
+		 * Show a frame.
+		 * 
+		 * @param index		index of the frame in the layers
+		 * @param image		rendered frame
+		 */
+		public void frameShown(int index, BufferedImage image);
+		
+		/**
+		 * Playback has stopped.
+		 */
+		public void stopped();
+	}
+	
+	private RenderEngine engine;
+	private ScheduledExecutorService clock;
+	private Listener listener;
+	
+	// Settings for the current run.
+	private List<Layer> layers;
+	private int first;
+	private int end;
+	private boolean loop;
+	private int fps;
+	private int width;
+	private int height;
+	private AffineTransform transform;
+	
+	// Rendered and rendering frames, by sequence number (frames since start).
+	private ArrayList<Future<BufferedImage>> ring;
+	private long[] ringSequence;
+	private long submitted;
+	private long shown;
+	private long startNanos;
+	private ScheduledFuture<?> tick;
+	// Bumped on every start and stop, so that stale ticks are ignored.
+	private int generation;
+	private boolean playing;
+	
+	// Counters for the current run.
+	private long droppedFrames;
+	private long heldFrames;
+	
+	/**
+	 * Construct a playback engine.
+	 * 
+	 * @param engine	renderer to draw frames with
+	 * @param listener	listener to show frames with
+	 */
+	public Playback(RenderEngine engine, Listener listener) {
+		this.engine = engine;
+		this.listener = listener;
+		this.clock = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "playback-clock");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.ring = new ArrayList<Future<BufferedImage>>();
+		for(int i = 0; i < BUFFER_SIZE; i++)
+			ring.add(null);
+		this.ringSequence = new long[BUFFER_SIZE];
+	}
+	
+	/**
+	 * Start playing, stopping first if already playing.
+	 * Plays from the first frame up to the first gap, and if looping,
+	 * continues from frame 0 up to that same gap.
+	 * 
+	 * @param layers		layers to render, bottom first
+	 * @param first			index of the first frame
+	 * @param loop			whether to loop back to frame 0 at the end
+	 * @param fps			frames per second
+	 * @param width			width of the rendered frames
+	 * @param height		height of the rendered frames
+	 * @param transform		world-to-image transform
+	 */
+	public void start(List<Layer> layers, int first, boolean loop, int fps,
+			int width, int height, AffineTransform transform) {
+		stop();
+		
+		// Find the end of the run of frames.
+		int end = first;
+		while(hasFrame(layers, end))
+			end++;
+		if(end == first || fps <= 0 || width <= 0 || height <= 0)
+			return;
+		
+		this.layers = new ArrayList<Layer>(layers);
+		this.first = first;
+		this.end = end;
+		this.loop = loop;
+		this.fps = fps;
+		this.width = width;
+		this.height = height;
+		this.transform = new AffineTransform(transform);
+		this.submitted = 0;
+		this.shown = -1;
+		this.droppedFrames = 0;
+		this.heldFrames = 0;
+		this.playing = true;
+		
+		fill(0);
+		Performance.getInstance().recordPlaybackStart(fps);
+		startNanos = System.nanoTime();
+		schedule(startNanos);
+	}
+	
+	/**
+	 * Stop playing, and throw away any frames rendered ahead.
+	 */
+	public void stop() {
+		generation++;
+		if(tick != null) {
+			tick.cancel(false);
+			tick = null;
+		}
+		for(int i = 0; i < BUFFER_SIZE; i++) {
+			if(ring.get(i) != null)
+				ring.get(i).cancel(false);
+			ring.set(i, null);
+		}
+		if(playing) {
+			playing = false;
+			listener.stopped();
+		}
+	}
+	
+	/**
+	 * Return whether the animation is playing.
+	 * 
+	 * @return playing
+	 */
+	public boolean isPlaying() {
+		return playing;
+	}
+	
+	/**
+	 * Return how many frames were skipped to catch up in the current or last run.
+	 * 
+	 * @return droppedFrames
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+	
+	/**
+	 * Return how many times a frame was held because the next wasn't ready in time.
+	 * 
+	 * @return heldFrames
+	 */
+	public long getHeldFrames() {
+		return heldFrames;
+	}
+	
+	/**
+	 * Show whichever frame is due now, if it has been rendered, and schedule the next check.
+	 * 
+	 * @param generation	generation of the run that scheduled this
+	 */
+	private void present(int generation) {
+		if(!playing || generation != this.generation)
+			return;
+		
+		long now = System.nanoTime();
+		// Don't start the clock until the first frame is ready.
+		if(shown < 0 && !isReady(0))
+			startNanos = now;
+		long due = (now - startNanos) * fps / 1000000000L;
+		if(!loop && due >= end - first) {
+			stop();
+			return;
+		}
+		
+		boolean holding = false;
+		if(due > shown) {
+			int slot = (int) (due % BUFFER_SIZE);
+			Future<BufferedImage> image = ring.get(slot);
+			if(isReady(due)) {
+				long dropped = shown >= 0 ? due - shown - 1 : 0;
+				droppedFrames += dropped;
+				Performance.getInstance().recordPlaybackFrame(now - deadline(due), dropped);
+				ring.set(slot, null);
+				shown = due;
+				try {
+					listener.frameShown(indexOf(due), image.get());
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+			else {
+				if(shown >= 0) {
+					heldFrames++;
+					Performance.getInstance().recordPlaybackHold();
+				}
+				holding = true;
+			}
+		}
+		
+		fill(Math.max(shown + 1, due));
+		schedule(holding ? now + HOLD_NANOS : deadline(Math.max(shown, due) + 1));
+	}
+	
+	/**
+	 * Whether a frame has finished rendering.
+	 * 
+	 * @param sequence	sequence number of the frame
+	 * @return whether the frame is in the buffer and done
+	 */
+	private boolean isReady(long sequence) {
+		int slot = (int) (sequence % BUFFER_SIZE);
+		return ring.get(slot) != null && ringSequence[slot] == sequence && ring.get(slot).isDone();
+	}
+	
+	/**
+	 * Queue renders for the frames after a sequence number, up to the size of the buffer.
+	 * Frames that have fallen behind are cancelled to make room.
+	 * 
+	 * @param from		first sequence number that is still needed
+	 */
+	private void fill(long from) {
+		long last = from + BUFFER_SIZE;
+		if(!loop)
+			last = Math.min(last, end - first);
+		for(long s = Math.max(from, submitted); s < last; s++) {
+			int slot = (int) (s % BUFFER_SIZE);
+			if(ring.get(slot) != null)
+				ring.get(slot).cancel(false);
+			ring.set(slot, engine.submit(layers, indexOf(s), width, height, transform, Color.white));
+			ringSequence[slot] = s;
+			submitted = s + 1;
+		}
+	}
+	
+	/**
+	 * Schedule a check at a point in time.
+	 * 
+	 * @param when		System.nanoTime() to check at
+	 */
+	private void schedule(long when) {
+		final int generation = this.generation;
+		tick = clock.schedule(new Runnable() {
+			@Override
+			public void run() {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						present(generation);
+					}
+				});
+			}
+		}, Math.max(0, when - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Return when a frame should go on screen.
+	 * 
+	 * @param sequence	sequence number of the frame
+	 * @return the System.nanoTime() the frame is due
+	 */
+	private long deadline(long sequence) {
+		return startNanos + sequence * 1000000000L / fps;
+	}
+	
+	/**
+	 * Map a sequence number to a frame index, wrapping around when looping.
+	 * 
+	 * @param sequence	sequence number of the frame
+	 * @return index of the frame in the layers
+	 */
+	private int indexOf(long sequence) {
+		if(sequence < end - first)
+			return (int) (first + sequence);
+		return (int) ((sequence - (end - first)) % end);
+	}
+	
+	/**
+	 * Whether any of the layers has a frame at an index.
+	 */
+	private static boolean hasFrame(List<Layer> layers, int index) {
+		for(Layer layer : layers)
+			if(layer.getExposed(index) != null)
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,240 @@
+package animator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProjectFile reads and writes the binary project format.
+ * A file is a header, then every frame's encoding back to back, then a layer table:
+ * 
+ *   header		magic, version, fps, layer count, layer table offset
+ *   frames		per frame: a key frame (every row) or a delta (only the rows that differ
+ *   			from the frame before it in the layer); see Frame.encode
+ *   layers		per layer: name, visibility, opacity, frame count, then an index of
+ *   			(key, hold, object count, offset, length) for each of its frames
+ * 
+ * Opening only reads the header and layer table; the file is memory-mapped and each
+ * frame is decoded the first time it is used, so opening is quick however long the
+ * animation is, and memory grows only with the frames that are actually looked at.
+ * 
+ * Frames mostly differ little from the one before, so each layer is saved as a key frame
+ * followed by deltas, with a key frame at least every KEY_INTERVAL frames so that decoding
+ * any frame takes at most that many steps. A delta is decoded onto a copy of the frame
+ * before it, so loaded frames share the memory of their common objects too.
+ * 
+ * @author Neill Johnston
+ */
+public class ProjectFile {
+	private static final int MAGIC = 0x414E494D; // "ANIM"
+	private static final int VERSION = 3;
+	// Oldest version that can still be read. Version 2 is the same, but never has curved rows.
+	private static final int MIN_VERSION = 2;
+	private static final int HEADER_BYTES = 24;
+	// Most frames in a row that are saved as deltas.
+	private static final int KEY_INTERVAL = 8;
+
+	private ArrayList<Layer> layers;
+	private int fps;
+
+	private ProjectFile(ArrayList<Layer> layers, int fps) {
+		this.layers = layers;
+		this.fps = fps;
+	}
+
+	/**
+	 * Return the layers, bottom first.
+	 * 
+	 * @return layers
+	 */
+	public ArrayList<Layer> getLayers() {
+		return layers;
+	}
+
+	public int getFps() {
+		return fps;
+	}
+
+	/**
+	 * Open a project file.
+	 * 
+	 * @param path		file to open
+	 * @return the project, with frames left to be decoded when first used
+	 * @throws IOException if the file can't be read or isn't a project file
+	 */
+	public static ProjectFile open(Path path) throws IOException {
+		MappedByteBuffer buffer;
+		try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+			// The mapping stays valid after the file is closed.
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+
+		if(buffer.limit() < HEADER_BYTES || buffer.getInt() != MAGIC)
+			throw new IOException(path + " is not a project file");
+		int version = buffer.getInt();
+		if(version < MIN_VERSION || version > VERSION)
+			throw new IOException(path + " has unsupported version " + version);
+		int fps = buffer.getInt();
+		int layerCount = buffer.getInt();
+		long tableOffset = buffer.getLong();
+		if(layerCount < 0 || tableOffset < HEADER_BYTES || tableOffset > buffer.limit())
+			throw new IOException(path + " has a layer table outside the file");
+		buffer.position((int) tableOffset);
+
+		ArrayList<Layer> layers = new ArrayList<Layer>();
+		try {
+			for(int i = 0; i < layerCount; i++)
+				layers.add(readLayer(path, buffer));
+		}
+		catch(BufferUnderflowException e) {
+			throw new IOException(path + " has a truncated layer table", e);
+		}
+		return new ProjectFile(layers, fps);
+	}
+
+	/**
+	 * Read one layer's entry in the layer table, leaving its frames to be decoded later.
+	 * Each frame's bytes are checked to lie within the file before they are sliced out.
+	 */
+	private static Layer readLayer(Path path, ByteBuffer buffer) throws IOException {
+		byte[] name = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(name);
+		Layer layer = new Layer(new String(name, StandardCharsets.UTF_8));
+		layer.remove(0);
+		layer.setVisible(buffer.get() != 0);
+		layer.setOpacity(buffer.getFloat());
+
+		int frameCount = buffer.getInt();
+		Frame previous = null;
+		for(int i = 0; i < frameCount; i++) {
+			int key = buffer.getInt();
+			int hold = buffer.getInt();
+			int size = buffer.getInt();
+			long offset = buffer.getLong();
+			int length = buffer.getInt();
+			if(offset < HEADER_BYTES || length < 0 || offset + length > buffer.limit())
+				throw new IOException(path + " has frame " + key + " outside the file");
+			ByteBuffer source = buffer.duplicate();
+			source.position((int) offset);
+			source.limit((int) offset + length);
+			previous = Frame.decodeLater(source.slice(), size, previous);
+			layer.put(key, previous);
+			layer.setHold(key, hold);
+		}
+		return layer;
+	}
+
+	/**
+	 * Save a project.
+	 * The file is written beside the target, flushed to disk, and then moved over it, so a failed
+	 * save or a crash leaves the old file alone. Where the old file can't be replaced while it is
+	 * mapped (as on Windows), every frame still read from it is decoded first, so nothing needs it.
+	 * 
+	 * @param path		file to save to
+	 * @param layers	layers to save, bottom first
+	 * @param fps		playback rate
+	 * @throws IOException if the file can't be written
+	 */
+	public static void save(Path path, List<Layer> layers, int fps) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		long tableOffset;
+
+		// Frames are written in layer order; remember where each one went for the table.
+		long[] offsets = new long[countFrames(layers)];
+		int[] lengths = new int[offsets.length];
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(fps);
+			out.writeInt(layers.size());
+			out.writeLong(0);
+
+			long position = HEADER_BYTES;
+			int n = 0;
+			for(Layer layer : layers) {
+				int deltas = 0;
+				for(int i = 0; i < layer.size(); i++) {
+					Frame base = i > 0 && deltas < KEY_INTERVAL - 1 ? layer.valueAt(i - 1) : null;
+					ByteBuffer encoded = layer.valueAt(i).encode(base);
+					deltas = Frame.isDelta(encoded) ? deltas + 1 : 0;
+					offsets[n] = position;
+					lengths[n] = encoded.remaining();
+					writeBuffer(out, encoded);
+					position += lengths[n++];
+				}
+			}
+
+			tableOffset = position;
+			n = 0;
+			for(Layer layer : layers) {
+				byte[] name = layer.getName().getBytes(StandardCharsets.UTF_8);
+				out.writeShort(name.length);
+				out.write(name);
+				out.writeByte(layer.isVisible() ? 1 : 0);
+				out.writeFloat(layer.getOpacity());
+				out.writeInt(layer.size());
+				for(int i = 0; i < layer.size(); i++) {
+					int key = layer.keyAt(i);
+					out.writeInt(key);
+					out.writeInt(layer.getHold(key));
+					out.writeInt(layer.valueAt(i).size());
+					out.writeLong(offsets[n]);
+					out.writeInt(lengths[n++]);
+				}
+			}
+		}
+
+		try(RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw")) {
+			file.seek(16);
+			file.writeLong(tableOffset);
+			file.getChannel().force(true);
+		}
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e) {
+			// The old file is mapped, or the move can't be atomic: let go of the old file and replace it plainly.
+			for(Layer layer : layers)
+				for(int i = 0; i < layer.size(); i++)
+					layer.valueAt(i).detach();
+			// A mapping is only released once its buffer is collected.
+			System.gc();
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Count the frames in all the layers.
+	 */
+	private static int countFrames(List<Layer> layers) {
+		int count = 0;
+		for(Layer layer : layers)
+			count += layer.size();
+		return count;
+	}
+
+	/**
+	 * Write out a buffer's remaining bytes.
+	 */
+	private static void writeBuffer(DataOutputStream out, ByteBuffer buffer) throws IOException {
+		if(buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		else {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package animator;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * QuadTree is a spatial index over the bounds of keyed items.
+ * Each item lives in the deepest node that fully contains it, so lookups
+ * only visit the nodes that overlap the area being searched.
+ * The root grows outwards as items are added beyond it.
+ * 
+ * @author Neill Johnston
+ */
+public class QuadTree {
+	// Items a node can hold before it splits.
+	private static final int MAX_ITEMS = 8;
+	// Depth at which nodes stop splitting.
+	private static final int MAX_DEPTH = 16;
+	// Side length of the first root node.
+	private static final int MIN_SIZE = 256;
+	
+	private Node root;
+	// Node holding each key, so that removal doesn't need a search.
+	private HashMap<Integer, Node> nodes;
+	
+	public QuadTree() {
+		nodes = new HashMap<Integer, Node>();
+	}
+	
+	/**
+	 * Add an item, replacing any item already indexed under the same key.
+	 * 
+	 * @param key		key of the item
+	 * @param bounds	bounds of the item
+	 */
+	public void insert(int key, Rectangle bounds) {
+		remove(key);
+		bounds = new Rectangle(bounds);
+		
+		if(root == null) {
+			int size = MIN_SIZE;
+			while(size < bounds.width || size < bounds.height)
+				size *= 2;
+			root = new Node(bounds.x, bounds.y, size, 0);
+		}
+		// Double the root towards the item until it fits.
+		while(!root.contains(bounds)) {
+			int x = bounds.x < root.x ? root.x - root.size : root.x;
+			int y = bounds.y < root.y ? root.y - root.size : root.y;
+			Node grown = new Node(x, y, root.size * 2, 0);
+			grown.split();
+			grown.children[(root.x == x ? 0 : 1) + (root.y == y ? 0 : 2)] = root;
+			root.deepen();
+			root = grown;
+		}
+		
+		root.insert(key, bounds);
+	}
+	
+	/**
+	 * Remove an item.
+	 * 
+	 * @param key		key of the item
+	 * @return whether the item was indexed
+	 */
+	public boolean remove(int key) {
+		Node node = nodes.remove(key);
+		if(node == null)
+			return false;
+		node.remove(key);
+		return true;
+	}
+	
+	/**
+	 * Remove every item.
+	 */
+	public void clear() {
+		root = null;
+		nodes.clear();
+	}
+	
+	/**
+	 * Find every item whose bounds intersect an area.
+	 * 
+	 * @param area		area to search
+	 * @param keys		list to add the keys of the items found to
+	 */
+	public void query(Rectangle area, List<Integer> keys) {
+		if(root != null)
+			root.query(area, keys);
+	}
+	
+	/**
+	 * A square region of the tree, with the items that fit in it but in none of its children.
+	 */
+	private class Node {
+		private int x;
+		private int y;
+		private int size;
+		private int depth;
+		
+		private int count;
+		private int[] keys;
+		private Rectangle[] bounds;
+		private Node[] children;
+		
+		Node(int x, int y, int size, int depth) {
+			this.x = x;
+			this.y = y;
+			this.size = size;
+			this.depth = depth;
+			this.keys = new int[MAX_ITEMS];
+			this.bounds = new Rectangle[MAX_ITEMS];
+		}
+		
+		/**
+		 * Whether a rectangle fits entirely inside this node.
+		 */
+		boolean contains(Rectangle r) {
+			return r.x >= x && r.y >= y && r.x + r.width <= x + size && r.y + r.height <= y + size;
+		}
+		
+		/**
+		 * Whether a rectangle overlaps this node at all.
+		 */
+		boolean intersects(Rectangle r) {
+			return r.x <= x + size && r.y <= y + size && r.x + r.width >= x && r.y + r.height >= y;
+		}
+		
+		/**
+		 * Push this node and its children one level down, when a new root is put above them.
+		 */
+		void deepen() {
+			depth++;
+			if(children != null)
+				for(Node child : children)
+					child.deepen();
+		}
+		
+		/**
+		 * Create the four child quadrants: top left, top right, bottom left, bottom right.
+		 */
+		void split() {
+			int half = size / 2;
+			children = new Node[] {
+				new Node(x, y, half, depth + 1),
+				new Node(x + half, y, half, depth + 1),
+				new Node(x, y + half, half, depth + 1),
+				new Node(x + half, y + half, half, depth + 1),
+			};
+		}
+		
+		void insert(int key, Rectangle r) {
+			if(children != null) {
+				for(Node child : children) {
+					if(child.contains(r)) {
+						child.insert(key, r);
+						return;
+					}
+				}
+			}
+			
+			add(key, r);
+			
+			// Split once the node is crowded, and push down whatever fits in a child.
+			if(children == null && count > MAX_ITEMS && depth < MAX_DEPTH && size > 1) {
+				split();
+				int[] oldKeys = keys;
+				Rectangle[] oldBounds = bounds;
+				int oldCount = count;
+				keys = new int[MAX_ITEMS];
+				bounds = new Rectangle[MAX_ITEMS];
+				count = 0;
+				for(int i = 0; i < oldCount; i++)
+					insert(oldKeys[i], oldBounds[i]);
+			}
+		}
+		
+		void add(int key, Rectangle r) {
+			if(count == keys.length) {
+				int[] newKeys = new int[count * 2];
+				Rectangle[] newBounds = new Rectangle[count * 2];
+				System.arraycopy(keys, 0, newKeys, 0, count);
+				System.arraycopy(bounds, 0, newBounds, 0, count);
+				keys = newKeys;
+				bounds = newBounds;
+			}
+			keys[count] = key;
+			bounds[count] = r;
+			count++;
+			nodes.put(key, this);
+		}
+		
+		void remove(int key) {
+			for(int i = 0; i < count; i++) {
+				if(keys[i] == key) {
+					count--;
+					keys[i] = keys[count];
+					bounds[i] = bounds[count];
+					bounds[count] = null;
+					return;
+				}
+			}
+		}
+		
+		void query(Rectangle area, List<Integer> out) {
+			for(int i = 0; i < count; i++)
+				if(bounds[i].intersects(area))
+					out.add(keys[i]);
+			if(children != null)
+				for(Node child : children)
+					if(child.intersects(area))
+						child.query(area, out);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package animator;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RenderEngine rasterizes animation frames into images, away from the canvas.
+ * It does not touch Swing or the Manager, so it can run headless,
+ * and it spreads frames across a pool of worker threads.
+ * Frames are snapshotted when a render is submitted, so the model can keep
+ * changing while the workers draw.
+ * 
+ * @author Neill Johnston
+ */
+public class RenderEngine {
+	private ExecutorService pool;
+	private int threads;
+	
+	/**
+	 * Construct a render engine with one worker per processor.
+	 */
+	public RenderEngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Construct a render engine with a specified number of workers.
+	 * 
+	 * @param threads	number of frames to render at once
+	 */
+	public RenderEngine(int threads) {
+		this.threads = Math.max(1, threads);
+		this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "render-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Return the number of worker threads.
+	 * 
+	 * @return threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Queue a frame to be rendered on the worker threads.
+	 * Must be called from the thread that owns the model (usually the EDT).
+	 * 
+	 * @param layers		layers to render, bottom first
+	 * @param index			index of the frame in each layer
+	 * @param width			width of the image
+	 * @param height		height of the image
+	 * @param transform		world-to-image transform
+	 * @param background	color to fill the image with, or null to leave it transparent
+	 * @return the image, once it is drawn
+	 */
+	public Future<BufferedImage> submit(List<Layer> layers, int index, int width, int height,
+			AffineTransform transform, Color background) {
+		return pool.submit(new RenderJob(snapshot(layers, index), width, height, transform, background));
+	}
+	
+	/**
+	 * Queue a run of frames to be rendered on the worker threads.
+	 * Must be called from the thread that owns the model (usually the EDT).
+	 * 
+	 * @param layers		layers to render, bottom first
+	 * @param from			index of the first frame
+	 * @param to			index after the last frame
+	 * @param width			width of the images
+	 * @param height		height of the images
+	 * @param transform		world-to-image transform
+	 * @param background	color to fill the images with, or null to leave them transparent
+	 * @return the images in frame order, once they are drawn
+	 */
+	public List<Future<BufferedImage>> submitAll(List<Layer> layers, int from, int to, int width, int height,
+			AffineTransform transform, Color background) {
+		List<Future<BufferedImage>> images = new ArrayList<Future<BufferedImage>>();
+		for(int i = from; i < to; i++)
+			images.add(submit(layers, i, width, height, transform, background));
+		return images;
+	}
+	
+	/**
+	 * Stop the worker threads, after the queued renders finish.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+	
+	/**
+	 * Render a frame on the calling thread.
+	 * 
+	 * @param layers		layers to render, bottom first
+	 * @param index			index of the frame in each layer
+	 * @param width			width of the image
+	 * @param height		height of the image
+	 * @param transform		world-to-image transform
+	 * @param background	color to fill the image with, or null to leave it transparent
+	 * @return the drawn image
+	 */
+	public static BufferedImage render(List<Layer> layers, int index, int width, int height,
+			AffineTransform transform, Color background) {
+		return new RenderJob(snapshot(layers, index), width, height, transform, background).call();
+	}
+	
+	/**
+	 * Copy a frame out of the layers now, to be drawn later on any thread.
+	 * Must be called from the thread that owns the layers.
+	 * 
+	 * @param layers		layers to render, bottom first
+	 * @param index			index of the frame in each layer
+	 * @param width			width of the image
+	 * @param height		height of the image
+	 * @param transform		world-to-image transform
+	 * @param background	color to fill the image with, or null to leave it transparent
+	 * @return a job that draws the frame when called
+	 */
+	public static Callable<BufferedImage> prepare(List<Layer> layers, int index, int width, int height,
+			AffineTransform transform, Color background) {
+		return new RenderJob(snapshot(layers, index), width, height, transform, background);
+	}
+	
+	/**
+	 * Paint a frame's objects in world space.
+	 * 
+	 * @param g2d		Graphics2D object to use, already transformed to world space
+	 * @param frame		frame to paint
+	 */
+	public static void paint(Graphics2D g2d, Frame frame) {
+		frame.paint(g2d);
+	}
+	
+	/**
+	 * Copy the frames at an index out of each visible layer, so they can be drawn on another thread.
+	 * 
+	 * @param layers		layers to copy from, bottom first
+	 * @param index			index of the frame in each layer, counting holds
+	 * @return the copied frames, bottom first
+	 */
+	private static List<Slice> snapshot(List<Layer> layers, int index) {
+		List<Slice> slices = new ArrayList<Slice>();
+		for(Layer layer : layers) {
+			Frame frame = layer.getExposed(index);
+			if(frame != null && layer.isVisible() && layer.getOpacity() > 0)
+				slices.add(new Slice(Frame.readOnlyCopy(frame), layer.getComposite()));
+		}
+		return slices;
+	}
+	
+	/**
+	 * A layer's frame, with the composite to blend it in with.
+	 */
+	private static class Slice {
+		final Frame frame;
+		final AlphaComposite composite;
+		
+		Slice(Frame frame, AlphaComposite composite) {
+			this.frame = frame;
+			this.composite = composite;
+		}
+	}
+	
+	/**
+	 * A single frame render.
+	 */
+	private static class RenderJob implements Callable<BufferedImage> {
+		private List<Slice> slices;
+		private int width;
+		private int height;
+		private AffineTransform transform;
+		private Color background;
+		
+		RenderJob(List<Slice> slices, int width, int height, AffineTransform transform, Color background) {
+			this.slices = slices;
+			this.width = width;
+			this.height = height;
+			this.transform = new AffineTransform(transform);
+			this.background = background;
+		}
+		
+		@Override
+		public BufferedImage call() {
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g2d = image.createGraphics();
+			if(background != null) {
+				g2d.setColor(background);
+				g2d.fillRect(0, 0, width, height);
+			}
+			BufferedImage layerImage = null;
+			for(Slice slice : slices) {
+				if(slice.composite == null) {
+					g2d.setTransform(transform);
+					paint(g2d, slice.frame);
+					continue;
+				}
+				// Translucent layers are flattened first, so overlapping strokes don't blend with each other.
+				if(layerImage == null)
+					layerImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+				Graphics2D layerG2d = layerImage.createGraphics();
+				layerG2d.setComposite(AlphaComposite.Clear);
+				layerG2d.fillRect(0, 0, width, height);
+				layerG2d.setComposite(AlphaComposite.SrcOver);
+				layerG2d.transform(transform);
+				paint(layerG2d, slice.frame);
+				layerG2d.dispose();
+				g2d.setTransform(new AffineTransform());
+				g2d.setComposite(slice.composite);
+				g2d.drawImage(layerImage, 0, 0, null);
+				g2d.setComposite(AlphaComposite.SrcOver);
+			}
+			g2d.dispose();
+			return image;
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package animator;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * Selection is a set of objects in one frame picked out with the edit tool, by clicking one,
+ * dragging a box or drawing a lasso, so that they can be moved and scaled together.
+ * Editing a selection doesn't touch the objects: the selection holds a pending transform,
+ * shared by every object in it, and draws them through it, while the frame leaves them out
+ * of its raster. So a step of a drag only changes the transform, however many points the
+ * objects have, and while the view stays put the objects are drawn once, into a raster of
+ * the selection's own that is then just blitted through the transform.
+ * The transform is baked into the objects' geometry when the edit is committed.
+ * 
+ * @author Neill Johnston
+ */
+public class Selection {
+	// Side (in screen pixels) of the handles on the corners of the selection.
+	private static final int HANDLE_SIZE = 8;
+	
+	private Frame frame;
+	// IDs of the selected objects, in ascending order.
+	private int[] ids;
+	// World-space bounds of the objects before the pending transform, and the frame version they were measured at.
+	private Rectangle bounds;
+	private int version;
+	// Transform still to be applied to every selected object.
+	private AffineTransform pending;
+	// Whether the objects are being edited, and so drawn by the selection instead of the frame.
+	private boolean editing;
+	
+	// Raster of the objects at device resolution, the screen-space area it covers, and the view it was drawn at.
+	// A selection that reaches far off screen is drawn as vectors instead, and has no raster.
+	private BufferedImage image;
+	private Rectangle imageArea;
+	private boolean vector;
+	private double x;
+	private double y;
+	private double zoom;
+	private double scale;
+	
+	/**
+	 * Select some of a frame's objects.
+	 * 
+	 * @param frame		frame holding the objects
+	 * @param ids		IDs of the objects, in ascending order
+	 */
+	public Selection(Frame frame, int[] ids) {
+		this.frame = frame;
+		this.ids = ids;
+		this.pending = new AffineTransform();
+		this.version = -1;
+	}
+	
+	public Frame getFrame() {
+		return frame;
+	}
+	
+	public int[] getIds() {
+		return ids;
+	}
+	
+	public boolean isEmpty() {
+		return ids.length == 0;
+	}
+	
+	/**
+	 * Return the transform that will be applied to the objects when the edit is committed.
+	 * 
+	 * @return a copy of the pending transform
+	 */
+	public AffineTransform getTransform() {
+		return new AffineTransform(pending);
+	}
+	
+	/**
+	 * Set the transform to apply to the objects, starting an edit if there isn't one.
+	 * 
+	 * @param transform		world-space transform, relative to the objects as they are in the frame
+	 */
+	public void setTransform(AffineTransform transform) {
+		if(!editing) {
+			editing = true;
+			frame.setHidden(ids);
+		}
+		pending.setTransform(transform);
+	}
+	
+	/**
+	 * Bake the pending transform into the objects, as one step to undo, and end the edit.
+	 */
+	public void commit() {
+		if(!editing)
+			return;
+		editing = false;
+		image = null;
+		imageArea = null;
+		frame.setHidden(null);
+		if(pending.isIdentity())
+			return;
+		
+		Geometry before = new Geometry();
+		for(int id : ids)
+			frame.snapshot(id, before);
+		AffineTransform transform = getTransform();
+		for(int id : ids)
+			frame.transform(id, transform);
+		Manager.addCommand(new TransformCommand(frame, ids, before, transform));
+		pending.setToIdentity();
+	}
+	
+	/**
+	 * Return the world-space bounds of the objects as they are in the frame, before the pending transform.
+	 * 
+	 * @return the bounds, or an empty Rectangle if the objects are gone
+	 */
+	public Rectangle getBounds() {
+		// Measured again if the frame has changed since, such as by an undo, unless the change is this edit's.
+		if(bounds == null || (!editing && version != frame.getVersion())) {
+			bounds = new Rectangle();
+			for(int id : ids) {
+				CanvasObject co = frame.get(id);
+				if(co == null)
+					continue;
+				if(bounds.isEmpty())
+					bounds = co.getBounds();
+				else
+					bounds.add(co.getBounds());
+			}
+			version = frame.getVersion();
+		}
+		return bounds;
+	}
+	
+	/**
+	 * Return the outline of the selection, through the pending transform.
+	 * 
+	 * @return world-space outline
+	 */
+	public Shape getOutline() {
+		return pending.createTransformedShape(getBounds());
+	}
+	
+	/**
+	 * Return the world-space area the selection covers on screen, handles included.
+	 * 
+	 * @param zoom		zoom level of the view, which the handles don't scale with
+	 * @return a new Rectangle
+	 */
+	public Rectangle getPaintedBounds(double zoom) {
+		Rectangle painted = getOutline().getBounds();
+		int reach = (int) Math.ceil(HANDLE_SIZE / zoom);
+		painted.grow(reach, reach);
+		return painted;
+	}
+	
+	/**
+	 * Test whether a point is inside the selection's outline.
+	 * 
+	 * @param p		world-space point
+	 * @return whether the point is inside
+	 */
+	public boolean contains(Point2D p) {
+		return getOutline().contains(p);
+	}
+	
+	/**
+	 * Return a corner of the selection's outline.
+	 * 
+	 * @param corner	0 to 3, clockwise from the top left; the opposite corner is (corner + 2) % 4
+	 * @return world-space point, through the pending transform
+	 */
+	public Point2D getCorner(int corner) {
+		Rectangle r = getBounds();
+		Point2D p = new Point2D.Double(corner == 1 || corner == 2 ? r.getMaxX() : r.getMinX(),
+				corner >= 2 ? r.getMaxY() : r.getMinY());
+		return pending.transform(p, p);
+	}
+	
+	/**
+	 * Find the corner handle under a point.
+	 * 
+	 * @param p			world-space point
+	 * @param zoom		zoom level of the view, which the handles don't scale with
+	 * @return the corner, as for getCorner, or -1 if there is none
+	 */
+	public int handleAt(Point2D p, double zoom) {
+		double reach = HANDLE_SIZE / zoom / 2;
+		for(int corner = 0; corner < 4; corner++) {
+			Point2D c = getCorner(corner);
+			if(Math.abs(p.getX() - c.getX()) <= reach && Math.abs(p.getY() - c.getY()) <= reach)
+				return corner;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Paint the objects through the pending transform, if they are being edited.
+	 * Otherwise the frame paints them itself.
+	 * 
+	 * @param g2d		Graphics2D object to use, in screen space
+	 * @param width		width of the view (in screen pixels)
+	 * @param height	height of the view (in screen pixels)
+	 * @param x			horizontal pan of the view
+	 * @param y			vertical pan of the view
+	 * @param zoom		zoom level of the view
+	 * @param composite	composite to draw with, such as the layer's opacity, or null to keep the current one
+	 * @return the number of objects drawn as vectors
+	 */
+	public int paint(Graphics2D g2d, int width, int height, double x, double y, double zoom,
+			Composite composite) {
+		if(!editing)
+			return 0;
+		int drawn = 0;
+		double scale = g2d.getTransform().getScaleX();
+		AffineTransform view = AffineTransform.getTranslateInstance(x, y);
+		view.scale(zoom, zoom);
+		
+		// Draw the raster again only if the view has moved.
+		if(imageArea == null || this.x != x || this.y != y || this.zoom != zoom || this.scale != scale) {
+			// A raster of more than a few screens would cost more than it saves.
+			Rectangle area = view.createTransformedShape(getBounds()).getBounds();
+			imageArea = area.intersection(new Rectangle(-width, -height, 3 * width, 3 * height));
+			vector = !imageArea.equals(area);
+			image = null;
+			if(!vector && !area.isEmpty()) {
+				image = new BufferedImage((int) Math.ceil(area.width * scale), (int) Math.ceil(area.height * scale),
+						BufferedImage.TYPE_INT_ARGB);
+				Graphics2D imageG2d = image.createGraphics();
+				imageG2d.scale(scale, scale);
+				imageG2d.translate(-area.x, -area.y);
+				imageG2d.transform(view);
+				frame.paint(imageG2d, ids);
+				imageG2d.dispose();
+				drawn = ids.length;
+			}
+			this.x = x;
+			this.y = y;
+			this.zoom = zoom;
+			this.scale = scale;
+		}
+		
+		Composite oldComposite = g2d.getComposite();
+		AffineTransform oldTransform = g2d.getTransform();
+		Object oldInterpolation = g2d.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+		if(composite != null)
+			g2d.setComposite(composite);
+		if(vector) {
+			g2d.transform(view);
+			g2d.transform(pending);
+			frame.paint(g2d, ids);
+			drawn = ids.length;
+		}
+		else if(image != null) {
+			// From the raster to the screen, back to world space, through the pending transform, and onto the screen.
+			AffineTransform blit = new AffineTransform(view);
+			blit.concatenate(pending);
+			blit.scale(1 / zoom, 1 / zoom);
+			blit.translate(imageArea.x - x, imageArea.y - y);
+			blit.scale(1 / scale, 1 / scale);
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.drawImage(image, blit, null);
+		}
+		g2d.setTransform(oldTransform);
+		g2d.setComposite(oldComposite);
+		if(oldInterpolation != null)
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, oldInterpolation);
+		return drawn;
+	}
+	
+	/**
+	 * Paint the selection's outline and corner handles.
+	 * 
+	 * @param g2d		Graphics2D object to use, in world space
+	 * @param zoom		zoom level of the view, so lines and handles stay the same size on screen
+	 */
+	public void paintEditor(Graphics2D g2d, double zoom) {
+		g2d.setStroke(new BasicStroke((float) (1 / zoom)));
+		g2d.setColor(Color.green);
+		g2d.draw(getOutline());
+		double side = HANDLE_SIZE / zoom;
+		for(int corner = 0; corner < 4; corner++) {
+			Point2D c = getCorner(corner);
+			g2d.draw(new Rectangle2D.Double(c.getX() - side / 2, c.getY() - side / 2, side, side));
+		}
+	}
+	
+	// --- Commands ---
+	
+	/**
+	 * Transforming a set of objects. The shapes before are kept to undo with;
+	 * redo applies the same transform again, which gives the same shapes after.
+	 */
+	static class TransformCommand implements Command {
+		private Frame frame;
+		private int[] ids;
+		private Geometry before;
+		private AffineTransform transform;
+		
+		/**
+		 * @param frame			frame holding the objects
+		 * @param ids			IDs of the objects
+		 * @param before		the objects' shapes before the change, one after another, from Frame.snapshot
+		 * @param transform		transform that was applied to them
+		 */
+		TransformCommand(Frame frame, int[] ids, Geometry before, AffineTransform transform) {
+			this.frame = frame;
+			this.ids = ids;
+			this.before = before;
+			this.transform = transform;
+		}
+		
+		public void undo() {
+			int row = 0;
+			for(int id : ids) {
+				frame.set(id, before, row);
+				row = before.next(row);
+			}
+		}
+		
+		public void redo() {
+			for(int id : ids)
+				frame.transform(id, transform);
+		}
+		
+		public int size() {
+			// The command, the IDs and the shapes before.
+			return 512 + 4 * ids.length + before.bytes();
+		}
+		
+		public boolean merge(Command next) {
+			return false;
+		}
+		
+		public ByteBuffer write(ByteBuffer out, UndoJournal.Frames frames) {
+			out = UndoJournal.ensure(out, 61 + 4 * ids.length + before.bytes());
+			out.put(UndoJournal.KIND_TRANSFORM);
+			out.putInt(frames.numberOf(frame));
+			out.putInt(ids.length);
+			for(int id : ids)
+				out.putInt(id);
+			double[] matrix = new double[6];
+			transform.getMatrix(matrix);
+			for(double m : matrix)
+				out.putDouble(m);
+			out.putInt(before.size());
+			for(int row = 0; row < before.size(); row++)
+				before.writeRow(out, row);
+			return out;
+		}
+		
+		/**
+		 * Decode a command written by write, after its kind byte.
+		 */
+		static TransformCommand read(ByteBuffer in, UndoJournal.Frames frames) {
+			Frame frame = frames.get(in.getInt());
+			int[] ids = new int[in.getInt()];
+			for(int i = 0; i < ids.length; i++)
+				ids[i] = in.getInt();
+			double[] matrix = new double[6];
+			for(int i = 0; i < matrix.length; i++)
+				matrix[i] = in.getDouble();
+			int rows = in.getInt();
+			Geometry before = new Geometry(rows);
+			for(int i = 0; i < rows; i++)
+				before.readRow(in);
+			return new TransformCommand(frame, ids, before, new AffineTransform(matrix));
+		}
+	}
+}
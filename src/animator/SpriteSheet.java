@@ -0,0 +1,435 @@
+package animator;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * SpriteSheet exports a layer's frames as texture atlases for game engines.
+ * Each frame is rendered trimmed to the bounds of its objects, frames that come out
+ * pixel-for-pixel the same are stored once, and the sprites are packed into as many
+ * atlas pages as it takes. A JSON sidecar maps each frame to its sprite and where it sits.
+ * Only the pixels are shared: two frames that trim to the same image at different
+ * positions use one sprite, each with its own offset.
+ * 
+ * Frames are rendered and hashed, and atlas pages composited and written, in parallel
+ * on a pool with one worker per core. Packing runs in between, on the export thread.
+ * The layer is copied when the export starts, so the model can keep changing.
+ * 
+ * For an output path of sheet.json, pages are written beside it as sheet-0.png, sheet-1.png...
+ * 
+ * @author Neill Johnston
+ */
+public class SpriteSheet {
+	// Transparent pixels around each sprite, so neighbours don't bleed into each other when filtered.
+	private static final int PADDING = 1;
+	
+	private Layer layer;
+	private int fps;
+	private double scale;
+	private int pageSize;
+	private Path path;
+	private Exporter.Listener listener;
+	
+	private ExecutorService pool;
+	private Thread thread;
+	
+	/**
+	 * Set up a sprite sheet export.
+	 * Must be called from the thread that owns the model (usually the EDT).
+	 * 
+	 * @param layer			layer whose frames are exported
+	 * @param fps			frames per second, recorded in the sidecar
+	 * @param scale			pixels per world unit
+	 * @param pageSize		width and height of an atlas page; larger sprites get a page of their own
+	 * @param path			sidecar file to write; pages are written beside it
+	 * @param listener		listener to tell about progress
+	 */
+	public SpriteSheet(Layer layer, int fps, double scale, int pageSize, Path path, Exporter.Listener listener) {
+		this.layer = Layer.readOnlyCopy(layer);
+		this.fps = fps;
+		this.scale = scale;
+		this.pageSize = pageSize;
+		this.path = path;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Start exporting in the background.
+	 */
+	public void start() {
+		pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "spritesheet-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Exception error = null;
+				try {
+					export();
+				}
+				catch(IOException | ExecutionException | InterruptedException e) {
+					error = e;
+				}
+				finally {
+					pool.shutdownNow();
+				}
+				listener.finished(error);
+			}
+		}, "spritesheet");
+		thread.start();
+	}
+	
+	/**
+	 * Stop exporting.
+	 */
+	public void cancel() {
+		thread.interrupt();
+	}
+	
+	/**
+	 * Render, deduplicate, pack and write, on the export thread.
+	 */
+	private void export() throws IOException, ExecutionException, InterruptedException {
+		// Render each distinct frame object once, in parallel.
+		IdentityHashMap<Frame, Future<Trim>> rendering = new IdentityHashMap<Frame, Future<Trim>>();
+		for(int i = 0; i < layer.size(); i++) {
+			final Frame frame = layer.valueAt(i);
+			if(rendering.containsKey(frame) || frame.isEmpty())
+				continue;
+			rendering.put(frame, pool.submit(new Callable<Trim>() {
+				@Override
+				public Trim call() {
+					return render(frame);
+				}
+			}));
+		}
+		
+		// Collect the sprites in frame order, keeping the first of any that look the same.
+		// Each frame keeps the offset of its own render, whichever sprite it ends up sharing.
+		ArrayList<Sprite> sprites = new ArrayList<Sprite>();
+		HashMap<Long, List<Sprite>> byHash = new HashMap<Long, List<Sprite>>();
+		Trim[] frameTrims = new Trim[layer.size()];
+		IdentityHashMap<Frame, Trim> resolved = new IdentityHashMap<Frame, Trim>();
+		for(int i = 0; i < layer.size(); i++) {
+			Frame frame = layer.valueAt(i);
+			if(frame.isEmpty())
+				continue;
+			Trim trim = resolved.get(frame);
+			if(trim == null) {
+				trim = rendering.get(frame).get();
+				List<Sprite> same = byHash.get(trim.sprite.hash);
+				if(same == null) {
+					same = new ArrayList<Sprite>();
+					byHash.put(trim.sprite.hash, same);
+				}
+				Sprite original = null;
+				for(Sprite candidate : same)
+					if(candidate.sameAs(trim.sprite))
+						original = candidate;
+				if(original == null) {
+					same.add(trim.sprite);
+					sprites.add(trim.sprite);
+				}
+				else
+					trim.sprite = original;
+				resolved.put(frame, trim);
+			}
+			frameTrims[i] = trim;
+			listener.progress(i + 1, layer.size());
+		}
+		
+		// Pack, then composite and write the pages in parallel.
+		List<Page> pages = pack(sprites);
+		String base = path.getFileName().toString().replaceFirst("\\.json$", "");
+		ArrayList<Future<Void>> writing = new ArrayList<Future<Void>>();
+		for(int p = 0; p < pages.size(); p++) {
+			final Page page = pages.get(p);
+			final Path file = path.resolveSibling(base + "-" + p + ".png");
+			page.fileName = file.getFileName().toString();
+			writing.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					page.write(file);
+					return null;
+				}
+			}));
+		}
+		for(Future<Void> page : writing)
+			page.get();
+		
+		writeSidecar(pages, sprites, frameTrims);
+	}
+	
+	/**
+	 * Render a frame trimmed to its bounds, and hash the pixels.
+	 * 
+	 * @param frame		frame to render, not empty
+	 * @return the sprite, and where it sits
+	 */
+	private Trim render(Frame frame) {
+		Rectangle bounds = frame.getBounds();
+		int left = (int) Math.floor(bounds.x * scale);
+		int top = (int) Math.floor(bounds.y * scale);
+		int width = Math.max(1, (int) Math.ceil((bounds.x + bounds.width) * scale) - left);
+		int height = Math.max(1, (int) Math.ceil((bounds.y + bounds.height) * scale) - top);
+		
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2d = image.createGraphics();
+		g2d.translate(-left, -top);
+		g2d.scale(scale, scale);
+		RenderEngine.paint(g2d, frame);
+		g2d.dispose();
+		return new Trim(new Sprite(image), left, top);
+	}
+	
+	// --- Packing. ---
+	
+	/**
+	 * Pack sprites into pages with a skyline: tallest first, each one placed where its
+	 * top edge ends up lowest, starting a new page when one doesn't fit anywhere.
+	 * 
+	 * @param sprites	sprites to pack, given their positions as they are placed
+	 * @return the pages
+	 */
+	private List<Page> pack(List<Sprite> sprites) {
+		ArrayList<Sprite> order = new ArrayList<Sprite>(sprites);
+		Collections.sort(order, new Comparator<Sprite>() {
+			@Override
+			public int compare(Sprite a, Sprite b) {
+				if(a.image.getHeight() != b.image.getHeight())
+					return b.image.getHeight() - a.image.getHeight();
+				return b.image.getWidth() - a.image.getWidth();
+			}
+		});
+		
+		ArrayList<Page> pages = new ArrayList<Page>();
+		for(Sprite sprite : order) {
+			int w = sprite.image.getWidth() + 2 * PADDING;
+			int h = sprite.image.getHeight() + 2 * PADDING;
+			boolean placed = false;
+			for(int p = 0; p < pages.size() && !placed; p++)
+				placed = pages.get(p).place(sprite, w, h);
+			if(!placed) {
+				Page page = new Page(Math.max(pageSize, w), Math.max(pageSize, h));
+				page.place(sprite, w, h);
+				pages.add(page);
+			}
+		}
+		for(int p = 0; p < pages.size(); p++)
+			for(Sprite sprite : pages.get(p).sprites)
+				sprite.page = p;
+		return pages;
+	}
+	
+	/**
+	 * A frame's trimmed render: the sprite it shows, and where the sprite's top-left corner
+	 * was, in exported pixels.
+	 */
+	private static class Trim {
+		Sprite sprite;
+		final int offsetX;
+		final int offsetY;
+		
+		Trim(Sprite sprite, int offsetX, int offsetY) {
+			this.sprite = sprite;
+			this.offsetX = offsetX;
+			this.offsetY = offsetY;
+		}
+	}
+	
+	/**
+	 * Trimmed pixels, shared by every frame that renders to exactly them.
+	 */
+	private static class Sprite {
+		final BufferedImage image;
+		final long hash;
+		// Where the sprite was packed.
+		int page;
+		int x;
+		int y;
+		int id;
+		
+		Sprite(BufferedImage image) {
+			this.image = image;
+			long h = image.getWidth() * 31L + image.getHeight();
+			for(int pixel : pixels())
+				h = h * 0x100000001B3L ^ pixel;
+			this.hash = h;
+		}
+		
+		int[] pixels() {
+			return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		}
+		
+		boolean sameAs(Sprite other) {
+			return image.getWidth() == other.image.getWidth() && image.getHeight() == other.image.getHeight()
+					&& Arrays.equals(pixels(), other.pixels());
+		}
+	}
+	
+	/**
+	 * An atlas page, and the skyline of what has been placed on it so far.
+	 */
+	private static class Page {
+		final int width;
+		final int height;
+		final ArrayList<Sprite> sprites;
+		// Skyline segments, left to right: x, y of the top of what's below, width.
+		final ArrayList<int[]> skyline;
+		// Extent actually used, so the page can be cropped.
+		int usedWidth;
+		int usedHeight;
+		String fileName;
+		
+		Page(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.sprites = new ArrayList<Sprite>();
+			this.skyline = new ArrayList<int[]>();
+			skyline.add(new int[] {0, 0, width});
+		}
+		
+		/**
+		 * Place a sprite at the lowest spot it fits, leftmost first.
+		 * 
+		 * @return whether it fit
+		 */
+		boolean place(Sprite sprite, int w, int h) {
+			int best = -1;
+			int bestY = Integer.MAX_VALUE;
+			for(int i = 0; i < skyline.size(); i++) {
+				int x = skyline.get(i)[0];
+				if(x + w > width)
+					break;
+				// The sprite rests on the highest segment it spans.
+				int y = 0;
+				int covered = 0;
+				for(int j = i; covered < w; j++) {
+					y = Math.max(y, skyline.get(j)[1]);
+					covered += skyline.get(j)[2];
+				}
+				if(y + h <= height && y < bestY) {
+					best = i;
+					bestY = y;
+				}
+			}
+			if(best < 0)
+				return false;
+			
+			int x = skyline.get(best)[0];
+			sprite.x = x + PADDING;
+			sprite.y = bestY + PADDING;
+			sprites.add(sprite);
+			usedWidth = Math.max(usedWidth, x + w);
+			usedHeight = Math.max(usedHeight, bestY + h);
+			
+			// Raise the skyline under the sprite, trimming the segments it covers.
+			int[] segment = {x, bestY + h, w};
+			int i = best;
+			while(i < skyline.size() && skyline.get(i)[0] < x + w) {
+				int[] covered = skyline.get(i);
+				int right = covered[0] + covered[2];
+				if(right <= x + w) {
+					skyline.remove(i);
+				}
+				else {
+					covered[2] = right - (x + w);
+					covered[0] = x + w;
+					break;
+				}
+			}
+			skyline.add(best, segment);
+			
+			// Merge neighbours at the same height.
+			for(int j = skyline.size() - 1; j > 0; j--) {
+				if(skyline.get(j)[1] == skyline.get(j - 1)[1]) {
+					skyline.get(j - 1)[2] += skyline.get(j)[2];
+					skyline.remove(j);
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Composite the sprites and write the page out, cropped to what was used.
+		 */
+		void write(Path file) throws IOException {
+			BufferedImage image = new BufferedImage(Math.max(1, usedWidth), Math.max(1, usedHeight),
+					BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g2d = image.createGraphics();
+			for(Sprite sprite : sprites)
+				g2d.drawImage(sprite.image, sprite.x, sprite.y, null);
+			g2d.dispose();
+			if(!ImageIO.write(image, "png", file.toFile()))
+				throw new IOException("No PNG writer");
+		}
+	}
+	
+	// --- Sidecar. ---
+	
+	/**
+	 * Write the JSON sidecar: the pages, every distinct sprite and where it is, and each
+	 * frame's key, hold, sprite (-1 for an empty frame) and offset.
+	 */
+	private void writeSidecar(List<Page> pages, List<Sprite> sprites, Trim[] frameTrims) throws IOException {
+		for(int i = 0; i < sprites.size(); i++)
+			sprites.get(i).id = i;
+		try(Writer out = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+			out.write("{\n\t\"fps\": " + fps + ",\n\t\"scale\": " + scale + ",\n");
+			out.write("\t\"pages\": [");
+			for(int p = 0; p < pages.size(); p++) {
+				Page page = pages.get(p);
+				out.write((p == 0 ? "\n" : ",\n") + "\t\t{\"file\": \"" + page.fileName + "\", \"w\": "
+						+ Math.max(1, page.usedWidth) + ", \"h\": " + Math.max(1, page.usedHeight) + "}");
+			}
+			out.write("\n\t],\n\t\"sprites\": [");
+			for(int i = 0; i < sprites.size(); i++) {
+				Sprite sprite = sprites.get(i);
+				out.write((i == 0 ? "\n" : ",\n") + "\t\t{\"page\": " + sprite.page + ", \"x\": " + sprite.x
+						+ ", \"y\": " + sprite.y + ", \"w\": " + sprite.image.getWidth() + ", \"h\": "
+						+ sprite.image.getHeight() + "}");
+			}
+			out.write("\n\t],\n\t\"frames\": [");
+			for(int i = 0; i < frameTrims.length; i++) {
+				int key = layer.keyAt(i);
+				Trim trim = frameTrims[i];
+				out.write((i == 0 ? "\n" : ",\n") + "\t\t{\"key\": " + key + ", \"hold\": " + layer.getHold(key)
+						+ ", \"sprite\": " + (trim == null ? -1 : trim.sprite.id)
+						+ ", \"offsetX\": " + (trim == null ? 0 : trim.offsetX)
+						+ ", \"offsetY\": " + (trim == null ? 0 : trim.offsetY) + "}");
+			}
+			out.write("\n\t]\n}\n");
+		}
+	}
+}
@@ -3,19 +3,28 @@ package animator;
 import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Composite;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.Shape;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.swing.JComponent;
 
 /**
  * An interface for various types of strokes - brush, pencil, etc.
  * Extension of JComponent so that it can be transformed and viewed easily.
+ * The stroke's geometry is kept up to date a point at a time: its bounds are a running
+ * minimum and maximum, and its shape is a Path2D extended in place, so adding a point costs
+ * the same however long the stroke is. Handles are only made, and only placed, when the
+ * stroke is edited.
  * 
  * @author Neill Johnston
  */
@@ -23,8 +32,20 @@ public abstract class Stroke extends Rectangle {
 	//
 	protected Point start;
 	protected Point end;
-	protected ArrayList<Point> points;
+	// Sampled points, as parallel coordinate columns.
+	protected float[] xs;
+	protected float[] ys;
+	protected int count;
+	// Running bounds of the points, not counting the stroke width.
+	protected float minX;
+	protected float minY;
+	protected float maxX;
+	protected float maxY;
+	// Shape of the stroke, extended as points are added.
+	protected Path2D.Float path;
+	// Handles, made the first time the stroke is edited, and whether they need placing again.
 	protected ArrayList<Handle> handles;
+	protected boolean handlesStale;
 	protected DragHandle dragHandle;
 	protected ScaleHandle scaleHandleTL;
 	protected ScaleHandle scaleHandleTR;
@@ -40,24 +61,66 @@ public abstract class Stroke extends Rectangle {
 	 * Construct this Stroke object with specified initial coordinates.
 	 */
 	public Stroke(Point start) {
+		this(start.x, start.y);
+	}
+	
+	/**
+	 * Construct this Stroke object starting at a point that needn't be whole.
+	 * 
+	 * @param x		x-coordinate of the first point
+	 * @param y		y-coordinate of the first point
+	 */
+	protected Stroke(float x, float y) {
 		super();
 		
-		this.start = start;
-		this.points = new ArrayList<Point>();
+		this.start = new Point(Math.round(x), Math.round(y));
+		this.xs = new float[16];
+		this.ys = new float[16];
+		this.path = new Path2D.Float();
 		this.strokeWidth = (Integer) Manager.tool.get(Manager.TOOL_WIDTH);
 		this.color = (Color) Manager.tool.get(Manager.TOOL_COLOR);
-		this.points.add(start);
-		this.handles = new ArrayList<Handle>();
-		this.dragHandle = new DragHandle(this, 20, Handle.POS_CENTER);
-		this.scaleHandleTL = new ScaleHandle(this, 10, Handle.POS_TOPLEFT);
-		this.scaleHandleTR = new ScaleHandle(this, 10, Handle.POS_TOPRIGHT);
-		this.scaleHandleBL = new ScaleHandle(this, 10, Handle.POS_BOTTOMLEFT);
-		this.scaleHandleBR = new ScaleHandle(this, 10, Handle.POS_BOTTOMRIGHT);
-		handles.add(dragHandle);
-		handles.add(scaleHandleTL);
-		handles.add(scaleHandleTR);
-		handles.add(scaleHandleBL);
-		handles.add(scaleHandleBR);
+		this.minX = this.maxX = x;
+		this.minY = this.maxY = y;
+		addPoint(x, y);
+		update();
+	}
+	
+	/**
+	 * Return the handles, making them if this is the first time they are needed,
+	 * and placing them if the stroke has changed since they were last placed.
+	 * 
+	 * @return the handles
+	 */
+	protected ArrayList<Handle> getHandles() {
+		if(handles == null) {
+			handles = new ArrayList<Handle>();
+			dragHandle = new DragHandle(this, 20, Handle.POS_CENTER);
+			scaleHandleTL = new ScaleHandle(this, 10, Handle.POS_TOPLEFT);
+			scaleHandleTR = new ScaleHandle(this, 10, Handle.POS_TOPRIGHT);
+			scaleHandleBL = new ScaleHandle(this, 10, Handle.POS_BOTTOMLEFT);
+			scaleHandleBR = new ScaleHandle(this, 10, Handle.POS_BOTTOMRIGHT);
+			handles.add(dragHandle);
+			handles.add(scaleHandleTL);
+			handles.add(scaleHandleTR);
+			handles.add(scaleHandleBL);
+			handles.add(scaleHandleBR);
+			handlesStale = true;
+		}
+		if(handlesStale) {
+			for(Handle h : handles)
+				h.update();
+			handlesStale = false;
+		}
+		return handles;
+	}
+	
+	/**
+	 * Return the stroke's shape. The path is kept, not rebuilt, so it must not be changed.
+	 * 
+	 * @return the path through the stroke's points
+	 */
+	public Shape getShape() {
+		return path;
 	}
 	
 	/**
@@ -66,7 +129,9 @@ public abstract class Stroke extends Rectangle {
 	 * @param g2d	Graphics object to use
 	 */
 	void paint(Graphics2D g2d) {
-		// Fill in with custom code.
+		g2d.setStroke(new BasicStroke(strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+		g2d.setColor(color);
+		g2d.draw(getShape());
 	}
 
 	/**
@@ -76,9 +141,10 @@ public abstract class Stroke extends Rectangle {
 	 * @param alpha		opacity (0.0-1.0)
 	 */
 	void paint(Graphics2D g2d, double alpha) {
+		Composite oldComposite = g2d.getComposite();
 		g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, (float) alpha));
 		paint(g2d);
-		g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1.0f));
+		g2d.setComposite(oldComposite);
 	}
 	
 	/**
@@ -91,28 +157,20 @@ public abstract class Stroke extends Rectangle {
 				BasicStroke.CAP_SQUARE, BasicStroke.JOIN_MITER));
 		g2d.setColor(Color.green);
 		g2d.draw(this);
-		for(Handle h : this.handles)
+		for(Handle h : getHandles())
 			h.paint(g2d);
 	}
 	
 	/**
-	 * Update the stroke in general.
+	 * Update the stroke in general, setting its Rectangle bounds from the running bounds.
 	 */
 	void update() {
-		double minX = start.x; double maxX = start.x;
-		double minY = start.y; double maxY = start.y;
-		for(Point q : this.points) {
-			minX = Math.min(q.x, minX);
-			maxX = Math.max(q.x, maxX);
-			minY = Math.min(q.y, minY);
-			maxY = Math.max(q.y, maxY);
-		}
 		this.setBounds(
 				(int) minX - strokeWidth / 2,
 				(int) minY - strokeWidth / 2,
 				(int) (maxX - minX) + strokeWidth,
 				(int) (maxY - minY) + strokeWidth);
-		
+		handlesStale = true;
 	}
 	
 	/**
@@ -121,10 +179,43 @@ public abstract class Stroke extends Rectangle {
 	 * @param p		mouse coordinates
 	 */
 	void update(Point p) {
+		addPoint(p.x, p.y);
 		update();
-		for(Handle h : this.handles)
-			h.update();
-		points.add(p);
+	}
+	
+	/**
+	 * Append a sample to the point columns, growing them if they are full,
+	 * and take it into the running bounds and the shape.
+	 * 
+	 * @param x		x-coordinate
+	 * @param y		y-coordinate
+	 */
+	protected void addPoint(float x, float y) {
+		if(count == xs.length) {
+			xs = Arrays.copyOf(xs, count * 2);
+			ys = Arrays.copyOf(ys, count * 2);
+		}
+		xs[count] = x;
+		ys[count] = y;
+		count++;
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+		extend(count - 1);
+	}
+	
+	/**
+	 * Extend the shape with a new point. Strokes that don't draw through every point
+	 * override this to choose which ones do.
+	 * 
+	 * @param n		index of the point
+	 */
+	protected void extend(int n) {
+		if(n == 0)
+			path.moveTo(xs[n], ys[n]);
+		else
+			path.lineTo(xs[n], ys[n]);
 	}
 	
 	/**
@@ -145,28 +236,35 @@ public abstract class Stroke extends Rectangle {
 	 * @param p		Point to translate to.
 	 */
 	void edit(Point p) {
+		getHandles();
 		if(this.dragHandle.contains(p))
 			this.translate((int) (p.getX() - this.dragHandle.x - this.dragHandle.width / 2),
 					(int) (p.getY() - this.dragHandle.y - this.dragHandle.height / 2));
-		this.update();
 	}
 	
 	/**
-	 * Override translate to also translate all points and handles.
+	 * Override translate to also translate all points, the running bounds and the shape.
+	 * The handles are placed again the next time they are needed.
 	 */
 	@Override
 	public void translate(int dx, int dy) {
 		super.translate(dx, dy);
-		for(Point p : this.points) {
-			p.translate(dx, dy);
+		for(int i = 0; i < count; i++) {
+			xs[i] += dx;
+			ys[i] += dy;
 		}
-		dragHandle.translate(dx, dy);
+		minX += dx;
+		minY += dy;
+		maxX += dx;
+		maxY += dy;
+		path.transform(AffineTransform.getTranslateInstance(dx, dy));
+		handlesStale = true;
 	}
 	
 	// --- Drag tracking methods. ---
 	
 	public void startDrag(Point p) {
-		for(Handle h : this.handles) {
+		for(Handle h : getHandles()) {
 			if(h.contains(p)) {
 				this.selectedHandle = h;
 			}
@@ -0,0 +1,166 @@
+package animator;
+
+import java.awt.Color;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SvgWriter formats frames as SVG text, appending straight to a StringBuilder rather than
+ * building a DOM, so a frame costs one pass over its rows and nothing more.
+ * Each visible layer's frame becomes a group, at the layer's opacity if it is translucent.
+ * Numbers are written with at most two decimal places, which is well under a pixel.
+ * 
+ * @author Neill Johnston
+ */
+public class SvgWriter {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	
+	/**
+	 * The frames shown at one index, copied out of the layers so they can be written on another thread.
+	 */
+	public static class Frames {
+		private List<Frame> frames;
+		private List<Float> opacities;
+		
+		/**
+		 * Copy the frames at an index out of each visible layer.
+		 * Must be called from the thread that owns the layers.
+		 * 
+		 * @param layers	layers to copy from, bottom first
+		 * @param index		index of the frame in each layer, counting holds
+		 */
+		public Frames(List<Layer> layers, int index) {
+			frames = new ArrayList<Frame>();
+			opacities = new ArrayList<Float>();
+			for(Layer layer : layers) {
+				Frame frame = layer.getExposed(index);
+				if(frame != null && layer.isVisible() && layer.getOpacity() > 0) {
+					frames.add(Frame.readOnlyCopy(frame));
+					opacities.add(layer.getOpacity());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Write the start of a document, up to the group that frames are written into.
+	 * 
+	 * @param out			builder to append to
+	 * @param width			width of the image
+	 * @param height		height of the image
+	 * @param transform		world-to-image transform
+	 */
+	public static void writeHeader(StringBuilder out, int width, int height, AffineTransform transform) {
+		out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(width)
+				.append("\" height=\"").append(height)
+				.append("\" viewBox=\"0 0 ").append(width).append(' ').append(height).append("\">\n");
+		double[] m = new double[6];
+		transform.getMatrix(m);
+		out.append("<g transform=\"matrix(");
+		for(int i = 0; i < m.length; i++) {
+			if(i > 0)
+				out.append(' ');
+			appendNumber(out, m[i]);
+		}
+		out.append(")\" fill=\"none\" stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+	}
+	
+	/**
+	 * Write the end of a document started with writeHeader.
+	 * 
+	 * @param out		builder to append to
+	 */
+	public static void writeFooter(StringBuilder out) {
+		out.append("</g>\n</svg>\n");
+	}
+	
+	/**
+	 * Write the frames shown at one index.
+	 * 
+	 * @param out		builder to append to
+	 * @param frames	frames to write, bottom first
+	 */
+	public static void writeFrames(StringBuilder out, Frames frames) {
+		for(int i = 0; i < frames.frames.size(); i++) {
+			float opacity = frames.opacities.get(i);
+			if(opacity < 1) {
+				out.append("<g opacity=\"");
+				appendNumber(out, opacity);
+				out.append("\">\n");
+			}
+			frames.frames.get(i).writeSvg(out);
+			if(opacity < 1)
+				out.append("</g>\n");
+		}
+	}
+	
+	/**
+	 * Write the frames shown at one index, as a group that is only displayed for part of
+	 * a looping animation.
+	 * 
+	 * @param out			builder to append to
+	 * @param frames		frames to write, bottom first
+	 * @param start			time the frames are first shown, in seconds
+	 * @param end			time they stop being shown, in seconds
+	 * @param duration		length of the whole animation, in seconds
+	 */
+	public static void writeFrames(StringBuilder out, Frames frames, double start, double end, double duration) {
+		out.append("<g display=\"none\"><animate attributeName=\"display\" values=\"none;inline;none\" keyTimes=\"0;");
+		appendNumber(out, start / duration, 5);
+		out.append(';');
+		appendNumber(out, end / duration, 5);
+		out.append("\" dur=\"");
+		appendNumber(out, duration, 3);
+		out.append("s\" calcMode=\"discrete\" repeatCount=\"indefinite\"/>\n");
+		writeFrames(out, frames);
+		out.append("</g>\n");
+	}
+	
+	/**
+	 * Append a number with at most two decimal places, without a trailing zero or point.
+	 * 
+	 * @param out		builder to append to
+	 * @param value		number to append
+	 */
+	public static void appendNumber(StringBuilder out, double value) {
+		appendNumber(out, value, 2);
+	}
+	
+	/**
+	 * Append a number with at most some decimal places, without a trailing zero or point.
+	 */
+	private static void appendNumber(StringBuilder out, double value, int places) {
+		long scale = 1;
+		for(int i = 0; i < places; i++)
+			scale *= 10;
+		long fixed = Math.round(value * scale);
+		if(fixed < 0) {
+			out.append('-');
+			fixed = -fixed;
+		}
+		out.append(fixed / scale);
+		long fraction = fixed % scale;
+		if(fraction == 0)
+			return;
+		out.append('.');
+		for(scale /= 10; fraction > 0; scale /= 10) {
+			out.append((char) ('0' + fraction / scale));
+			fraction %= scale;
+		}
+	}
+	
+	/**
+	 * Append a color as #rrggbb, ignoring its alpha.
+	 * 
+	 * @param out		builder to append to
+	 * @param color		color to append
+	 */
+	public static void appendColor(StringBuilder out, Color color) {
+		int rgb = color.getRGB();
+		out.append('#');
+		for(int shift = 20; shift >= 0; shift -= 4)
+			out.append(HEX[(rgb >> shift) & 0xF]);
+	}
+}
@@ -0,0 +1,278 @@
+package animator;
+
+import java.util.Arrays;
+
+/**
+ * Timeline is a sparse, sorted map from frame indices to values.
+ * Indices are kept as primitive ints in a sorted array, so lookups and
+ * next/previous queries are binary searches, and appending at the end is cheap.
+ * Each value also has a hold: the number of frames it stays exposed for.
+ * 
+ * @author Neill Johnston
+ */
+public class Timeline<T> {
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private int[] keys;
+	private Object[] values;
+	private int[] holds;
+	private int size;
+	// Position of the last index found, since lookups usually walk forwards.
+	private int hint;
+	
+	public Timeline() {
+		keys = new int[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		holds = new int[INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Return the value at an index.
+	 * 
+	 * @param index		frame index
+	 * @return the value put at exactly that index, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int index) {
+		int i = search(index);
+		return i >= 0 ? (T) values[i] : null;
+	}
+	
+	/**
+	 * Return the value on screen at an index, counting holds.
+	 * 
+	 * @param index		frame index
+	 * @return the value put at or before the index and still held there, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public T getExposed(int index) {
+		int i = floor(index);
+		if(i < 0 || index >= (long) keys[i] + holds[i])
+			return null;
+		return (T) values[i];
+	}
+	
+	/**
+	 * Put a value at an index, replacing whatever is there.
+	 * A new value is held for one frame; a replaced value keeps its hold.
+	 * 
+	 * @param index		frame index
+	 * @param value		value to put
+	 * @return the value that was replaced, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public T put(int index, T value) {
+		int i = search(index);
+		if(i >= 0) {
+			T old = (T) values[i];
+			values[i] = value;
+			return old;
+		}
+		
+		i = -(i + 1);
+		if(size == keys.length) {
+			int capacity = keys.length * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			values = Arrays.copyOf(values, capacity);
+			holds = Arrays.copyOf(holds, capacity);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(values, i, values, i + 1, size - i);
+		System.arraycopy(holds, i, holds, i + 1, size - i);
+		keys[i] = index;
+		values[i] = value;
+		holds[i] = 1;
+		size++;
+		return null;
+	}
+	
+	/**
+	 * Remove the value at an index.
+	 * 
+	 * @param index		frame index
+	 * @return the value removed, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public T remove(int index) {
+		int i = search(index);
+		if(i < 0)
+			return null;
+		
+		T old = (T) values[i];
+		System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+		System.arraycopy(values, i + 1, values, i, size - i - 1);
+		System.arraycopy(holds, i + 1, holds, i, size - i - 1);
+		size--;
+		values[size] = null;
+		return old;
+	}
+	
+	/**
+	 * Whether a value was put at an index.
+	 * 
+	 * @param index		frame index
+	 * @return whether the index is occupied
+	 */
+	public boolean containsKey(int index) {
+		return search(index) >= 0;
+	}
+	
+	/**
+	 * Return the number of values.
+	 * 
+	 * @return size
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	// --- Holds. ---
+	
+	/**
+	 * Return how many frames the value at an index is held for.
+	 * 
+	 * @param index		frame index
+	 * @return the hold, or 0 if the index is empty
+	 */
+	public int getHold(int index) {
+		int i = search(index);
+		return i >= 0 ? holds[i] : 0;
+	}
+	
+	/**
+	 * Set how many frames the value at an index is held for.
+	 * 
+	 * @param index		frame index
+	 * @param hold		number of frames, at least 1
+	 */
+	public void setHold(int index, int hold) {
+		int i = search(index);
+		if(i >= 0)
+			holds[i] = Math.max(1, hold);
+	}
+	
+	// --- Ordered queries. ---
+	
+	/**
+	 * Return the first occupied index.
+	 * 
+	 * @return the first index, or -1 if empty
+	 */
+	public int firstKey() {
+		return size > 0 ? keys[0] : -1;
+	}
+	
+	/**
+	 * Return the last occupied index.
+	 * 
+	 * @return the last index, or -1 if empty
+	 */
+	public int lastKey() {
+		return size > 0 ? keys[size - 1] : -1;
+	}
+	
+	/**
+	 * Return the next occupied index after an index.
+	 * 
+	 * @param index		frame index
+	 * @return the next index, or -1 if there is none
+	 */
+	public int nextKey(int index) {
+		int i = floor(index) + 1;
+		return i < size ? keys[i] : -1;
+	}
+	
+	/**
+	 * Return the previous occupied index before an index.
+	 * 
+	 * @param index		frame index
+	 * @return the previous index, or -1 if there is none
+	 */
+	public int previousKey(int index) {
+		int i = floor(index - 1);
+		return i >= 0 ? keys[i] : -1;
+	}
+	
+	/**
+	 * Return the first index at or after an index that no value is exposed at.
+	 * Skips from each key to the end of its hold, stepping over any later keys the hold covers.
+	 * 
+	 * @param index		frame index
+	 * @return the first free index
+	 */
+	public int nextFree(int index) {
+		int i = floor(index);
+		while(i >= 0 && index < (long) keys[i] + holds[i]) {
+			index = keys[i] + holds[i];
+			while(i + 1 < size && keys[i + 1] <= index)
+				i++;
+		}
+		return index;
+	}
+	
+	/**
+	 * Return the occupied indices within a range.
+	 * 
+	 * @param from		first index of the range
+	 * @param to		index after the last of the range
+	 * @return the occupied indices, in order
+	 */
+	public int[] keys(int from, int to) {
+		int start = floor(from - 1) + 1;
+		int end = floor(to - 1) + 1;
+		return Arrays.copyOfRange(keys, start, Math.max(start, end));
+	}
+	
+	// --- Positional access, for walking the timeline in order. ---
+	
+	/**
+	 * Return the index stored at a position.
+	 * 
+	 * @param position	position, from 0 to size() - 1
+	 * @return the frame index
+	 */
+	public int keyAt(int position) {
+		return keys[position];
+	}
+	
+	/**
+	 * Return the value stored at a position.
+	 * 
+	 * @param position	position, from 0 to size() - 1
+	 * @return the value
+	 */
+	@SuppressWarnings("unchecked")
+	public T valueAt(int position) {
+		return (T) values[position];
+	}
+	
+	/**
+	 * Binary search for an index, checking at and just after the last one found first.
+	 * 
+	 * @return the position of the index, or -(insertion point) - 1 if it is absent
+	 */
+	private int search(int index) {
+		if(hint < size && keys[hint] == index)
+			return hint;
+		if(hint + 1 < size && keys[hint + 1] == index)
+			return ++hint;
+		int i = Arrays.binarySearch(keys, 0, size, index);
+		if(i >= 0)
+			hint = i;
+		return i;
+	}
+	
+	/**
+	 * Return the position of the last index at or before an index.
+	 * 
+	 * @return the position, or -1 if every index is after it
+	 */
+	private int floor(int index) {
+		int i = search(index);
+		return i >= 0 ? i : -(i + 1) - 1;
+	}
+}
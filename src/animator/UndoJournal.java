@@ -0,0 +1,263 @@
+package animator;
+
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * UndoJournal is a stack of commands kept in a memory-mapped file instead of on the heap.
+ * Each record is [length][kind][payload][length], so the stack can be popped from the top
+ * by reading the trailing length. The file is used as a ring: when it is full, the oldest
+ * records at the bottom are overwritten, so deep history is bounded by the file size.
+ * Frames are written as indices into a table shared by every journal of one history.
+ * 
+ * @author Neill Johnston
+ */
+public class UndoJournal {
+	// Command kinds, the first byte of each payload.
+	static final byte KIND_NEWLINE = 1;
+	static final byte KIND_CHANGEOBJECT = 2;
+	static final byte KIND_NEWPEN = 3;
+	static final byte KIND_TRANSFORM = 4;
+	
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	// Records live in [head, tail), or [head, wrapAt) then [0, tail) once they have wrapped.
+	private int head;
+	private int tail;
+	private int wrapAt;
+	private int count;
+	private Frames frames;
+	// Scratch space to encode a record in before it is copied into the file.
+	private ByteBuffer scratch;
+	
+	/**
+	 * Open a journal in a new temporary file, deleted when the program exits.
+	 * 
+	 * @param capacity	size of the file in bytes
+	 * @param frames	table to write frames into
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	public UndoJournal(int capacity, Frames frames) throws IOException {
+		this.file = File.createTempFile("animator-undo", ".journal");
+		this.file.deleteOnExit();
+		this.raf = new RandomAccessFile(file, "rw");
+		this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		this.capacity = capacity;
+		this.frames = frames;
+		this.scratch = ByteBuffer.allocate(256);
+		clear();
+	}
+	
+	/**
+	 * Push a command onto the top of the stack, overwriting the oldest records if there is no room.
+	 * 
+	 * @param c		the command
+	 * @return whether the command was written
+	 */
+	public boolean push(Command c) {
+		scratch.clear();
+		scratch = c.write(scratch, frames);
+		scratch.flip();
+		int length = scratch.remaining();
+		int need = length + 8;
+		if(need > capacity)
+			return false;
+		
+		// Make room at the tail, wrapping to the start and evicting from the bottom as needed.
+		while(true) {
+			if(wrapAt < 0) {
+				if(tail + need <= capacity)
+					break;
+				if(count == 0) {
+					head = tail = 0;
+					continue;
+				}
+				wrapAt = tail;
+				tail = 0;
+			}
+			else {
+				if(tail + need <= head)
+					break;
+				evict();
+			}
+		}
+		
+		buffer.putInt(tail, length);
+		for(int i = 0; i < length; i++)
+			buffer.put(tail + 4 + i, scratch.get(i));
+		buffer.putInt(tail + 4 + length, length);
+		tail += need;
+		count++;
+		return true;
+	}
+	
+	/**
+	 * Pop the command on top of the stack, decoding it back into an object.
+	 * 
+	 * @return the command, or null if the journal is empty
+	 */
+	public Command pop() {
+		if(count == 0)
+			return null;
+		if(wrapAt >= 0 && tail == 0) {
+			tail = wrapAt;
+			wrapAt = -1;
+		}
+		int length = buffer.getInt(tail - 4);
+		int start = tail - 8 - length;
+		ByteBuffer record = buffer.duplicate();
+		record.limit(start + 4 + length);
+		record.position(start + 4);
+		tail = start;
+		if(--count == 0)
+			clear();
+		return read(record.slice(), frames);
+	}
+	
+	/**
+	 * Return the number of commands in the journal.
+	 * 
+	 * @return count
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * Forget every command.
+	 */
+	public void clear() {
+		head = 0;
+		tail = 0;
+		wrapAt = -1;
+		count = 0;
+	}
+	
+	/**
+	 * Close and delete the file.
+	 */
+	public void close() {
+		try {
+			raf.close();
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+		buffer = null;
+		file.delete();
+	}
+	
+	/**
+	 * Drop the record at the bottom of the stack.
+	 */
+	private void evict() {
+		head += buffer.getInt(head) + 8;
+		if(head == wrapAt) {
+			head = 0;
+			wrapAt = -1;
+		}
+		if(--count == 0)
+			clear();
+	}
+	
+	/**
+	 * Decode a command written by Command.write.
+	 * 
+	 * @param in		buffer positioned at the kind byte
+	 * @param frames	table the frames were written into
+	 * @return the command
+	 */
+	static Command read(ByteBuffer in, Frames frames) {
+		byte kind = in.get();
+		switch(kind) {
+			case KIND_NEWLINE:
+				return LineObject.NewLineObjectCommand.read(in, frames);
+			case KIND_CHANGEOBJECT:
+				return CanvasObject.ChangeObjectCommand.read(in, frames);
+			case KIND_NEWPEN:
+				return PenObject.NewPenObjectCommand.read(in, frames);
+			case KIND_TRANSFORM:
+				return Selection.TransformCommand.read(in, frames);
+			default:
+				throw new IllegalStateException("Unknown command kind " + kind);
+		}
+	}
+	
+	// --- Encoding helpers. ---
+	
+	/**
+	 * Make sure a buffer has room to write to, growing it if needed.
+	 * 
+	 * @param out		buffer being written
+	 * @param bytes		number of bytes about to be written
+	 * @return out, or a bigger copy of it
+	 */
+	static ByteBuffer ensure(ByteBuffer out, int bytes) {
+		if(out.remaining() >= bytes)
+			return out;
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+		out.flip();
+		grown.put(out);
+		return grown;
+	}
+	
+	static void writePoint(ByteBuffer out, Point p) {
+		out.putInt(p.x);
+		out.putInt(p.y);
+	}
+	
+	static Point readPoint(ByteBuffer in) {
+		return new Point(in.getInt(), in.getInt());
+	}
+	
+	/**
+	 * Frames is a table giving every frame written to a journal a number.
+	 * Frames are kept by identity, so a frame's number is stable however it changes.
+	 */
+	public static class Frames {
+		private ArrayList<Frame> list;
+		private IdentityHashMap<Frame, Integer> numbers;
+		
+		public Frames() {
+			list = new ArrayList<Frame>();
+			numbers = new IdentityHashMap<Frame, Integer>();
+		}
+		
+		/**
+		 * Return a frame's number, giving it one if it doesn't have one yet.
+		 */
+		public int numberOf(Frame frame) {
+			Integer number = numbers.get(frame);
+			if(number == null) {
+				number = list.size();
+				list.add(frame);
+				numbers.put(frame, number);
+			}
+			return number;
+		}
+		
+		/**
+		 * Return the frame with a number.
+		 */
+		public Frame get(int number) {
+			return list.get(number);
+		}
+		
+		/**
+		 * Forget every frame.
+		 */
+		public void clear() {
+			list.clear();
+			numbers.clear();
+		}
+	}
+}
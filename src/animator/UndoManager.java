@@ -0,0 +1,229 @@
+package animator;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * UndoManager keeps the history of commands for undo and redo.
+ * Only a small window of the most recent commands on each side is kept as objects.
+ * Older ones are spilled to memory-mapped UndoJournals and paged back in as undo
+ * or redo reaches them, so the heap stays flat however long the history gets;
+ * the journals' size bounds how deep it goes. The window is bounded by a memory
+ * budget as well as a count. If the journals can't be created, spilled commands
+ * are forgotten instead.
+ * A command added soon after the last one may be merged into it, so a burst of
+ * small edits undoes as one step. Undo and redo only ever run one command each.
+ * 
+ * @author Neill Johnston
+ */
+public class UndoManager {
+	// Commands further apart than this are never merged.
+	private static final long MERGE_NANOS = 1000000000L;
+	// Most commands kept as objects on each side, and how many to page back in at once.
+	private static final int WINDOW = 64;
+	private static final int PAGE = WINDOW / 2;
+	// Size of each journal file.
+	private static final int JOURNAL_BYTES = 64 << 20;
+	
+	private ArrayDeque<Command> undoStack;
+	private ArrayDeque<Command> redoStack;
+	// Commands older than the windows, or null if there is nowhere to spill them.
+	private UndoJournal undoJournal;
+	private UndoJournal redoJournal;
+	private UndoJournal.Frames frames;
+	// Memory budget, and the estimated size of everything on both stacks.
+	private long budget;
+	private long memory;
+	// Whether the last command is closed to merging, and when it was added.
+	private boolean sealed;
+	private long lastNanos;
+	
+	/**
+	 * Construct an empty history.
+	 * 
+	 * @param budget	most memory (in bytes) the history should keep alive
+	 */
+	public UndoManager(long budget) {
+		this.undoStack = new ArrayDeque<Command>();
+		this.redoStack = new ArrayDeque<Command>();
+		this.budget = budget;
+		this.sealed = true;
+		this.frames = new UndoJournal.Frames();
+		try {
+			this.undoJournal = new UndoJournal(JOURNAL_BYTES, frames);
+			this.redoJournal = new UndoJournal(JOURNAL_BYTES, frames);
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+			this.undoJournal = null;
+			this.redoJournal = null;
+		}
+	}
+	
+	/**
+	 * Add a command that has just been done.
+	 * Anything that could have been redone is forgotten.
+	 * 
+	 * @param c		the command
+	 */
+	public void add(Command c) {
+		clearRedo();
+		
+		long now = System.nanoTime();
+		Command last = undoStack.peekLast();
+		if(last != null && !sealed && now - lastNanos < MERGE_NANOS) {
+			int before = last.size();
+			if(last.merge(c)) {
+				memory += last.size() - before;
+				lastNanos = now;
+				return;
+			}
+		}
+		
+		undoStack.addLast(c);
+		memory += c.size();
+		sealed = false;
+		lastNanos = now;
+		spill(undoStack, undoJournal);
+	}
+	
+	/**
+	 * Stop the last command from absorbing any more, such as when a drag ends.
+	 */
+	public void seal() {
+		sealed = true;
+	}
+	
+	/**
+	 * Undo the last command.
+	 * 
+	 * @return whether there was one to undo
+	 */
+	public boolean undo() {
+		if(undoStack.isEmpty())
+			pageIn(undoStack, undoJournal);
+		Command c = undoStack.pollLast();
+		if(c == null)
+			return false;
+		c.undo();
+		redoStack.addLast(c);
+		sealed = true;
+		spill(redoStack, redoJournal);
+		return true;
+	}
+	
+	/**
+	 * Redo the last command undone.
+	 * 
+	 * @return whether there was one to redo
+	 */
+	public boolean redo() {
+		if(redoStack.isEmpty())
+			pageIn(redoStack, redoJournal);
+		Command c = redoStack.pollLast();
+		if(c == null)
+			return false;
+		c.redo();
+		undoStack.addLast(c);
+		sealed = true;
+		spill(undoStack, undoJournal);
+		return true;
+	}
+	
+	public boolean canUndo() {
+		return !undoStack.isEmpty() || (undoJournal != null && undoJournal.size() > 0);
+	}
+	
+	public boolean canRedo() {
+		return !redoStack.isEmpty() || (redoJournal != null && redoJournal.size() > 0);
+	}
+	
+	/**
+	 * Forget the whole history.
+	 */
+	public void clear() {
+		undoStack.clear();
+		redoStack.clear();
+		if(undoJournal != null) {
+			undoJournal.clear();
+			redoJournal.clear();
+		}
+		frames.clear();
+		memory = 0;
+		sealed = true;
+	}
+	
+	/**
+	 * Forget the whole history and delete the journal files.
+	 */
+	public void close() {
+		clear();
+		if(undoJournal != null) {
+			undoJournal.close();
+			redoJournal.close();
+			undoJournal = null;
+			redoJournal = null;
+		}
+	}
+	
+	/**
+	 * Return the number of commands that can be undone, in memory and in the journal.
+	 * 
+	 * @return count
+	 */
+	public int getUndoCount() {
+		return undoStack.size() + (undoJournal != null ? undoJournal.size() : 0);
+	}
+	
+	/**
+	 * Return the estimated memory kept alive by the commands held as objects.
+	 * 
+	 * @return size in bytes
+	 */
+	public long getMemory() {
+		return memory;
+	}
+	
+	/**
+	 * Forget everything that could be redone.
+	 */
+	private void clearRedo() {
+		for(Command c : redoStack)
+			memory -= c.size();
+		redoStack.clear();
+		if(redoJournal != null)
+			redoJournal.clear();
+	}
+	
+	/**
+	 * Move the oldest commands on one side out to its journal until the window fits.
+	 * The latest command is always kept.
+	 * 
+	 * @param stack		commands held as objects, newest last
+	 * @param journal	journal to spill to, or null to forget them
+	 */
+	private void spill(ArrayDeque<Command> stack, UndoJournal journal) {
+		while((stack.size() > WINDOW || memory > budget) && stack.size() > 1) {
+			Command c = stack.pollFirst();
+			memory -= c.size();
+			if(journal != null)
+				journal.push(c);
+		}
+	}
+	
+	/**
+	 * Bring the newest commands in a journal back in as objects, underneath any already held.
+	 * 
+	 * @param stack		commands held as objects, newest last
+	 * @param journal	journal to page in from, or null
+	 */
+	private void pageIn(ArrayDeque<Command> stack, UndoJournal journal) {
+		if(journal == null)
+			return;
+		Command c;
+		for(int i = 0; i < PAGE && (c = journal.pop()) != null; i++) {
+			stack.addFirst(c);
+			memory += c.size();
+		}
+	}
+}